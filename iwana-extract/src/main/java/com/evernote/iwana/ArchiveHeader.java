@@ -0,0 +1,311 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.evernote.iwana.pb.TSP.TSPArchiveMessages.ArchiveInfo;
+import com.evernote.iwana.pb.TSP.TSPArchiveMessages.MessageInfo;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * The header of an archive in an {@code .iwa} file: the archive's identifier, and the
+ * type and length of each of its messages.
+ * 
+ * The parser reuses a single instance for all archives of a file, so reading the framing
+ * of an archive does not allocate. The complete {@link ArchiveInfo}, including the object
+ * and data references of each message, is only decoded on demand (see
+ * {@link #getArchiveInfo()}).
+ * 
+ * Instances are only valid during the call they are passed to; use {@link #copy()} to
+ * keep one.
+ */
+public final class ArchiveHeader {
+  private static final int WIRETYPE_VARINT = 0;
+  private static final int WIRETYPE_FIXED64 = 1;
+  private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+  private static final int WIRETYPE_FIXED32 = 5;
+
+  private static final int TAG_IDENTIFIER = 1 << 3 | WIRETYPE_VARINT;
+  private static final int TAG_MESSAGE_INFOS = 2 << 3 | WIRETYPE_LENGTH_DELIMITED;
+  private static final int TAG_TYPE = 1 << 3 | WIRETYPE_VARINT;
+  private static final int TAG_LENGTH = 3 << 3 | WIRETYPE_VARINT;
+
+  private byte[] raw;
+  private int rawLength;
+  private int pos;
+
+  private long identifier;
+  private int messageCount;
+  private int[] types;
+  private int[] lengths;
+
+  private ArchiveInfo archiveInfo;
+
+  ArchiveHeader() {
+    this(new byte[64], new int[8], new int[8]);
+  }
+
+  private ArchiveHeader(byte[] raw, int[] types, int[] lengths) {
+    this.raw = raw;
+    this.types = types;
+    this.lengths = lengths;
+  }
+
+  /**
+   * Creates a header for an already decoded {@link ArchiveInfo}.
+   * 
+   * @param ai The {@link ArchiveInfo}.
+   * @return The header.
+   */
+  static ArchiveHeader of(final ArchiveInfo ai) {
+    final int count = ai.getMessageInfosCount();
+    final ArchiveHeader header = new ArchiveHeader(new byte[0], new int[count],
+        new int[count]);
+    header.identifier = ai.getIdentifier();
+    for (MessageInfo mi : ai.getMessageInfosList()) {
+      header.addMessage(mi.getType(), mi.getLength());
+    }
+    header.archiveInfo = ai;
+    return header;
+  }
+
+  /**
+   * Returns the archive's identifier.
+   * 
+   * @return The identifier.
+   */
+  public long getIdentifier() {
+    return identifier;
+  }
+
+  /**
+   * Returns the number of messages in the archive.
+   * 
+   * @return The number of messages.
+   */
+  public int getMessageCount() {
+    return messageCount;
+  }
+
+  /**
+   * Returns the type of the given message.
+   * 
+   * @param index The message's index within the archive.
+   * @return The message type.
+   */
+  public int getType(final int index) {
+    checkIndex(index);
+    return types[index];
+  }
+
+  /**
+   * Returns the length of the given message.
+   * 
+   * @param index The message's index within the archive.
+   * @return The length of the message's payload, in bytes.
+   */
+  public int getLength(final int index) {
+    checkIndex(index);
+    return lengths[index];
+  }
+
+  /**
+   * Decodes the complete {@link ArchiveInfo} of this archive.
+   * 
+   * The result is kept until the next archive is read into this instance.
+   * 
+   * @return The {@link ArchiveInfo}.
+   * @throws InvalidProtocolBufferException if the header cannot be decoded.
+   */
+  public ArchiveInfo getArchiveInfo() throws InvalidProtocolBufferException {
+    if (archiveInfo == null) {
+      archiveInfo = ArchiveInfo.PARSER.parseFrom(raw, 0, rawLength);
+    }
+    return archiveInfo;
+  }
+
+  /**
+   * Decodes the complete {@link MessageInfo} of the given message, including its object
+   * and data references.
+   * 
+   * @param index The message's index within the archive.
+   * @return The {@link MessageInfo}.
+   * @throws InvalidProtocolBufferException if the header cannot be decoded.
+   */
+  public MessageInfo getMessageInfo(final int index)
+      throws InvalidProtocolBufferException {
+    checkIndex(index);
+    return getArchiveInfo().getMessageInfos(index);
+  }
+
+  /**
+   * Returns a copy of this header that is not affected when this instance is reused.
+   * 
+   * @return The copy.
+   */
+  public ArchiveHeader copy() {
+    final ArchiveHeader copy = new ArchiveHeader(Arrays.copyOf(raw, rawLength),
+        Arrays.copyOf(types, messageCount), Arrays.copyOf(lengths, messageCount));
+    copy.rawLength = rawLength;
+    copy.identifier = identifier;
+    copy.messageCount = messageCount;
+    copy.archiveInfo = archiveInfo;
+    return copy;
+  }
+
+  private void checkIndex(final int index) {
+    if (index < 0 || index >= messageCount) {
+      throw new IndexOutOfBoundsException("Message " + index + " of " + messageCount);
+    }
+  }
+
+  /**
+   * Reads the next archive header from the given stream into this instance.
+   * 
+   * @param in The stream.
+   * @param size The size of the header, in bytes.
+   * @throws IOException
+   */
+  void read(final CodedInputStream in, final int size) throws IOException {
+    if (size < 0) {
+      throw new InvalidProtocolBufferException("Negative archive header size: " + size);
+    }
+    // the size is untrusted; only grow the buffer as the bytes actually arrive
+    for (int i = 0; i < size; i++) {
+      if (i == raw.length) {
+        raw = Arrays.copyOf(raw, (int) Math.min(size, raw.length * 2L));
+      }
+      raw[i] = in.readRawByte();
+    }
+    rawLength = size;
+    archiveInfo = null;
+
+    if (!decode()) {
+      // anything we do not expect; let the generated parser decide
+      final ArchiveInfo ai = getArchiveInfo();
+      identifier = ai.getIdentifier();
+      messageCount = 0;
+      for (MessageInfo mi : ai.getMessageInfosList()) {
+        addMessage(mi.getType(), mi.getLength());
+      }
+    }
+  }
+
+  /**
+   * Decodes the identifier, and the type and length of each message, from the raw header.
+   * 
+   * @return {@code false} if the header contains anything unexpected.
+   */
+  private boolean decode() {
+    pos = 0;
+    identifier = 0;
+    messageCount = 0;
+    while (pos < rawLength) {
+      final long tag = readVarint(rawLength);
+      final int wireType = (int) tag & 7;
+      if (tag == TAG_IDENTIFIER) {
+        identifier = readVarint(rawLength);
+        if (identifier == -1) {
+          return false;
+        }
+      } else if (tag == TAG_MESSAGE_INFOS) {
+        final long size = readVarint(rawLength);
+        if (size < 0 || size > rawLength - pos || !decodeMessageInfo(pos + (int) size)) {
+          return false;
+        }
+      } else if (tag >>> 3 == 0 || tag == -1 || !skip(wireType, rawLength)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean decodeMessageInfo(final int end) {
+    long type = -1;
+    long length = -1;
+    while (pos < end) {
+      final long tag = readVarint(end);
+      final int wireType = (int) tag & 7;
+      if (tag == TAG_TYPE) {
+        type = readVarint(end);
+      } else if (tag == TAG_LENGTH) {
+        length = readVarint(end);
+      } else if (tag >>> 3 == 0 || tag == -1 || !skip(wireType, end)) {
+        return false;
+      }
+    }
+    if (type == -1 || length == -1) {
+      // missing required fields, or malformed varints
+      return false;
+    }
+    addMessage((int) type, (int) length);
+    return true;
+  }
+
+  private void addMessage(final int type, final int length) {
+    if (messageCount == types.length) {
+      types = Arrays.copyOf(types, messageCount * 2);
+      lengths = Arrays.copyOf(lengths, messageCount * 2);
+    }
+    types[messageCount] = type;
+    lengths[messageCount] = length;
+    messageCount++;
+  }
+
+  /**
+   * Reads a varint.
+   * 
+   * @param end The end of the enclosing field.
+   * @return The value, or -1 if the varint is malformed (or its value is -1).
+   */
+  private long readVarint(final int end) {
+    long result = 0;
+    for (int shift = 0; shift < 64 && pos < end; shift += 7) {
+      final byte b = raw[pos++];
+      result |= (long) (b & 0x7f) << shift;
+      if (b >= 0) {
+        return result;
+      }
+    }
+    return -1;
+  }
+
+  private boolean skip(final int wireType, final int end) {
+    switch (wireType) {
+      case WIRETYPE_VARINT:
+        return readVarint(end) != -1;
+      case WIRETYPE_FIXED64:
+        pos += 8;
+        return pos <= end;
+      case WIRETYPE_LENGTH_DELIMITED:
+        final long size = readVarint(end);
+        if (size < 0 || size > end - pos) {
+          return false;
+        }
+        pos += (int) size;
+        return true;
+      case WIRETYPE_FIXED32:
+        pos += 4;
+        return pos <= end;
+      default:
+        // groups
+        return false;
+    }
+  }
+}
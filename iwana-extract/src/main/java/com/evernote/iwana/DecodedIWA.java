@@ -0,0 +1,121 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
+
+/**
+ * The messages of an {@code .iwa} file that have been decoded ahead of time, possibly on
+ * another thread, ready to be dispatched to their {@link MessageAction}s in file order.
+ * 
+ * Only messages with a registered {@link MessageAction} are decoded.
+ */
+final class DecodedIWA {
+  /**
+   * The header of the archive that owns each message (a copy per archive), and the
+   * message's index within it.
+   */
+  final List<ArchiveHeader> headers = new ArrayList<>();
+  int[] indexes = new int[64];
+  final List<MessageAction<Message, IwanaContext<?>>> actions = new ArrayList<>();
+
+  /**
+   * Either the decoded {@link Message}, or the {@link InvalidProtocolBufferException}
+   * caught while decoding it.
+   */
+  final List<Object> messages = new ArrayList<>();
+
+  private void add(final ArchiveHeader header, final int index,
+      final MessageAction<Message, IwanaContext<?>> action, final Object message) {
+    final int n = messages.size();
+    if (n == indexes.length) {
+      indexes = Arrays.copyOf(indexes, n * 2);
+    }
+    indexes[n] = index;
+    headers.add(header);
+    actions.add(action);
+    messages.add(message);
+  }
+
+  /**
+   * Decodes all messages of the given {@code .iwa} file that have a {@link MessageAction}
+   * registered in the given {@link MessageActions}.
+   * 
+   * This method does not touch any {@link IwanaContext} and may be called from any
+   * thread.
+   * 
+   * @param in The {@code .iwa} file contents (snappy-compressed).
+   * @param registry The registry.
+   * @param pool The pool to take decoding buffers from.
+   * @param monitor The monitor to report decompressed chunks to.
+   * @return The decoded file.
+   * @throws IOException
+   */
+  static DecodedIWA decode(final InputStream in, final MessageActions registry,
+      final DecoderPool pool, final ParseMonitor monitor) throws IOException {
+    final SnappyNoCRCFramedInputStream bin = pool.acquireSnappyStream(in, monitor);
+    try {
+      return decode(bin, registry);
+    } finally {
+      pool.release(bin);
+    }
+  }
+
+  private static DecodedIWA decode(final SnappyNoCRCFramedInputStream bin,
+      final MessageActions registry) throws IOException {
+    final DecodedIWA decoded = new DecodedIWA();
+    final IWAMessageReader reader = new IWAMessageReader(bin);
+
+    final ArchiveHeader header = new ArchiveHeader();
+
+    while (!Thread.interrupted() && reader.nextArchive(header)) {
+      // copied once the archive turns out to have a message we decode
+      ArchiveHeader copy = null;
+      final int n = header.getMessageCount();
+      for (int i = 0; i < n; i++) {
+        final int oldLimit = reader.beginMessage(header.getLength(i));
+        try {
+          final MessageAction<Message, IwanaContext<?>> action =
+              registry.getAction(header.getType(i));
+          if (action == null) {
+            continue;
+          }
+          Object message;
+          try {
+            message = action.parse(reader.getStream());
+          } catch (InvalidProtocolBufferException e) {
+            message = e;
+          }
+          if (copy == null) {
+            copy = header.copy();
+          }
+          decoded.add(copy, i, action, message);
+        } finally {
+          reader.endMessage(oldLimit);
+        }
+      }
+    }
+
+    return decoded;
+  }
+}
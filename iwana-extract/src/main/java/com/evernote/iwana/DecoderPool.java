@@ -0,0 +1,103 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Inflater;
+
+/**
+ * A thread-safe pool of the buffers and {@link Inflater}s needed to decode {@code .iwa}
+ * files, so they are not allocated anew for every file.
+ * 
+ * A snappy stream holds 192 KB of buffers, and an {@link Inflater} holds native memory
+ * until it is ended.
+ */
+final class DecoderPool {
+  private final int maxIdle;
+
+  private final ConcurrentLinkedQueue<SnappyNoCRCFramedInputStream> snappyStreams =
+      new ConcurrentLinkedQueue<>();
+  private final AtomicInteger idleSnappyStreams = new AtomicInteger();
+
+  private final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger idleInflaters = new AtomicInteger();
+
+  /**
+   * Creates a new pool.
+   * 
+   * @param maxIdle The maximum number of idle instances of each kind to keep.
+   */
+  DecoderPool(final int maxIdle) {
+    this.maxIdle = maxIdle;
+  }
+
+  /**
+   * Returns a {@link SnappyNoCRCFramedInputStream} reading from the given stream. The
+   * returned stream does not close the given stream.
+   * 
+   * @param in The snappy-compressed stream.
+   * @param monitor The monitor to report decompressed chunks to.
+   * @return The uncompressing stream, to be passed to
+   *         {@link #release(SnappyNoCRCFramedInputStream)} when done.
+   */
+  SnappyNoCRCFramedInputStream acquireSnappyStream(final InputStream in,
+      final ParseMonitor monitor) {
+    SnappyNoCRCFramedInputStream s = snappyStreams.poll();
+    if (s == null) {
+      s = new SnappyNoCRCFramedInputStream(in, false);
+    } else {
+      idleSnappyStreams.decrementAndGet();
+      s.reset(in);
+    }
+    s.setMonitor(monitor);
+    return s;
+  }
+
+  void release(final SnappyNoCRCFramedInputStream s) {
+    s.reset(null);
+    if (idleSnappyStreams.incrementAndGet() <= maxIdle) {
+      snappyStreams.offer(s);
+    } else {
+      idleSnappyStreams.decrementAndGet();
+    }
+  }
+
+  /**
+   * Returns an {@link Inflater} for raw deflate data ({@code nowrap}).
+   * 
+   * @return The inflater, to be passed to {@link #release(Inflater)} when done.
+   */
+  Inflater acquireInflater() {
+    final Inflater inf = inflaters.poll();
+    if (inf == null) {
+      return new Inflater(true);
+    }
+    idleInflaters.decrementAndGet();
+    return inf;
+  }
+
+  void release(final Inflater inf) {
+    inf.reset();
+    if (idleInflaters.incrementAndGet() <= maxIdle) {
+      inflaters.offer(inf);
+    } else {
+      idleInflaters.decrementAndGet();
+      inf.end();
+    }
+  }
+}
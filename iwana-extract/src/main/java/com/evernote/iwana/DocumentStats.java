@@ -0,0 +1,73 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+/**
+ * Counts what has been parsed of a document, for its {@link ParseMonitor}.
+ */
+final class DocumentStats {
+  final ParseMonitor monitor;
+  String documentName;
+  String contextClass;
+  int iwaFiles = 0;
+  long messages = 0;
+  long bytes = 0;
+  private Object event = null;
+
+  DocumentStats(final ParseMonitor monitor, final String documentName) {
+    this.monitor = monitor;
+    this.documentName = documentName;
+  }
+
+  /**
+   * Called when the parser begins parsing the document.
+   */
+  void begin() {
+    event = monitor.beginDocument(documentName);
+  }
+
+  /**
+   * Called when the parser has finished parsing the document, even if parsing failed.
+   */
+  void end() {
+    monitor.endDocument(event, documentName, contextClass, iwaFiles, messages, bytes);
+  }
+
+  /**
+   * Called when a context has been created for the document.
+   */
+  void onContext(final IwanaContext<?> context) {
+    context.stats = this;
+    if (documentName == null) {
+      documentName = context.getDocumentFilename();
+    }
+    contextClass = context.getClass().getName();
+  }
+
+  /**
+   * Called after an {@code .iwa} file has been parsed.
+   * 
+   * @param size The file's (compressed) size, or -1 if unknown.
+   * @param numMessages The number of messages dispatched.
+   */
+  void onIWAFile(final long size, final int numMessages) {
+    iwaFiles++;
+    messages += numMessages;
+    if (size > 0) {
+      bytes += size;
+    }
+  }
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+/**
+ * The type of an iWork'13 document.
+ */
+public enum DocumentType {
+  /**
+   * A Keynote presentation.
+   */
+  KEYNOTE,
+
+  /**
+   * A Pages document.
+   */
+  PAGES,
+
+  /**
+   * A Numbers spreadsheet.
+   */
+  NUMBERS,
+
+  /**
+   * The type could not be determined.
+   */
+  UNKNOWN;
+
+  /**
+   * Guesses the document type from the document's file name suffix.
+   * 
+   * @param documentName The document name, or {@code null}.
+   * @return The document type, or {@link #UNKNOWN}.
+   */
+  public static DocumentType fromDocumentName(final String documentName) {
+    if (documentName == null) {
+      return UNKNOWN;
+    } else if (documentName.endsWith(".key")) {
+      return KEYNOTE;
+    } else if (documentName.endsWith(".pages")) {
+      return PAGES;
+    } else if (documentName.endsWith(".numbers")) {
+      return NUMBERS;
+    } else {
+      return UNKNOWN;
+    }
+  }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Determines the {@link DocumentType} of a document from the contents of its index
+ * archive.
+ */
+final class DocumentTypeSniffer {
+  /**
+   * Type of the Pages {@code TP.DocumentArchive}.
+   */
+  private static final int TYPE_PAGES_DOCUMENT = 10000;
+
+  /**
+   * Type of the Keynote {@code KN.DocumentArchive} and the Numbers
+   * {@code TN.DocumentArchive}.
+   */
+  private static final int TYPE_DOCUMENT = 1;
+
+  /**
+   * Type of the Keynote {@code KN.SlideNodeArchive}, which only appears in Keynote's
+   * {@code Document.iwa}.
+   */
+  private static final int TYPE_KEYNOTE_SLIDE_NODE = 4;
+
+  /**
+   * The number of archives to look at before deciding that a document is not a Keynote
+   * presentation. The slide tree is stored right after the root and the show.
+   */
+  private static final int MAX_ARCHIVES = 64;
+
+  private DocumentTypeSniffer() {
+    throw new IllegalStateException("No instances");
+  }
+
+  /**
+   * Checks whether the given {@code .iwa} file name reveals the document type.
+   * 
+   * @param name The name of the {@code .iwa} file.
+   * @return The document type, or {@link DocumentType#UNKNOWN}.
+   */
+  static DocumentType fromIWAName(final String name) {
+    if (name.contains("/Slide") || name.contains("/MasterSlide")) {
+      return DocumentType.KEYNOTE;
+    }
+    return DocumentType.UNKNOWN;
+  }
+
+  /**
+   * Checks whether the given file holds the document root, to be checked with
+   * {@link #fromDocumentIWA(InputStream)}.
+   * 
+   * @param name The name of the file.
+   * @return {@code true} if this is the document's {@code Document.iwa}.
+   */
+  static boolean isDocumentIWA(final String name) {
+    return name.endsWith("/Document.iwa");
+  }
+
+  /**
+   * Determines the document type from the root object (and, if needed, the next few
+   * objects) of a {@code Document.iwa} file.
+   * 
+   * @param in The contents of the {@code Document.iwa} file.
+   * @return The document type, or {@link DocumentType#UNKNOWN}.
+   * @throws IOException
+   */
+  static DocumentType fromDocumentIWA(final InputStream in) throws IOException {
+    final InputStream bin = new SnappyNoCRCFramedInputStream(in, false);
+    final IWAMessageReader reader = new IWAMessageReader(bin);
+
+    final ArchiveHeader header = new ArchiveHeader();
+    boolean sawDocument = false;
+    for (int i = 0; i < MAX_ARCHIVES && reader.nextArchive(header); i++) {
+      for (int m = 0; m < header.getMessageCount(); m++) {
+        final int type = header.getType(m);
+        if (header.getIdentifier() == 1) {
+          if (type == TYPE_PAGES_DOCUMENT) {
+            return DocumentType.PAGES;
+          } else if (type == TYPE_DOCUMENT) {
+            sawDocument = true;
+          }
+        } else if (type == TYPE_KEYNOTE_SLIDE_NODE && sawDocument) {
+          return DocumentType.KEYNOTE;
+        }
+
+        reader.endMessage(reader.beginMessage(header.getLength(m)));
+      }
+    }
+
+    return sawDocument ? DocumentType.NUMBERS : DocumentType.UNKNOWN;
+  }
+}
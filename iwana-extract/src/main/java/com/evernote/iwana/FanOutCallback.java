@@ -0,0 +1,102 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The target of a {@link FanOutParser}: a list of consumers, each made of an
+ * {@link IwanaParser} and that parser's target, that are fed from a single pass over a
+ * document.
+ * 
+ * <pre>
+ * FanOutCallback consumers = new FanOutCallback()
+ *     .add(textParser, textCallback)
+ *     .add(outlineParser, outlineCallback);
+ * fanOutParser.parse(file, consumers);
+ * </pre>
+ * 
+ * Each consumer's parser only creates the consumer's {@link IwanaContext}, and thereby
+ * determines its {@link MessageActions} and post-parse processing; settings that
+ * affect reading the document, such as executors and the {@link ParseMonitor}, are taken
+ * from the {@link FanOutParser}.
+ * 
+ * The parse stops early once all consumers have requested to stop (or this callback
+ * itself has).
+ */
+public final class FanOutCallback extends IwanaParserCallback {
+  final List<Consumer<?>> consumers = new ArrayList<>();
+
+  /**
+   * Adds a consumer.
+   * 
+   * @param parser The parser that creates the consumer's contexts.
+   * @param target The consumer's target.
+   * @param <T> The consumer's target type.
+   * @return This instance.
+   */
+  public <T extends IwanaParserCallback> FanOutCallback add(final IwanaParser<T> parser,
+      final T target) {
+    consumers.add(new Consumer<T>(parser, target));
+    return this;
+  }
+
+  @Override
+  public void onBeginDocument() {
+    for (Consumer<?> c : consumers) {
+      c.target.clearStopRequest();
+      c.target.onBeginDocument();
+    }
+  }
+
+  @Override
+  public void onEndDocument() {
+    for (Consumer<?> c : consumers) {
+      c.target.onEndDocument();
+    }
+  }
+
+  @Override
+  public boolean isStopRequested() {
+    if (super.isStopRequested()) {
+      return true;
+    }
+    for (Consumer<?> c : consumers) {
+      if (!c.target.isStopRequested()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * A parser and its target.
+   */
+  static final class Consumer<T extends IwanaParserCallback> {
+    final IwanaParser<T> parser;
+    final T target;
+
+    Consumer(IwanaParser<T> parser, T target) {
+      this.parser = parser;
+      this.target = target;
+    }
+
+    IwanaContext<T> newContext(final String documentName, final DocumentType type) {
+      return parser.newContext(documentName, type, target);
+    }
+  }
+}
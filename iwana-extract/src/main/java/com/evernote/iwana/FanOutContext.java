@@ -0,0 +1,178 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The context of a {@link FanOutParser}, which forwards all events to the contexts of its
+ * consumers.
+ * 
+ * An {@code .iwa} file is parsed if any consumer accepts it, and its messages are then
+ * only passed to the consumers that accepted it (and have not been satisfied from a
+ * template cache, or requested to stop).
+ */
+final class FanOutContext extends IwanaContext<FanOutCallback> {
+  private final IwanaContext<?>[] consumers;
+  private final MessageActions actions;
+
+  /**
+   * The consumers that accepted each {@code .iwa} file, by file name.
+   */
+  private final Map<String, boolean[]> acceptedFiles = new HashMap<>();
+
+  /**
+   * The consumers that accepted the {@code .iwa} file being parsed.
+   */
+  private boolean[] active = null;
+
+  FanOutContext(final String documentFilename, final FanOutCallback target,
+      final IwanaContext<?>[] consumers, final MessageActions actions) {
+    super(documentFilename, target);
+    this.consumers = consumers;
+    this.actions = actions;
+  }
+
+  /**
+   * Returns the context of the given consumer, if messages of the current {@code .iwa}
+   * file are to be passed to it.
+   * 
+   * @param i The consumer's index.
+   * @return The consumer's context, or {@code null}.
+   */
+  IwanaContext<?> getActiveConsumer(final int i) {
+    final IwanaContext<?> consumer = consumers[i];
+    return active != null && active[i] && !consumer.isStopRequested() ? consumer : null;
+  }
+
+  @Override
+  protected MessageActions getMessageTypeActions() {
+    return actions;
+  }
+
+  @Override
+  public boolean acceptIWAFile(final String name) {
+    final boolean[] accepted = new boolean[consumers.length];
+    boolean any = false;
+    for (int i = 0; i < consumers.length; i++) {
+      accepted[i] = !consumers[i].isStopRequested() && consumers[i].acceptIWAFile(name);
+      any |= accepted[i];
+    }
+    if (any) {
+      acceptedFiles.put(name, accepted);
+    }
+    return any;
+  }
+
+  @Override
+  public boolean needsIWAFingerprint(final String name) {
+    final boolean[] accepted = acceptedFiles.get(name);
+    for (int i = 0; i < consumers.length; i++) {
+      if (accepted[i] && consumers[i].needsIWAFingerprint(name)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public boolean onIWAFingerprint(final String name, final long crc, final long size) {
+    final boolean[] accepted = acceptedFiles.get(name);
+    boolean any = false;
+    for (int i = 0; i < consumers.length; i++) {
+      if (accepted[i] && consumers[i].needsIWAFingerprint(name)
+          && consumers[i].onIWAFingerprint(name, crc, size)) {
+        accepted[i] = false;
+      }
+      any |= accepted[i];
+    }
+    if (!any) {
+      acceptedFiles.remove(name);
+    }
+    return !any;
+  }
+
+  @Override
+  void setCurrentFile(final String currentFile) {
+    super.setCurrentFile(currentFile);
+    for (IwanaContext<?> consumer : consumers) {
+      consumer.setCurrentFile(currentFile);
+    }
+  }
+
+  @Override
+  public void onBeginParseIWAFile(final String name) {
+    active = acceptedFiles.get(name);
+    if (active == null) {
+      active = new boolean[consumers.length];
+      Arrays.fill(active, true);
+    }
+    for (int i = 0; i < consumers.length; i++) {
+      if (active[i]) {
+        consumers[i].onBeginParseIWAFile(name);
+      }
+    }
+  }
+
+  @Override
+  public void onFailParseIWAFile(final String name) {
+    for (int i = 0; i < consumers.length; i++) {
+      if (active[i]) {
+        consumers[i].onFailParseIWAFile(name);
+      }
+    }
+  }
+
+  @Override
+  public void onEndParseIWAFile(final String name) {
+    for (int i = 0; i < consumers.length; i++) {
+      if (active[i]) {
+        consumers[i].onEndParseIWAFile(name);
+      }
+    }
+    acceptedFiles.remove(name);
+    active = null;
+  }
+
+  /**
+   * Passes the skipped file to each consumer; only the first one to read the stream will
+   * see its contents.
+   */
+  @Override
+  public void onSkipFile(final String name, final InputStream in) {
+    for (IwanaContext<?> consumer : consumers) {
+      consumer.onSkipFile(name, in);
+    }
+  }
+
+  @Override
+  public void onBeginParseIndexZip() {
+    for (IwanaContext<?> consumer : consumers) {
+      consumer.stats = stats;
+      consumer.onBeginParseIndexZip();
+    }
+  }
+
+  @Override
+  public void onEndParseIndexZip() {
+    for (IwanaContext<?> consumer : consumers) {
+      consumer.onEndParseIndexZip();
+    }
+  }
+}
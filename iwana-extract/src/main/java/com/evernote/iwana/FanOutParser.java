@@ -0,0 +1,169 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import com.google.protobuf.Message;
+import com.google.protobuf.Parser;
+
+/**
+ * Parses each document once for several consumers, such as a text extractor and a
+ * statistics collector, each with its own {@link IwanaParser}, target and
+ * {@link MessageActions} (see {@link FanOutCallback}).
+ * 
+ * Messages of the types that any consumer has registered an action for are decoded once,
+ * and the same (immutable) message is passed to the action of each consumer that
+ * registered the type. If the consumers' actions for a type parse messages differently,
+ * the message is decoded with the generated parser of the message class, so that it has
+ * all the fields any of them reads (see {@link MessageAction#MessageAction(Class)}).
+ * 
+ * Like other parsers, instances are not thread-safe; use one per thread.
+ */
+public class FanOutParser extends IwanaParser<FanOutCallback> {
+  /**
+   * The combined registries, by the registries of the consumers' contexts.
+   */
+  private final Map<List<MessageActions>, MessageActions> combinedActions =
+      new HashMap<>();
+
+  @Override
+  protected IwanaContext<FanOutCallback> newContext(final String documentName,
+      final FanOutCallback target) {
+    return newContext(documentName, DocumentType.fromDocumentName(documentName), target);
+  }
+
+  @Override
+  protected IwanaContext<FanOutCallback> newContext(final String documentName,
+      final DocumentType type, final FanOutCallback target) {
+    final IwanaContext<?>[] consumers = new IwanaContext<?>[target.consumers.size()];
+    final List<MessageActions> registries = new ArrayList<>(consumers.length);
+    for (int i = 0; i < consumers.length; i++) {
+      consumers[i] = target.consumers.get(i).newContext(documentName, type);
+      registries.add(consumers[i].getMessageTypeActions());
+    }
+
+    MessageActions actions = combinedActions.get(registries);
+    if (actions == null) {
+      actions = combine(registries);
+      combinedActions.put(registries, actions);
+    }
+    return new FanOutContext(documentName, target, consumers, actions);
+  }
+
+  /**
+   * Combines the registries of several consumers into one, that dispatches each message
+   * to the consumers that have registered its type.
+   * 
+   * @param registries The consumers' registries.
+   * @return The combined registry.
+   * @throws IllegalArgumentException if the consumers' actions for a type cannot share a
+   *           decoded message.
+   */
+  @SuppressWarnings("unchecked")
+  private static MessageActions combine(final List<MessageActions> registries) {
+    final TreeSet<Integer> types = new TreeSet<>();
+    for (MessageActions registry : registries) {
+      types.addAll(registry.getTypes());
+    }
+
+    final MessageActions combined = new MessageActions();
+    for (int type : types) {
+      final int[] consumers = new int[registries.size()];
+      final MessageAction<Message, IwanaContext<?>>[] actions =
+          (MessageAction<Message, IwanaContext<?>>[]) new MessageAction<?, ?>[registries
+              .size()];
+      int n = 0;
+      for (int i = 0; i < registries.size(); i++) {
+        final MessageAction<Message, IwanaContext<?>> action =
+            registries.get(i).getAction(type);
+        if (action != null) {
+          consumers[n] = i;
+          actions[n] = action;
+          n++;
+        }
+      }
+      combined.setAction(type, new FanOutAction(type, Arrays.copyOf(consumers, n),
+          Arrays.copyOf(actions, n)));
+    }
+    return combined.freeze();
+  }
+
+  /**
+   * Selects a parser whose messages all the given actions can handle.
+   */
+  private static Parser<Message> selectParser(final int type,
+      final MessageAction<Message, IwanaContext<?>>[] actions) {
+    Parser<Message> parser = actions[0].getParser();
+    boolean same = true;
+    for (MessageAction<Message, IwanaContext<?>> action : actions) {
+      same &= action.getParser() == parser;
+    }
+    if (same) {
+      return parser;
+    }
+
+    parser = null;
+    for (MessageAction<Message, IwanaContext<?>> action : actions) {
+      if (!action.usesGeneratedParser()) {
+        continue;
+      }
+      if (parser != null && action.getParser() != parser) {
+        throw new IllegalArgumentException("Consumers expect different messages for type "
+            + type);
+      }
+      parser = action.getParser();
+    }
+    if (parser == null) {
+      throw new IllegalArgumentException(
+          "Consumers use different custom parsers for type " + type);
+    }
+    return parser;
+  }
+
+  /**
+   * Passes a message to the actions of the consumers that have registered its type.
+   */
+  private static final class FanOutAction extends
+      HeaderMessageAction<Message, FanOutContext> {
+    private final int[] consumers;
+    private final MessageAction<Message, IwanaContext<?>>[] actions;
+
+    FanOutAction(final int type, final int[] consumers,
+        final MessageAction<Message, IwanaContext<?>>[] actions) {
+      super(selectParser(type, actions));
+      this.consumers = consumers;
+      this.actions = actions;
+    }
+
+    @Override
+    protected void onMessage(final Message message, final ArchiveHeader header,
+        final int index, final FanOutContext context) throws IOException {
+      for (int i = 0; i < consumers.length; i++) {
+        final IwanaContext<?> consumer = context.getActiveConsumer(consumers[i]);
+        if (consumer != null) {
+          actions[i].onMessage(message, header, index, consumer);
+        }
+      }
+    }
+  }
+}
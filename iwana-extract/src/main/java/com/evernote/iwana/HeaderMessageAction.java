@@ -0,0 +1,85 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.io.IOException;
+
+import com.evernote.iwana.pb.TSP.TSPArchiveMessages.ArchiveInfo;
+import com.evernote.iwana.pb.TSP.TSPArchiveMessages.MessageInfo;
+import com.google.protobuf.Message;
+import com.google.protobuf.Parser;
+
+/**
+ * A {@link MessageAction} that only needs the archive's identifier, or the message's
+ * type and length, so the parser does not have to decode the archive's complete
+ * {@link ArchiveInfo} for it.
+ */
+public abstract class HeaderMessageAction<T extends Message, C extends IwanaContext<?>>
+    extends MessageAction<T, C> {
+
+  /**
+   * Constructs a new {@link HeaderMessageAction} that parses protobuf messages using the
+   * given {@link Parser}.
+   * 
+   * @param parser The parser to use.
+   */
+  protected HeaderMessageAction(final Parser<T> parser) {
+    super(parser);
+  }
+
+  /**
+   * Constructs a new {@link HeaderMessageAction} that parses protobuf messages of the
+   * given generated message class.
+   * 
+   * @param messageType The generated message class.
+   * @throws IllegalArgumentException if the class has no public static {@code PARSER}.
+   * @see MessageAction#MessageAction(Class)
+   */
+  protected HeaderMessageAction(final Class<T> messageType) {
+    super(messageType);
+  }
+
+  /**
+   * Called upon encountering a particular message that matches this {@link MessageAction}
+   * (as defined by {@link MessageAction}, for example).
+   * 
+   * @param message The {@link Message}, parsed from the input using the parser set for
+   *          this instance.
+   * @param header The header of the archive that owns this message; only valid during
+   *          this call.
+   * @param index The message's index within the archive.
+   * @param context The {@link IwanaContext} that holds the parser state for this
+   *          document.
+   * @throws IOException
+   */
+  @Override
+  protected abstract void onMessage(T message, final ArchiveHeader header,
+      final int index, final C context) throws IOException;
+
+  /**
+   * Calls {@link #onMessage(Message, ArchiveHeader, int, IwanaContext)} with a header
+   * built from the given {@link ArchiveInfo}.
+   */
+  @Override
+  protected final void onMessage(T message, final ArchiveInfo ai, final MessageInfo mi,
+      final C context) throws IOException {
+    int index = ai.getMessageInfosList().indexOf(mi);
+    if (index == -1) {
+      throw new IllegalArgumentException("Message is not part of the archive");
+    }
+    onMessage(message, ArchiveHeader.of(ai), index, context);
+  }
+}
@@ -0,0 +1,186 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * A file of a document's index, backed by a (typically memory-mapped) {@link ByteBuffer}.
+ * 
+ * @see IndexBundle
+ */
+final class IWAEntry {
+  static final int STORED = 0;
+  static final int DEFLATED = 8;
+
+  private final String name;
+  private final ByteBuffer data;
+  private final int method;
+  private final long size;
+  private long crc;
+
+  /**
+   * Creates a new entry.
+   * 
+   * @param name The entry name, relative to the bundle (e.g., {@code Index/Document.iwa}).
+   * @param data The (possibly compressed) file contents.
+   * @param method The compression method, {@link #STORED} or {@link #DEFLATED}.
+   * @param size The uncompressed size.
+   * @param crc The CRC-32 of the uncompressed contents, or {@code -1} if not known.
+   */
+  IWAEntry(final String name, final ByteBuffer data, final int method, final long size,
+      final long crc) {
+    this.name = name;
+    this.data = data;
+    this.method = method;
+    this.size = size;
+    this.crc = crc;
+  }
+
+  String getName() {
+    return name;
+  }
+
+  long getSize() {
+    return size;
+  }
+
+  /**
+   * Returns the CRC-32 of the uncompressed contents, computing it if necessary.
+   * 
+   * @return The CRC-32.
+   * @throws IOException
+   */
+  long getCrc() throws IOException {
+    if (crc == -1) {
+      final CRC32 crc32 = new CRC32();
+      final byte[] buf = new byte[8192];
+      try (InputStream in = openStream()) {
+        int r;
+        while ((r = in.read(buf)) != -1) {
+          crc32.update(buf, 0, r);
+        }
+      }
+      crc = crc32.getValue();
+    }
+    return crc;
+  }
+
+  /**
+   * Opens a new {@link InputStream} for the uncompressed contents.
+   * 
+   * @return The stream.
+   */
+  InputStream openStream() {
+    return openStream(null);
+  }
+
+  /**
+   * Opens a new {@link InputStream} for the uncompressed contents, taking the
+   * {@link Inflater} from the given pool. The inflater is returned to the pool when the
+   * stream is closed.
+   * 
+   * @param pool The pool, or {@code null} to use a new {@link Inflater}.
+   * @return The stream.
+   */
+  InputStream openStream(final DecoderPool pool) {
+    final InputStream in = new ByteBufferInputStream(data.duplicate());
+    if (method == DEFLATED) {
+      // "nowrap" inflaters may need an extra dummy byte at the end of the input
+      final InputStream padded =
+          new SequenceInputStream(in, new ByteArrayInputStream(new byte[1]));
+      final Inflater inflater = pool == null ? new Inflater(true) : pool.acquireInflater();
+      return new InflaterInputStream(padded, inflater, 8192) {
+        private boolean closed = false;
+
+        @Override
+        public void close() throws IOException {
+          if (closed) {
+            return;
+          }
+          closed = true;
+          super.close();
+          if (pool == null) {
+            inf.end();
+          } else {
+            pool.release(inf);
+          }
+        }
+      };
+    }
+    return in;
+  }
+
+  /**
+   * An {@link InputStream} reading from a {@link ByteBuffer}.
+   */
+  static final class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buf;
+
+    ByteBufferInputStream(final ByteBuffer buf) {
+      this.buf = buf;
+    }
+
+    /**
+     * Returns the data that has not been read yet, without consuming it.
+     * 
+     * @return A view of the remaining data.
+     */
+    ByteBuffer remaining() {
+      return buf.slice();
+    }
+
+    @Override
+    public int read() {
+      return buf.hasRemaining() ? buf.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!buf.hasRemaining()) {
+        return -1;
+      }
+      len = Math.min(len, buf.remaining());
+      buf.get(b, off, len);
+      return len;
+    }
+
+    @Override
+    public long skip(long n) {
+      if (n <= 0) {
+        return 0;
+      }
+      final int skip = (int) Math.min(n, buf.remaining());
+      buf.position(buf.position() + skip);
+      return skip;
+    }
+
+    @Override
+    public int available() {
+      return buf.remaining();
+    }
+  }
+}
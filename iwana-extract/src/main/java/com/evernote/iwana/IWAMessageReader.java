@@ -0,0 +1,110 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Reads the archives of an uncompressed {@code .iwa} file, using a single
+ * {@link CodedInputStream} for the entire file.
+ * 
+ * Messages are read by pushing a limit for the length given in their archive's header
+ * onto the stream, and parsing the message directly from the stream:
+ * 
+ * <pre>
+ * final ArchiveHeader header = new ArchiveHeader();
+ * while (reader.nextArchive(header)) {
+ *   for (int i = 0; i &lt; header.getMessageCount(); i++) {
+ *     final int oldLimit = reader.beginMessage(header.getLength(i));
+ *     try {
+ *       parser.parseFrom(reader.getStream());
+ *     } finally {
+ *       reader.endMessage(oldLimit);
+ *     }
+ *   }
+ * }
+ * </pre>
+ */
+final class IWAMessageReader {
+  private final CodedInputStream in;
+  private boolean truncated = false;
+
+  /**
+   * Creates a new {@link IWAMessageReader}.
+   * 
+   * @param uncompressed The uncompressed contents of the {@code .iwa} file.
+   */
+  IWAMessageReader(final InputStream uncompressed) {
+    this.in = CodedInputStream.newInstance(uncompressed);
+    // the default limit of 64 MB applies to the whole file, not to single messages
+    in.setSizeLimit(Integer.MAX_VALUE);
+  }
+
+  /**
+   * Returns the stream to parse the current message from.
+   * 
+   * @return The stream.
+   */
+  CodedInputStream getStream() {
+    return in;
+  }
+
+  /**
+   * Reads the header of the next archive.
+   * 
+   * @param header The header to read into; reused for all archives.
+   * @return {@code false} if the end of the file has been reached.
+   * @throws IOException
+   */
+  boolean nextArchive(final ArchiveHeader header) throws IOException {
+    if (truncated || in.isAtEnd()) {
+      return false;
+    }
+    header.read(in, in.readRawVarint32());
+    return true;
+  }
+
+  /**
+   * Restricts the stream to the given message.
+   * 
+   * @param length The length of the message, from its archive's header.
+   * @return The previous limit, to be passed to {@link #endMessage(int)}.
+   * @throws InvalidProtocolBufferException if the message length is invalid.
+   */
+  int beginMessage(final int length) throws InvalidProtocolBufferException {
+    return in.pushLimit(length);
+  }
+
+  /**
+   * Skips the unread rest of the current message, and restores the previous limit.
+   * 
+   * @param oldLimit The limit returned by {@link #beginMessage(int)}.
+   * @throws IOException
+   */
+  void endMessage(final int oldLimit) throws IOException {
+    try {
+      in.skipRawBytes(in.getBytesUntilLimit());
+    } catch (InvalidProtocolBufferException e) {
+      // the file ends within the message; treat it as the end of the file
+      truncated = true;
+    }
+    in.popLimit(oldLimit);
+  }
+}
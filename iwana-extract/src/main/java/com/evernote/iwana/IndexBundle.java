@@ -0,0 +1,199 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipException;
+
+/**
+ * Provides random access to the files of a package-style (directory) document, either
+ * from a memory-mapped {@code Index.zip} or from an already-unpacked {@code Index/}
+ * folder.
+ */
+final class IndexBundle {
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  private static final int SIG_EOCD = 0x06054b50;
+  private static final int SIG_CENTRAL = 0x02014b50;
+  private static final int SIG_LOCAL = 0x04034b50;
+  private static final int EOCD_MIN_SIZE = 22;
+  private static final int MAX_COMMENT_SIZE = 0xffff;
+
+  private IndexBundle() {
+    throw new IllegalStateException("No instances");
+  }
+
+  /**
+   * Memory-maps the given {@code Index.zip} and reads the entries from its central
+   * directory.
+   * 
+   * @param indexZip The zip file.
+   * @return The entries, in central directory order.
+   * @throws ZipException if the zip file cannot be handled here (e.g., ZIP64); callers
+   *           may fall back to streaming the file.
+   * @throws IOException
+   */
+  static List<IWAEntry> mapIndexZip(final File indexZip) throws IOException {
+    final ByteBuffer zip = map(indexZip).order(ByteOrder.LITTLE_ENDIAN);
+
+    final int eocd = findEndOfCentralDirectory(zip);
+    final int numEntries = zip.getShort(eocd + 10) & 0xffff;
+    final long cdOffset = zip.getInt(eocd + 16) & 0xffffffffL;
+    if (numEntries == 0xffff || cdOffset == 0xffffffffL || cdOffset >= zip.limit()) {
+      throw new ZipException("Unsupported zip file (ZIP64?): " + indexZip);
+    }
+
+    final List<IWAEntry> entries = new ArrayList<>(numEntries);
+    int p = (int) cdOffset;
+    for (int i = 0; i < numEntries; i++) {
+      if (p + 46 > zip.limit() || zip.getInt(p) != SIG_CENTRAL) {
+        throw new ZipException("Invalid central directory entry in " + indexZip);
+      }
+      final int method = zip.getShort(p + 10) & 0xffff;
+      final long crc = zip.getInt(p + 16) & 0xffffffffL;
+      final long compressedSize = zip.getInt(p + 20) & 0xffffffffL;
+      final long size = zip.getInt(p + 24) & 0xffffffffL;
+      final int nameLength = zip.getShort(p + 28) & 0xffff;
+      final int extraLength = zip.getShort(p + 30) & 0xffff;
+      final int commentLength = zip.getShort(p + 32) & 0xffff;
+      final long localOffset = zip.getInt(p + 42) & 0xffffffffL;
+      final String name = readString(zip, p + 46, nameLength);
+      p += 46 + nameLength + extraLength + commentLength;
+
+      if (name.endsWith("/")) {
+        continue;
+      }
+      if (method != IWAEntry.STORED && method != IWAEntry.DEFLATED) {
+        throw new ZipException("Unsupported compression method " + method + " for "
+            + name);
+      }
+      if (compressedSize == 0xffffffffL || size == 0xffffffffL
+          || localOffset == 0xffffffffL) {
+        throw new ZipException("Unsupported zip file (ZIP64?): " + indexZip);
+      }
+
+      final int local = (int) localOffset;
+      if (local + 30 > zip.limit() || zip.getInt(local) != SIG_LOCAL) {
+        throw new ZipException("Invalid local header for " + name);
+      }
+      final int dataStart =
+          local + 30 + (zip.getShort(local + 26) & 0xffff)
+              + (zip.getShort(local + 28) & 0xffff);
+      if (dataStart + compressedSize > zip.limit()) {
+        throw new ZipException("Truncated entry: " + name);
+      }
+
+      final ByteBuffer data = zip.duplicate();
+      data.position(dataStart);
+      data.limit((int) (dataStart + compressedSize));
+      entries.add(new IWAEntry(name, data.slice(), method, size, crc));
+    }
+
+    return entries;
+  }
+
+  /**
+   * Memory-maps all files in the given unpacked {@code Index/} folder (including
+   * subfolders).
+   * 
+   * @param indexDir The {@code Index/} folder.
+   * @return The entries, sorted by name.
+   * @throws ZipException if a file is too large to be mapped; callers may fall back to
+   *           streaming the files (see {@link #listIndexDirectory(File)}).
+   * @throws IOException
+   */
+  static List<IWAEntry> mapIndexDirectory(final File indexDir) throws IOException {
+    final Map<String, File> files = listIndexDirectory(indexDir);
+    final List<IWAEntry> entries = new ArrayList<>(files.size());
+    for (Map.Entry<String, File> en : files.entrySet()) {
+      ByteBuffer data = map(en.getValue());
+      entries.add(new IWAEntry(en.getKey(), data, IWAEntry.STORED, data.remaining(), -1));
+    }
+    return entries;
+  }
+
+  /**
+   * Lists all files in the given unpacked {@code Index/} folder (including subfolders).
+   * 
+   * @param indexDir The {@code Index/} folder.
+   * @return The files by entry name (e.g., {@code Index/Document.iwa}), sorted by name.
+   * @throws IOException
+   */
+  static Map<String, File> listIndexDirectory(final File indexDir) throws IOException {
+    final Map<String, File> files = new LinkedHashMap<>();
+    addFiles(indexDir, indexDir.getName() + "/", files);
+    return files;
+  }
+
+  private static void addFiles(final File dir, final String prefix,
+      final Map<String, File> files) throws IOException {
+    final File[] list = dir.listFiles();
+    if (list == null) {
+      throw new IOException("Cannot list directory: " + dir);
+    }
+    Arrays.sort(list);
+    for (File f : list) {
+      if (f.isDirectory()) {
+        addFiles(f, prefix + f.getName() + "/", files);
+      } else if (f.isFile()) {
+        files.put(prefix + f.getName(), f);
+      }
+    }
+  }
+
+  private static MappedByteBuffer map(final File f) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(f, "r");
+        FileChannel ch = raf.getChannel()) {
+      final long size = ch.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new ZipException("File too large to map: " + f);
+      }
+      // the mapping stays valid after the channel is closed
+      return ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+  }
+
+  private static int findEndOfCentralDirectory(final ByteBuffer zip) throws ZipException {
+    final int end = zip.limit() - EOCD_MIN_SIZE;
+    final int stop = Math.max(0, end - MAX_COMMENT_SIZE);
+    for (int p = end; p >= stop; p--) {
+      if (zip.getInt(p) == SIG_EOCD) {
+        return p;
+      }
+    }
+    throw new ZipException("Could not find end of central directory");
+  }
+
+  private static String readString(final ByteBuffer buf, final int offset, final int len) {
+    final byte[] b = new byte[len];
+    final ByteBuffer dup = buf.duplicate();
+    dup.position(offset);
+    dup.get(b);
+    return new String(b, UTF8);
+  }
+}
@@ -0,0 +1,43 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.io.IOException;
+
+import org.iq80.snappy.CorruptionException;
+import org.iq80.snappy.Snappy;
+
+/**
+ * A {@link SnappyDecompressor} backed by iq80's snappy library.
+ */
+final class Iq80SnappyDecompressor implements SnappyDecompressor {
+  static final String NAME = "iq80";
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+  @Override
+  public int uncompress(final byte[] in, final int inOffset, final int inLength,
+      final byte[] out, final int outOffset) throws IOException {
+    try {
+      return Snappy.uncompress(in, inOffset, inLength, out, outOffset);
+    } catch (CorruptionException | IndexOutOfBoundsException e) {
+      throw new IOException("Corrupt snappy block", e);
+    }
+  }
+}
@@ -27,6 +27,11 @@ public abstract class IwanaContext<T extends IwanaParserCallback> {
   private final String documentFilename;
   private String currentFile;
 
+  /**
+   * Set by the parser when the context is created.
+   */
+  DocumentStats stats = null;
+
   /**
    * Creates a new {@link IwanaContext} instance.
    * 
@@ -38,6 +43,16 @@ public abstract class IwanaContext<T extends IwanaParserCallback> {
     this.target = target;
   }
 
+  /**
+   * Checks whether the target has asked the parser to stop.
+   * 
+   * @return {@code true} if parsing should stop.
+   * @see IwanaParserCallback#requestStop()
+   */
+  public boolean isStopRequested() {
+    return target != null && target.isStopRequested();
+  }
+
   /**
    * Called by the parser to check whether a given {@code .iwa} file should be considered
    * at all for parsing.
@@ -84,6 +99,41 @@ public abstract class IwanaContext<T extends IwanaParserCallback> {
   public void onEndParseIWAFile(String name) {
   }
 
+  /**
+   * Called by the parser to check whether it should compute a fingerprint of the given
+   * accepted {@code .iwa} file before parsing it.
+   * 
+   * @param name The name of the {@code .iwa} file
+   * @return {@code true} if {@link #onIWAFingerprint(String, long, long)} should be
+   *         called for this file.
+   */
+  public boolean needsIWAFingerprint(final String name) {
+    return false;
+  }
+
+  /**
+   * Called by the parser with the fingerprint of an accepted {@code .iwa} file, if
+   * requested via {@link #needsIWAFingerprint(String)}.
+   * 
+   * @param name The name of the {@code .iwa} file
+   * @param crc The CRC-32 of the file's (snappy-compressed) contents.
+   * @param size The size of the file's (snappy-compressed) contents, in bytes.
+   * @return {@code true} if the file's contents have already been provided by other means
+   *         (e.g., from a cache), and the file should not be parsed.
+   */
+  public boolean onIWAFingerprint(final String name, final long crc, final long size) {
+    return false;
+  }
+
+  /**
+   * Called when parsing the named {@code .iwa} file has failed with an exception, right
+   * before {@link #onEndParseIWAFile(String)} is called.
+   * 
+   * @param name The name of the file.
+   */
+  public void onFailParseIWAFile(String name) {
+  }
+
   /**
    * Called when the parser skips the named file (e.g., an {@code .iwa} file where
    * {@link #acceptIWAFile(String)} returned false, or any another resource
@@ -123,6 +173,31 @@ public abstract class IwanaContext<T extends IwanaParserCallback> {
    */
   protected abstract MessageActions getMessageTypeActions();
 
+  /**
+   * Tells the parser's {@link ParseMonitor} that this context begins assembling its
+   * results, after the last {@code .iwa} file has been parsed.
+   * 
+   * @return The event to pass to {@link #endAssembly(Object)}.
+   */
+  protected final Object beginAssembly() {
+    if (stats == null) {
+      return null;
+    }
+    return stats.monitor.beginAssembly(stats.documentName, getClass().getName());
+  }
+
+  /**
+   * Tells the parser's {@link ParseMonitor} that this context has finished assembling its
+   * results.
+   * 
+   * @param event The event returned by {@link #beginAssembly()}.
+   */
+  protected final void endAssembly(final Object event) {
+    if (stats != null) {
+      stats.monitor.endAssembly(event);
+    }
+  }
+
   /**
    * Returns the {@link IwanaParserCallback} target.
    * 
@@ -15,22 +15,70 @@
  */
 package com.evernote.iwana;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipInputStream;
 
 import com.evernote.iwana.pb.TSP.TSPArchiveMessages.ArchiveInfo;
 import com.evernote.iwana.pb.TSP.TSPArchiveMessages.MessageInfo;
 import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.Message;
 
 /**
  * The base class used to implement a document parser.
+ * 
+ * A parser may be used by several threads at once, as long as it is not reconfigured
+ * while parsing. It reuses its decoding buffers across documents; see {@link ParserPool}
+ * for keeping warm parsers around.
  */
 public abstract class IwanaParser<T extends IwanaParserCallback> {
+  /**
+   * The maximum number of decoded files waiting to be dispatched, per document.
+   */
+  private static final int DECODE_WINDOW = 2 * Runtime.getRuntime().availableProcessors();
+
+  /**
+   * The minimum size of an {@code .iwa} file to be decoded in a pipeline.
+   */
+  private static final long PIPELINE_MIN_SIZE = 1024 * 1024;
+
+  /**
+   * The minimum size of an {@code .iwa} file to have its chunks decompressed in parallel.
+   */
+  private static final long PARALLEL_MIN_SIZE = 8 * 1024 * 1024;
+
+  /**
+   * The default for {@link #setMaxBufferedIndexBytes(long)}.
+   */
+  public static final long DEFAULT_MAX_BUFFERED_INDEX_BYTES = 64 * 1024 * 1024;
+
+  private Executor decodeExecutor = null;
+  private Executor pipelineExecutor = null;
+  private Executor chunkExecutor = null;
+  private ParseMonitor monitor = ParseMonitor.getDefault();
+  private long maxBufferedIndexBytes = DEFAULT_MAX_BUFFERED_INDEX_BYTES;
+  private final DecoderPool decoderPool = new DecoderPool(DECODE_WINDOW + 1);
+
   /**
    * Parses the given iWork'13 file and adds the parser results to the given target
    * object.
@@ -40,16 +88,20 @@ public abstract class IwanaParser<T extends IwanaParserCallback> {
    * @throws IOException
    */
   public void parse(final File iworkFile, final T target) throws IOException {
+    target.clearStopRequest();
     target.onBeginDocument();
+    final DocumentStats stats = new DocumentStats(monitor, iworkFile.getName());
+    stats.begin();
     try {
       if (iworkFile.isDirectory()) {
-        parseDirectory(iworkFile, target);
+        parseDirectory(iworkFile, target, stats);
       } else {
         try (FileInputStream fin = new FileInputStream(iworkFile)) {
-          parseInternal(fin, target);
+          parseInternal(fin, target, stats);
         }
       }
     } finally {
+      stats.end();
       target.onEndDocument();
     }
   }
@@ -58,20 +110,281 @@ public abstract class IwanaParser<T extends IwanaParserCallback> {
    * Parses the given iWork'13 file's contents and adds the parser results to the given
    * target object.
    * 
+   * An unpacked {@code Index/} folder is preferred over {@code Index.zip}. Both are
+   * memory-mapped, and their {@code .iwa} files are decoded using the executor set via
+   * {@link #setDecodeExecutor(Executor)}, if any. Indexes that cannot be mapped (e.g.,
+   * files over 2 GB, or ZIP64) are streamed instead.
+   * 
    * @param dir The input file.
    * @param target The target.
    * @throws IOException
    */
-  private void parseDirectory(final File dir, final T target) throws IOException {
-    final IwanaContext<T> context = newContext(dir.getName(), target);
+  private void parseDirectory(final File dir, final T target, final DocumentStats stats)
+      throws IOException {
+    final File indexDir = new File(dir, "Index");
+    if (indexDir.isDirectory()) {
+      List<IWAEntry> entries;
+      try {
+        entries = IndexBundle.mapIndexDirectory(indexDir);
+      } catch (ZipException e) {
+        // a file too large to map; stream the files instead
+        parseIndexFiles(IndexBundle.listIndexDirectory(indexDir), dir.getName(), target,
+            stats);
+        return;
+      }
+      parseIndexEntries(entries, dir.getName(), target, stats);
+      return;
+    }
 
     final File indexZip = new File(dir, "Index.zip");
     if (!indexZip.isFile()) {
       throw new FileNotFoundException("Could not find Index.zip: " + indexZip);
     }
 
-    try (FileInputStream in = new FileInputStream(indexZip)) {
-      parseIndexZip(in, context);
+    List<IWAEntry> entries;
+    try {
+      entries = IndexBundle.mapIndexZip(indexZip);
+    } catch (ZipException e) {
+      // not supported for random access; stream it instead
+      try (FileInputStream in = new FileInputStream(indexZip)) {
+        parseIndexZip(in, dir.getName(), target, stats);
+      }
+      return;
+    }
+    parseIndexEntries(entries, dir.getName(), target, stats);
+  }
+
+  /**
+   * Sets an {@link Executor} used to decode the {@code .iwa} files of package-style
+   * (directory) documents in parallel. Decoded messages are still passed to the context
+   * on the calling thread, in file order.
+   * 
+   * @param executor The executor, or {@code null} to decode on the calling thread (the
+   *          default).
+   */
+  public void setDecodeExecutor(final Executor executor) {
+    this.decodeExecutor = executor;
+  }
+
+  /**
+   * Sets an {@link Executor} used to decompress the chunks of very large {@code .iwa}
+   * files in parallel, which helps documents that keep most of their data in one or two
+   * files.
+   * 
+   * Such a file is decompressed entirely before its messages are dispatched, so this
+   * needs memory for its uncompressed contents. Files in an unpacked {@code Index/} folder
+   * or stored in a zip file are read straight from their memory-mapped data; others are
+   * buffered first. Takes precedence over {@link #setPipelineExecutor(Executor)}; files
+   * decoded by the executor set via {@link #setDecodeExecutor(Executor)} are not
+   * affected.
+   * 
+   * @param executor The executor, or {@code null} to decompress chunks one after the
+   *          other (the default).
+   */
+  public void setChunkExecutor(final Executor executor) {
+    this.chunkExecutor = executor;
+  }
+
+  /**
+   * Sets the {@link ParseMonitor} that is told about the documents, {@code .iwa} files
+   * and chunks being parsed.
+   * 
+   * @param monitor The monitor, or {@code null} for {@link ParseMonitor#NONE}. Defaults
+   *          to {@link ParseMonitor#getDefault()}.
+   */
+  public void setParseMonitor(final ParseMonitor monitor) {
+    this.monitor = monitor == null ? ParseMonitor.NONE : monitor;
+  }
+
+  /**
+   * Returns the {@link ParseMonitor} set via {@link #setParseMonitor(ParseMonitor)}.
+   * 
+   * @return The monitor.
+   */
+  public ParseMonitor getParseMonitor() {
+    return monitor;
+  }
+
+  /**
+   * Limits the number of bytes buffered while the type of a streamed document is not
+   * known yet, i.e., for the entries that precede {@code Document.iwa}. Once the limit is
+   * reached, the type is guessed from the document's name instead, and the remaining
+   * entries are parsed as they are read.
+   * 
+   * @param maxBytes The limit, in bytes. Defaults to
+   *          {@link #DEFAULT_MAX_BUFFERED_INDEX_BYTES}.
+   * @throws IllegalArgumentException if the limit is negative.
+   */
+  public void setMaxBufferedIndexBytes(final long maxBytes) {
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("Negative limit: " + maxBytes);
+    }
+    this.maxBufferedIndexBytes = maxBytes;
+  }
+
+  /**
+   * Sets an {@link Executor} used to decode large {@code .iwa} files in a pipeline: while
+   * the calling thread dispatches messages, one task reads (and inflates) the file's raw
+   * chunks, and another one decompresses them.
+   * 
+   * The executor must be able to run two tasks concurrently for every document being
+   * parsed, such as a cached thread pool. Files decoded by the executor set via
+   * {@link #setDecodeExecutor(Executor)} are not pipelined.
+   * 
+   * @param executor The executor, or {@code null} to decode on the calling thread only
+   *          (the default).
+   */
+  public void setPipelineExecutor(final Executor executor) {
+    this.pipelineExecutor = executor;
+  }
+
+  private void parseIndexEntries(final List<IWAEntry> entries, final String documentName,
+      final T target, final DocumentStats stats) throws IOException {
+    DocumentType type = DocumentType.UNKNOWN;
+    for (IWAEntry e : entries) {
+      type = DocumentTypeSniffer.fromIWAName(e.getName());
+      if (type != DocumentType.UNKNOWN) {
+        break;
+      }
+    }
+    if (type == DocumentType.UNKNOWN) {
+      for (IWAEntry e : entries) {
+        if (DocumentTypeSniffer.isDocumentIWA(e.getName())) {
+          try (InputStream in = e.openStream(decoderPool)) {
+            type = DocumentTypeSniffer.fromDocumentIWA(in);
+          }
+          break;
+        }
+      }
+    }
+    if (type == DocumentType.UNKNOWN) {
+      type = DocumentType.fromDocumentName(documentName);
+    }
+
+    final IwanaContext<T> context = newContext(documentName, type, target, stats);
+    final MessageActions actions = context.getMessageTypeActions();
+    final Executor executor = decodeExecutor;
+    final ArrayDeque<PendingIWA> pending = new ArrayDeque<>();
+
+    context.onBeginParseIndexZip();
+    try {
+      boolean foundIWA = false;
+      for (final IWAEntry e : entries) {
+        if (context.isStopRequested()) {
+          return;
+        }
+        final String name = e.getName();
+        if (!name.endsWith(".iwa") || !context.acceptIWAFile(name)) {
+          try (InputStream in = e.openStream(decoderPool)) {
+            context.onSkipFile(name, in);
+          }
+          foundIWA |= name.endsWith(".iwa");
+          continue;
+        }
+        foundIWA = true;
+
+        if (context.needsIWAFingerprint(name)
+            && context.onIWAFingerprint(name, e.getCrc(), e.getSize())) {
+          continue;
+        }
+
+        if (executor == null) {
+          try (InputStream in = e.openStream(decoderPool)) {
+            parseIWAFile(in, e.getSize(), name, context);
+          }
+          continue;
+        }
+
+        final FutureTask<DecodedIWA> task = new FutureTask<>(new Callable<DecodedIWA>() {
+          @Override
+          public DecodedIWA call() throws IOException {
+            try (InputStream in = e.openStream(decoderPool)) {
+              return DecodedIWA.decode(in, actions, decoderPool, stats.monitor);
+            }
+          }
+        });
+        executor.execute(task);
+        pending.add(new PendingIWA(name, e.getSize(), task));
+
+        while (pending.size() > DECODE_WINDOW) {
+          dispatchDecoded(pending.poll(), context);
+        }
+      }
+      while (!pending.isEmpty() && !context.isStopRequested()) {
+        dispatchDecoded(pending.poll(), context);
+      }
+
+      if (!foundIWA && !context.isStopRequested()) {
+        throw new IOException("Index does not contain any .iwa files");
+      }
+    } finally {
+      for (PendingIWA p : pending) {
+        p.task.cancel(true);
+      }
+      context.onEndParseIndexZip();
+    }
+  }
+
+  /**
+   * An {@code .iwa} file that is being decoded by the decode executor.
+   */
+  private static final class PendingIWA {
+    final String name;
+    final long size;
+    final FutureTask<DecodedIWA> task;
+
+    PendingIWA(final String name, final long size, final FutureTask<DecodedIWA> task) {
+      this.name = name;
+      this.size = size;
+      this.task = task;
+    }
+  }
+
+  private void dispatchDecoded(final PendingIWA p, final IwanaContext<T> context)
+      throws IOException {
+    final DecodedIWA decoded;
+    try {
+      decoded = p.task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while decoding " + p.name);
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException("Could not decode " + p.name, cause);
+    }
+
+    final DocumentStats stats = context.stats;
+    final Object event = stats.monitor.beginIWAFile(stats.documentName, p.name);
+    int i = 0;
+    context.onBeginParseIWAFile(p.name);
+    try {
+      context.setCurrentFile(p.name);
+      final int n = decoded.messages.size();
+      for (; i < n && !context.isStopRequested(); i++) {
+        final ArchiveHeader header = decoded.headers.get(i);
+        final int index = decoded.indexes[i];
+        final Object message = decoded.messages.get(i);
+        if (message instanceof InvalidProtocolBufferException) {
+          handleInvalidProtocolBufferException(header, index,
+              (InvalidProtocolBufferException) message);
+        } else {
+          decoded.actions.get(i).onMessage((Message) message, header, index, context);
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      context.onFailParseIWAFile(p.name);
+      throw e;
+    } finally {
+      context.onEndParseIWAFile(p.name);
+      stats.onIWAFile(p.size, i);
+      stats.monitor.endIWAFile(event, p.size, i);
     }
   }
 
@@ -84,89 +397,220 @@ public abstract class IwanaParser<T extends IwanaParserCallback> {
    * @throws IOException
    */
   public void parse(final InputStream zipIn, final T target) throws IOException {
+    target.clearStopRequest();
     target.onBeginDocument();
+    final DocumentStats stats = new DocumentStats(monitor, null);
+    stats.begin();
     try {
-      parseInternal(zipIn, target);
+      parseInternal(zipIn, target, stats);
     } finally {
+      stats.end();
       target.onEndDocument();
     }
   }
 
-  private void parseInternal(final InputStream zipIn, final T target) throws IOException {
-    IwanaContext<T> context = null;
-
-    boolean hasIndexDir = false;
+  private void parseInternal(final InputStream zipIn, final T target,
+      final DocumentStats stats) throws IOException {
+    IndexEntries indexEntries = null;
 
     try (ZipInputStream zis = new ZipInputStream(zipIn)) {
       ZipEntry entry;
 
-      while ((entry = zis.getNextEntry()) != null) {
+      while ((entry = zis.getNextEntry()) != null && !target.isStopRequested()) {
         String name = entry.getName();
 
-        if (context == null && name.endsWith("/Index.zip") && !entry.isDirectory()) {
+        if (indexEntries == null && name.endsWith("/Index.zip") && !entry.isDirectory()) {
           int iSlash = name.indexOf('/');
           int iIndex = name.indexOf("/Index.zip");
 
           if (iSlash == iIndex) {
-            context = newContext(name.substring(0, iSlash), target);
-
-            parseIndexZip(zis, context);
-            break;
+            parseIndexZip(zis, name.substring(0, iSlash), target, stats);
+            return;
           }
         } else if (name.startsWith("Index/") && !entry.isDirectory()) {
           // Index data embedded in single file
 
-          if (context == null) {
-            context = newContext("yoo", target);
-            context.onBeginParseIndexZip();
-            hasIndexDir = true;
+          if (indexEntries == null) {
+            indexEntries = new IndexEntries("yoo", target, stats);
           }
 
-          parseIndexZipEntry(zis, entry, context);
+          indexEntries.onEntry(zis, entry);
         }
       }
 
-      if (context == null) {
+      if (indexEntries == null) {
+        if (target.isStopRequested()) {
+          return;
+        }
         throw new IOException("Could not find Index.zip archive");
       }
 
-      if (hasIndexDir) {
-        context.onEndParseIndexZip();
-      }
+      indexEntries.finish();
+      indexEntries.end();
     }
   }
 
-  private void parseIndexZip(final InputStream indexZipIn, final IwanaContext<T> context)
-      throws IOException {
+  private void parseIndexZip(final InputStream indexZipIn, final String documentName,
+      final T target, final DocumentStats stats) throws IOException {
+    final IndexEntries indexEntries = new IndexEntries(documentName, target, stats);
 
     try (ZipInputStream zis = new ZipInputStream(indexZipIn)) {
       ZipEntry entry;
 
-      context.onBeginParseIndexZip();
-
-      boolean foundIWA = false;
-      while ((entry = zis.getNextEntry()) != null) {
-        foundIWA |= parseIndexZipEntry(zis, entry, context);
+      while ((entry = zis.getNextEntry()) != null && !target.isStopRequested()) {
+        indexEntries.onEntry(zis, entry);
       }
+      indexEntries.finish();
 
-      if (!foundIWA) {
+      if (!indexEntries.foundIWA && !target.isStopRequested()) {
         throw new IOException("Index.zip does not contain any .iwa files");
       }
     } finally {
-      context.onEndParseIndexZip();
+      indexEntries.end();
+    }
+  }
+
+  private void parseIndexFiles(final Map<String, File> files, final String documentName,
+      final T target, final DocumentStats stats) throws IOException {
+    final IndexEntries indexEntries = new IndexEntries(documentName, target, stats);
+
+    try {
+      for (Map.Entry<String, File> en : files.entrySet()) {
+        if (target.isStopRequested()) {
+          break;
+        }
+        final ZipEntry entry = new ZipEntry(en.getKey());
+        entry.setSize(en.getValue().length());
+        try (FileInputStream in = new FileInputStream(en.getValue())) {
+          indexEntries.onEntry(in, entry);
+        }
+      }
+      indexEntries.finish();
+
+      if (!indexEntries.foundIWA && !target.isStopRequested()) {
+        throw new IOException("Index does not contain any .iwa files");
+      }
+    } finally {
+      indexEntries.end();
+    }
+  }
+
+  /**
+   * Dispatches the entries of a document's index to a context.
+   * 
+   * The context is created as soon as the {@link DocumentType} is known, either from an
+   * entry's name or from the root object in {@code Document.iwa}, so only the
+   * {@link MessageActions} relevant for that type are run. Until then, entries are
+   * buffered in memory, up to {@link IwanaParser#setMaxBufferedIndexBytes(long)} bytes.
+   */
+  private final class IndexEntries {
+    private final String documentName;
+    private final T target;
+    private final DocumentStats stats;
+    private IwanaContext<T> context = null;
+    private List<ZipEntry> pendingEntries = new ArrayList<>();
+    private List<byte[]> pendingData = new ArrayList<>();
+    private long pendingBytes = 0;
+    boolean foundIWA = false;
+
+    IndexEntries(final String documentName, final T target, final DocumentStats stats) {
+      this.documentName = documentName;
+      this.target = target;
+      this.stats = stats;
+    }
+
+    void onEntry(final InputStream zis, final ZipEntry entry) throws IOException {
+      if (context != null) {
+        foundIWA |= parseIndexZipEntry(zis, entry, context);
+        return;
+      }
+      if (entry.isDirectory()) {
+        return;
+      }
+
+      final String name = entry.getName();
+      DocumentType type = DocumentTypeSniffer.fromIWAName(name);
+      if (type != DocumentType.UNKNOWN) {
+        begin(type);
+        foundIWA |= parseIndexZipEntry(zis, entry, context);
+        return;
+      }
+
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      if (!copy(zis, out, maxBufferedIndexBytes - pendingBytes)) {
+        // too much to keep around; go by the document's name, and stream the rest
+        begin(DocumentType.UNKNOWN);
+        // the sequence closes each stream it has exhausted; the zip stream stays open
+        final InputStream in = new SequenceInputStream(
+            new ByteArrayInputStream(out.toByteArray()), new FilterInputStream(zis) {
+              @Override
+              public void close() {
+              }
+            });
+        foundIWA |= parseIndexZipEntry(in, entry, context);
+        return;
+      }
+      final byte[] data = out.toByteArray();
+      pendingEntries.add(entry);
+      pendingData.add(data);
+      pendingBytes += data.length;
+
+      if (DocumentTypeSniffer.isDocumentIWA(name)) {
+        begin(DocumentTypeSniffer.fromDocumentIWA(new ByteArrayInputStream(data)));
+      }
+    }
+
+    /**
+     * Called after the last entry.
+     */
+    void finish() throws IOException {
+      if (context == null && !target.isStopRequested()) {
+        begin(DocumentType.UNKNOWN);
+      }
+    }
+
+    /**
+     * Called at the very end, even if parsing failed.
+     */
+    void end() {
+      if (context != null) {
+        context.onEndParseIndexZip();
+      }
+    }
+
+    private void begin(DocumentType type) throws IOException {
+      if (type == DocumentType.UNKNOWN) {
+        type = DocumentType.fromDocumentName(documentName);
+      }
+      if (type == DocumentType.UNKNOWN) {
+        // single-file documents use a placeholder name
+        type = DocumentType.fromDocumentName(stats.documentName);
+      }
+      context = newContext(documentName, type, target, stats);
+      context.onBeginParseIndexZip();
+
+      final List<ZipEntry> entries = pendingEntries;
+      final List<byte[]> data = pendingData;
+      pendingEntries = null;
+      pendingData = null;
+      for (int i = 0, n = entries.size(); i < n && !context.isStopRequested(); i++) {
+        final InputStream in = new ByteArrayInputStream(data.get(i));
+        data.set(i, null);
+        foundIWA |= parseIndexZipEntry(in, entries.get(i), context);
+      }
     }
   }
 
   /**
-   * Processes an .iwa file, provided as a zip entry in a {@link ZipInputStream}.
+   * Processes an .iwa file, provided as a zip entry.
    * 
-   * @param zis The input stream.
+   * @param zis The input stream, positioned at the entry's data.
    * @param entry The zip entry.
    * @param context Our parser context.
    * @return {@code true} if the entry was a valid *.iwa file.
    * @throws IOException
    */
-  private boolean parseIndexZipEntry(final ZipInputStream zis, final ZipEntry entry,
+  private boolean parseIndexZipEntry(final InputStream zis, final ZipEntry entry,
       final IwanaContext<T> context) throws IOException {
     if (entry.isDirectory()) {
       return false;
@@ -175,13 +619,25 @@ public abstract class IwanaParser<T extends IwanaParserCallback> {
 
     if (name.endsWith(".iwa")) {
       if (context.acceptIWAFile(name)) {
-        context.onBeginParseIWAFile(name);
-        try {
-          context.setCurrentFile(name);
-          parseIWA(zis, name, context);
-        } finally {
-          context.onEndParseIWAFile(name);
+        InputStream in = zis;
+        long size = entry.getSize();
+        if (context.needsIWAFingerprint(name)) {
+          long crc = entry.getCrc();
+          if (crc == -1 || size == -1) {
+            // not known in advance (entry uses a data descriptor); buffer the entry
+            final byte[] data = readFully(zis);
+            final CRC32 crc32 = new CRC32();
+            crc32.update(data);
+            crc = crc32.getValue();
+            size = data.length;
+            in = new ByteArrayInputStream(data);
+          }
+          if (context.onIWAFingerprint(name, crc, size)) {
+            return true;
+          }
         }
+
+        parseIWAFile(in, size, name, context);
       } else {
         context.onSkipFile(name, zis);
       }
@@ -194,27 +650,120 @@ public abstract class IwanaParser<T extends IwanaParserCallback> {
     }
   }
 
-  private void parseIWA(final InputStream in, final String filename,
+  private static byte[] readFully(final InputStream in) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] buf = new byte[8192];
+    int r;
+    while ((r = in.read(buf)) != -1) {
+      out.write(buf, 0, r);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Copies the given stream, up to the given number of bytes.
+   * 
+   * @param in The stream.
+   * @param out Receives the bytes read.
+   * @param maxBytes The maximum number of bytes to copy.
+   * @return {@code true} if the stream has been copied to its end; {@code false} if it
+   *         holds more than {@code maxBytes} bytes.
+   * @throws IOException
+   */
+  private static boolean copy(final InputStream in, final ByteArrayOutputStream out,
+      final long maxBytes) throws IOException {
+    final byte[] buf = new byte[8192];
+    while (true) {
+      final int len = (int) Math.min(buf.length, maxBytes - out.size() + 1);
+      final int r = in.read(buf, 0, len);
+      if (r == -1) {
+        return true;
+      }
+      out.write(buf, 0, r);
+      if (out.size() > maxBytes) {
+        return false;
+      }
+    }
+  }
+
+  private void parseIWAFile(final InputStream in, final long size, final String name,
       final IwanaContext<T> context) throws IOException {
-    final MessageActions actions = context.getMessageTypeActions();
-    final InputStream bin = new SnappyNoCRCFramedInputStream(in, false);
-    final RestrictedSizeInputStream rsIn = new RestrictedSizeInputStream(bin, 0);
+    final DocumentStats stats = context.stats;
+    final Object event = stats.monitor.beginIWAFile(stats.documentName, name);
+    final int[] messages = new int[1];
+    context.onBeginParseIWAFile(name);
+    try {
+      context.setCurrentFile(name);
+      parseIWA(in, size, name, context, messages);
+    } catch (IOException | RuntimeException e) {
+      context.onFailParseIWAFile(name);
+      throw e;
+    } finally {
+      context.onEndParseIWAFile(name);
+      stats.onIWAFile(size, messages[0]);
+      stats.monitor.endIWAFile(event, size, messages[0]);
+    }
+  }
 
-    while (!Thread.interrupted()) {
-      ArchiveInfo ai;
-      ai = ArchiveInfo.parseDelimitedFrom(bin);
-      if (ai == null) {
-        break;
+  /**
+   * Parses an {@code .iwa} file.
+   * 
+   * @param in The file's contents.
+   * @param size The file's size, or -1 if unknown.
+   * @param filename The file's name.
+   * @param context Our parser context.
+   * @param messages Counts the messages dispatched.
+   * @throws IOException
+   */
+  private void parseIWA(final InputStream in, final long size, final String filename,
+      final IwanaContext<T> context, final int[] messages) throws IOException {
+    final ParseMonitor monitor = context.stats.monitor;
+    if (chunkExecutor != null && size >= PARALLEL_MIN_SIZE) {
+      final ByteBuffer data = in instanceof IWAEntry.ByteBufferInputStream
+          ? ((IWAEntry.ByteBufferInputStream) in).remaining()
+          : ByteBuffer.wrap(readFully(in));
+      final byte[] uncompressed = ParallelSnappyDecoder.decode(data, chunkExecutor,
+          SnappyDecompressors.getDefault(), monitor);
+      dispatchIWA(new ByteArrayInputStream(uncompressed), context, messages);
+      return;
+    }
+
+    final Executor executor = pipelineExecutor;
+    if (executor != null && (size == -1 || size >= PIPELINE_MIN_SIZE)) {
+      try (InputStream bin = new PipelinedSnappyInputStream(in, executor,
+          SnappyDecompressors.getDefault(), monitor)) {
+        dispatchIWA(bin, context, messages);
       }
+      return;
+    }
 
-      for (MessageInfo mi : ai.getMessageInfosList()) {
-        rsIn.setNumBytesReadable(mi.getLength());
+    final SnappyNoCRCFramedInputStream bin = decoderPool.acquireSnappyStream(in, monitor);
+    try {
+      dispatchIWA(bin, context, messages);
+    } finally {
+      decoderPool.release(bin);
+    }
+  }
+
+  private void dispatchIWA(final InputStream bin, final IwanaContext<T> context,
+      final int[] messages) throws IOException {
+    final MessageActions actions = context.getMessageTypeActions();
+    final IWAMessageReader reader = new IWAMessageReader(bin);
+
+    final ArchiveHeader header = new ArchiveHeader();
+
+    while (!Thread.interrupted() && !context.isStopRequested()
+        && reader.nextArchive(header)) {
+      final int n = header.getMessageCount();
+      for (int i = 0; i < n; i++) {
+        final int oldLimit = reader.beginMessage(header.getLength(i));
+        messages[0]++;
         try {
-          actions.onMessage(rsIn, ai, mi, context);
+          actions.onMessage(reader.getStream(), header, i, context);
         } catch (InvalidProtocolBufferException e) {
-          handleInvalidProtocolBufferException(ai, mi, e);
+          handleInvalidProtocolBufferException(header, i, e);
         } finally {
-          rsIn.skipRest();
+          reader.endMessage(oldLimit);
         }
       }
     }
@@ -223,9 +772,27 @@ public abstract class IwanaParser<T extends IwanaParserCallback> {
   /**
    * Called upon experiencing a {@link InvalidProtocolBufferException} while parsing.
    * 
-   * The default operation is to throw the exception. Other parsers may want to skip over
+   * The default operation is to call the variant that takes the decoded
+   * {@link ArchiveInfo}, which throws the exception. Other parsers may want to skip over
    * the message under certain circumstances and may override this method.
    * 
+   * @param header The header of the archive that owns the message that caused the
+   *          exception; only valid during this call.
+   * @param index The message's index within the archive.
+   * @param e The caught exception.
+   */
+  protected void handleInvalidProtocolBufferException(ArchiveHeader header, int index,
+      InvalidProtocolBufferException e) throws InvalidProtocolBufferException {
+    handleInvalidProtocolBufferException(header.getArchiveInfo(),
+        header.getMessageInfo(index), e);
+  }
+
+  /**
+   * Called upon experiencing a {@link InvalidProtocolBufferException} while parsing, with
+   * the decoded {@link ArchiveInfo}.
+   * 
+   * The default operation is to throw the exception.
+   * 
    * @param ai The {@link ArchiveInfo} that owns the message that caused the exception.
    * @param mi The {@link MessageInfo} that describes the message that caused the
    *          exception.
@@ -244,4 +811,27 @@ public abstract class IwanaParser<T extends IwanaParserCallback> {
    * @return The context.
    */
   protected abstract IwanaContext<T> newContext(String documentName, T target);
+
+  /**
+   * Creates a new parser context for a document of the given type.
+   * 
+   * The type has been determined from the document's contents where possible, falling
+   * back to {@link DocumentType#fromDocumentName(String)}. The default implementation
+   * ignores the type and calls {@link #newContext(String, IwanaParserCallback)}.
+   * 
+   * @param documentName The document name (parsed).
+   * @param type The document type.
+   * @param target The target object.
+   * @return The context.
+   */
+  protected IwanaContext<T> newContext(String documentName, DocumentType type, T target) {
+    return newContext(documentName, target);
+  }
+
+  private IwanaContext<T> newContext(final String documentName, final DocumentType type,
+      final T target, final DocumentStats stats) {
+    final IwanaContext<T> context = newContext(documentName, type, target);
+    stats.onContext(context);
+    return context;
+  }
 }
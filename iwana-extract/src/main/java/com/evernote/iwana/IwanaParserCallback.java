@@ -19,6 +19,8 @@ package com.evernote.iwana;
  * A base class for parser target objects.
  */
 public class IwanaParserCallback {
+  private volatile boolean stopRequested = false;
+
   /**
    * Called before parsing a document.
    */
@@ -30,4 +32,35 @@ public class IwanaParserCallback {
    */
   public void onEndDocument() {
   }
+
+  /**
+   * Asks the parser to stop parsing the current document as soon as possible, for
+   * example once enough text has been extracted.
+   * 
+   * The parser then skips the rest of the document (remaining messages, {@code .iwa}
+   * files and zip entries), closes its streams, calls {@link #onEndDocument()} and returns
+   * normally; the output received so far is the (partial) result.
+   * 
+   * May be called from any callback method, or from another thread (e.g., on a
+   * deadline). The request is cleared when the parser starts the next document.
+   */
+  public void requestStop() {
+    stopRequested = true;
+  }
+
+  /**
+   * Checks whether {@link #requestStop()} has been called for the current document.
+   * 
+   * @return {@code true} if the parser should stop.
+   */
+  public boolean isStopRequested() {
+    return stopRequested;
+  }
+
+  /**
+   * Called by the parser before the beginning of a document.
+   */
+  void clearStopRequest() {
+    stopRequested = false;
+  }
 }
@@ -16,10 +16,12 @@
 package com.evernote.iwana;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 
 import com.evernote.iwana.pb.TSP.TSPArchiveMessages.ArchiveInfo;
 import com.evernote.iwana.pb.TSP.TSPArchiveMessages.MessageInfo;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
 import com.google.protobuf.Parser;
@@ -31,7 +33,8 @@ import com.google.protobuf.Parser;
  * @see MessageActions The registry that maps message types to {@link MessageAction}s.
  */
 public abstract class MessageAction<T extends Message, C extends IwanaContext<?>> {
-  private final Parser<T> parser;
+  private final Field parserField;
+  private volatile Parser<T> parser;
 
   /**
    * Constructs a new {@link MessageAction} that parses protobuf messages using the given
@@ -40,35 +43,130 @@ public abstract class MessageAction<T extends Message, C extends IwanaContext<?>
    * @param parser The parser to use.
    */
   protected MessageAction(final Parser<T> parser) {
+    this.parserField = null;
     this.parser = parser;
   }
 
+  /**
+   * Constructs a new {@link MessageAction} that parses protobuf messages of the given
+   * generated message class.
+   * 
+   * The class's {@code PARSER} is only resolved when the first message is parsed (or
+   * upon {@link MessageActions#warmUp()}), so registering an action does not initialize
+   * the generated class, and the default instances of all its submessages.
+   * 
+   * @param messageType The generated message class.
+   * @throws IllegalArgumentException if the class has no public static {@code PARSER}.
+   */
+  protected MessageAction(final Class<T> messageType) {
+    try {
+      this.parserField = messageType.getField("PARSER");
+    } catch (NoSuchFieldException e) {
+      throw new IllegalArgumentException("Not a generated message class: " + messageType,
+          e);
+    }
+    if (!Modifier.isStatic(parserField.getModifiers())
+        || !Parser.class.isAssignableFrom(parserField.getType())) {
+      throw new IllegalArgumentException("Not a generated message class: " + messageType);
+    }
+  }
+
+  /**
+   * Returns the parser used by this action, initializing the message class if necessary.
+   * 
+   * @return The parser.
+   */
+  @SuppressWarnings("unchecked")
+  final Parser<T> getParser() {
+    Parser<T> p = parser;
+    if (p == null) {
+      try {
+        p = (Parser<T>) parserField.get(null);
+      } catch (IllegalAccessException e) {
+        throw new IllegalStateException(e);
+      }
+      parser = p;
+    }
+    return p;
+  }
+
+  /**
+   * Checks whether this action parses messages with the {@code PARSER} of a generated
+   * message class (see {@link #MessageAction(Class)}), rather than a custom parser, which
+   * may only read some of the fields.
+   * 
+   * @return {@code true} if messages are parsed with the generated parser.
+   */
+  final boolean usesGeneratedParser() {
+    return parserField != null;
+  }
+
   /**
    * Called by the {@link IwanaParser} when encountering a particular message that matches
    * this {@link MessageAction} (as defined by {@link MessageAction}, for example).
    * 
    * The default implementation calls this instance's parser to read the message from the
-   * {@link InputStream} and to convert it into a protobuf Message, then calls
-   * {@link #onMessage(Message, ArchiveInfo, MessageInfo, IwanaContext)}.
+   * {@link CodedInputStream} and to convert it into a protobuf Message, then calls
+   * {@link #onMessage(Message, ArchiveHeader, int, IwanaContext)}.
    * 
-   * @param in The {@link InputStream} containing the payload of the message object.
-   * @param ai The {@link ArchiveInfo} that owns this message.
-   * @param mi The {@link MessageInfo} that describes this message.
+   * @param in The {@link CodedInputStream}, limited to the message's payload.
+   * @param header The header of the archive that owns this message.
+   * @param index The message's index within the archive.
    * @param context The {@link IwanaContext} that holds the parser state for this
    *          document.
    * @throws InvalidProtocolBufferException
    * @throws IOException
    */
-  void onMessage(InputStream in, final ArchiveInfo ai, final MessageInfo mi,
+  void onMessage(CodedInputStream in, final ArchiveHeader header, final int index,
       final C context) throws InvalidProtocolBufferException, IOException {
-    T message = parser.parseFrom(in);
-    onMessage(message, ai, mi, context);
+    T message = parse(in);
+    onMessage(message, header, index, context);
+  }
+
+  /**
+   * Parses a message using this instance's parser, without performing any action.
+   * 
+   * Parsers are stateless, so this method may be called from any thread.
+   * 
+   * @param in The {@link CodedInputStream}, limited to the message's payload.
+   * @return The parsed message.
+   * @throws InvalidProtocolBufferException
+   */
+  T parse(CodedInputStream in) throws InvalidProtocolBufferException {
+    return getParser().parseFrom(in);
   }
 
   /**
    * Called upon encountering a particular message that matches this {@link MessageAction}
    * (as defined by {@link MessageAction}, for example).
    * 
+   * The default implementation decodes the archive's complete {@link ArchiveInfo}, and
+   * calls {@link #onMessage(Message, ArchiveInfo, MessageInfo, IwanaContext)}. Actions
+   * that only need the archive's identifier, or the message's type and length, may
+   * override this method instead, which does not decode anything (see
+   * {@link HeaderMessageAction}).
+   * 
+   * @param message The {@link Message}, parsed from the input using the parser set for
+   *          this instance.
+   * @param header The header of the archive that owns this message; only valid during
+   *          this call.
+   * @param index The message's index within the archive.
+   * @param context The {@link IwanaContext} that holds the parser state for this
+   *          document.
+   * @throws IOException
+   */
+  protected void onMessage(T message, final ArchiveHeader header, final int index,
+      final C context) throws IOException {
+    onMessage(message, header.getArchiveInfo(), header.getMessageInfo(index), context);
+  }
+
+  /**
+   * Called upon encountering a particular message that matches this {@link MessageAction}
+   * (as defined by {@link MessageAction}, for example).
+   * 
+   * Actions that do not need the object or data references of the message should extend
+   * {@link HeaderMessageAction} instead, which does not decode the {@link ArchiveInfo}.
+   * 
    * @param message The {@link Message}, parsed from the input using the parser set for
    *          this instance.
    * @param ai The {@link ArchiveInfo} that owns this message.
@@ -16,12 +16,12 @@
 package com.evernote.iwana;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 
-import com.evernote.iwana.pb.TSP.TSPArchiveMessages.ArchiveInfo;
-import com.evernote.iwana.pb.TSP.TSPArchiveMessages.MessageInfo;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Message;
 
@@ -31,11 +31,19 @@ import com.google.protobuf.Message;
  * A {@link MessageAction} can be called for one or more message types. A type is an
  * application-specific integer value that is defined in an Objective-C
  * {@code TSPRegistry} instance.
+ * 
+ * Once all actions are registered, a registry should be {@link #freeze() frozen}. A
+ * frozen registry is immutable, and may be shared among threads once it has been safely
+ * published (e.g., via a {@code static final} field).
  */
 public class MessageActions {
   private final Map<Integer, MessageAction<? extends Message, ? extends IwanaContext<?>>> actions =
       new HashMap<>();
 
+  // open-addressing table, built by freeze(), so lookups do not box the type
+  private int[] frozenTypes = null;
+  private MessageAction<?, ?>[] frozenActions = null;
+
   /**
    * Creates a new {@link MessageAction} registry.
    */
@@ -59,6 +67,7 @@ public class MessageActions {
    */
   public void setAction(final int type,
       final MessageAction<? extends Message, ? extends IwanaContext<?>> action) {
+    checkNotFrozen();
     actions.put(type, action);
   }
 
@@ -71,31 +80,143 @@ public class MessageActions {
    */
   public void setAction(final int[] types,
       final MessageAction<? extends Message, ? extends IwanaContext<?>> ma) {
+    checkNotFrozen();
     for (int type : types) {
       actions.put(type, ma);
     }
   }
 
   /**
-   * Called by the {@link IwanaParser} for a given {@link MessageInfo}.
+   * Unregisters the actions for the given types, so messages of these types are skipped
+   * without being decoded.
+   * 
+   * @param types The types.
+   */
+  public void removeAction(final int... types) {
+    checkNotFrozen();
+    for (int type : types) {
+      actions.remove(type);
+    }
+  }
+
+  /**
+   * Returns the {@link MessageAction} registered for the given type.
+   * 
+   * @param type The type.
+   * @return The action, or {@code null} if none is registered.
+   */
+  @SuppressWarnings("unchecked")
+  MessageAction<Message, IwanaContext<?>> getAction(final int type) {
+    final int[] types = frozenTypes;
+    if (types == null) {
+      return (MessageAction<Message, IwanaContext<?>>) actions.get(type);
+    }
+    final MessageAction<?, ?>[] table = frozenActions;
+    final int mask = types.length - 1;
+    for (int i = mix(type) & mask;; i = (i + 1) & mask) {
+      final MessageAction<?, ?> action = table[i];
+      if (action == null || types[i] == type) {
+        return (MessageAction<Message, IwanaContext<?>>) action;
+      }
+    }
+  }
+
+  /**
+   * Returns the types that have an action registered.
+   * 
+   * @return The types (unmodifiable).
+   */
+  Set<Integer> getTypes() {
+    return Collections.unmodifiableSet(actions.keySet());
+  }
+
+  /**
+   * Makes this registry immutable. Any further attempt to register an action throws an
+   * {@link IllegalStateException}.
+   * 
+   * Registries created using {@link #MessageActions(MessageActions)} from a frozen
+   * registry are not frozen.
+   * 
+   * @return This instance.
+   */
+  public MessageActions freeze() {
+    if (frozenTypes != null) {
+      return this;
+    }
+    int capacity = 8;
+    while (capacity < actions.size() * 2) {
+      capacity <<= 1;
+    }
+    final int[] types = new int[capacity];
+    final MessageAction<?, ?>[] table = new MessageAction<?, ?>[capacity];
+    for (Map.Entry<Integer, ?> en : actions.entrySet()) {
+      final int type = en.getKey();
+      int i = mix(type) & (capacity - 1);
+      while (table[i] != null) {
+        i = (i + 1) & (capacity - 1);
+      }
+      types[i] = type;
+      table[i] = (MessageAction<?, ?>) en.getValue();
+    }
+    frozenActions = table;
+    frozenTypes = types;
+    return this;
+  }
+
+  /**
+   * Checks whether this registry has been frozen.
+   * 
+   * @return {@code true} if frozen.
+   * @see #freeze()
+   */
+  public boolean isFrozen() {
+    return frozenTypes != null;
+  }
+
+  /**
+   * Initializes the parsers of all registered actions, and thereby the generated message
+   * classes, so that this does not happen while parsing the first document.
+   * 
+   * @return This instance.
+   * @see MessageAction#MessageAction(Class)
+   */
+  public MessageActions warmUp() {
+    for (MessageAction<?, ?> action : actions.values()) {
+      action.getParser();
+    }
+    return this;
+  }
+
+  private void checkNotFrozen() {
+    if (frozenTypes != null) {
+      throw new IllegalStateException("MessageActions registry is frozen");
+    }
+  }
+
+  private static int mix(final int type) {
+    final int h = type * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Called by the {@link IwanaParser} for a given message.
    * 
    * If no action is associated with the message type, the message is silently skipped.
    * 
-   * @param in The {@link InputStream} containing the payload of the message object.
-   * @param ai The {@link ArchiveInfo} that owns this message.
-   * @param mi The {@link MessageInfo} that describes this message.
+   * @param in The {@link CodedInputStream}, limited to the message's payload.
+   * @param header The header of the archive that owns this message.
+   * @param index The message's index within the archive.
    * @param context The {@link IwanaContext} that holds the parser state for this
    *          document.
    * @throws InvalidProtocolBufferException
    * @throws IOException
    */
-  @SuppressWarnings("unchecked")
-  void onMessage(final InputStream in, final ArchiveInfo ai, final MessageInfo mi,
+  void onMessage(final CodedInputStream in, final ArchiveHeader header, final int index,
       IwanaContext<?> context) throws InvalidProtocolBufferException, IOException {
-    final MessageAction<? extends Message, ? extends IwanaContext<?>> action =
-        actions.get(mi.getType());
+    final MessageAction<Message, IwanaContext<?>> action =
+        getAction(header.getType(index));
     if (action != null) {
-      ((MessageAction<Message, IwanaContext<?>>) action).onMessage(in, ai, mi, context);
+      action.onMessage(in, header, index, context);
     }
   }
 }
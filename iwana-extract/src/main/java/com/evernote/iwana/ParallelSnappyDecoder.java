@@ -0,0 +1,283 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Decompresses an entire snappy-framed {@code .iwa} file at once, decompressing its
+ * chunks in parallel.
+ * 
+ * The chunk headers are scanned first; the uncompressed size of each chunk is known from
+ * its header (uncompressed chunks) or from the snappy preamble (compressed chunks), so
+ * every chunk can be decompressed independently into its own region of a single output
+ * array. Consecutive chunks are batched into tasks of about {@value #TASK_SIZE} bytes of
+ * output.
+ * 
+ * Unlike {@link SnappyNoCRCFramedInputStream}, this needs the whole file (e.g., a
+ * memory-mapped {@code .iwa} file) and memory for its entire uncompressed contents, so it
+ * is only worth it for very large files.
+ */
+final class ParallelSnappyDecoder {
+  static final int TASK_SIZE = 1024 * 1024;
+
+  private static final int CHUNK_COMPRESSED = 0;
+  private static final int CHUNK_UNCOMPRESSED = 1;
+  private static final int CHUNK_STREAM_IDENTIFIER = 0xff;
+
+  private static final int MAX_SIZE = Integer.MAX_VALUE - 8;
+
+  /**
+   * The maximum uncompressed size of a chunk, as with {@link SnappyNoCRCFramedInputStream}.
+   */
+  private static final int MAX_CHUNK_SIZE = 64 * 1024;
+
+  /**
+   * More than the number of bytes a decompressor may write past the end of a block.
+   */
+  private static final int MAX_OVERRUN = 64;
+
+  private final ByteBuffer in;
+  private final SnappyDecompressor decompressor;
+  private final ParseMonitor monitor;
+
+  // the compressed and uncompressed chunks, in file order
+  private int numChunks = 0;
+  private int[] types = new int[64];
+  private int[] inOffsets = new int[64];
+  private int[] inLengths = new int[64];
+  private int[] outOffsets = new int[65];
+
+  private ParallelSnappyDecoder(final ByteBuffer in, final SnappyDecompressor decompressor,
+      final ParseMonitor monitor) {
+    this.in = in;
+    this.decompressor = decompressor;
+    this.monitor = monitor;
+  }
+
+  /**
+   * Decompresses the given snappy-framed data.
+   * 
+   * @param in The data, from its position to its limit; the buffer itself is not
+   *          modified.
+   * @param executor The executor to run the decompression tasks; the calling thread runs
+   *          one of them, and waits for the others.
+   * @param decompressor The decompressor for compressed chunks.
+   * @param monitor The monitor to report decompressed chunks to.
+   * @return The uncompressed data.
+   * @throws IOException if the data is corrupt, or the thread is interrupted.
+   */
+  static byte[] decode(final ByteBuffer in, final Executor executor,
+      final SnappyDecompressor decompressor, final ParseMonitor monitor)
+      throws IOException {
+    final ParallelSnappyDecoder d =
+        new ParallelSnappyDecoder(in.slice(), decompressor, monitor);
+    d.scan();
+    return d.decompress(executor);
+  }
+
+  /**
+   * Scans the chunk headers, and computes where each chunk goes in the output.
+   */
+  private void scan() throws IOException {
+    final int limit = in.limit();
+    int pos = 0;
+    long outOffset = 0;
+    while (limit - pos >= 4) {
+      final int type = in.get(pos) & 0xFF;
+      final int len = ((in.get(pos + 3) & 0xFF) << 16) | ((in.get(pos + 2) & 0xFF) << 8)
+          | (in.get(pos + 1) & 0xFF);
+      pos += 4;
+      if (len > limit - pos) {
+        throw new IOException("Truncated snappy chunk");
+      }
+
+      if (type == CHUNK_COMPRESSED || type == CHUNK_UNCOMPRESSED) {
+        final int outLength = type == CHUNK_COMPRESSED ? uncompressedLength(pos, len) : len;
+        if (outLength > MAX_CHUNK_SIZE) {
+          // the length is untrusted, and the output is allocated up front
+          throw new IOException("Uncompressed chunk size exceeds " + MAX_CHUNK_SIZE
+              + " bytes: " + outLength);
+        }
+        outOffset += outLength;
+        if (outOffset > MAX_SIZE) {
+          throw new IOException("Uncompressed size exceeds " + MAX_SIZE + " bytes");
+        }
+        if (numChunks == types.length) {
+          final int capacity = numChunks * 2;
+          types = Arrays.copyOf(types, capacity);
+          inOffsets = Arrays.copyOf(inOffsets, capacity);
+          inLengths = Arrays.copyOf(inLengths, capacity);
+          outOffsets = Arrays.copyOf(outOffsets, capacity + 1);
+        }
+        types[numChunks] = type;
+        inOffsets[numChunks] = pos;
+        inLengths[numChunks] = len;
+        outOffsets[++numChunks] = (int) outOffset;
+      } else if (type == CHUNK_STREAM_IDENTIFIER) {
+        if (len != 6 || in.get(pos) != 0x73 || in.get(pos + 1) != 0x4e
+            || in.get(pos + 2) != 0x61 || in.get(pos + 3) != 0x50
+            || in.get(pos + 4) != 0x70 || in.get(pos + 5) != 0x59) {
+          throw new IOException("Could not find magic bytes in Stream identifier");
+        }
+      } else if ((type & 0x80) == 0) {
+        throw new IOException("Detected unskippable snappy chunk; type=" + type
+            + "; len=" + len);
+      }
+      // padding and other skippable chunks are ignored
+
+      pos += len;
+    }
+  }
+
+  /**
+   * Reads the uncompressed length from the preamble of a compressed chunk (a varint).
+   */
+  private int uncompressedLength(final int offset, final int len) throws IOException {
+    int result = 0;
+    for (int i = 0; i < 5 && i < len; i++) {
+      final int b = in.get(offset + i) & 0xFF;
+      result |= (b & 0x7F) << (7 * i);
+      if ((b & 0x80) == 0) {
+        if (result < 0) {
+          break;
+        }
+        return result;
+      }
+    }
+    throw new IOException("Corrupt snappy block: invalid uncompressed length");
+  }
+
+  private byte[] decompress(final Executor executor) throws IOException {
+    final byte[] out = new byte[outOffsets[numChunks]];
+
+    final List<FutureTask<Void>> tasks = new ArrayList<>();
+    int first = 0;
+    while (first < numChunks) {
+      int end = first + 1;
+      while (end < numChunks && outOffsets[end] - outOffsets[first] < TASK_SIZE) {
+        end++;
+      }
+      final int from = first;
+      final int to = end;
+      tasks.add(new FutureTask<>(new Callable<Void>() {
+        @Override
+        public Void call() throws IOException {
+          decompress(from, to, out);
+          return null;
+        }
+      }));
+      first = end;
+    }
+
+    // the last batch is run by this thread
+    try {
+      for (int i = 0, n = tasks.size() - 1; i < n; i++) {
+        executor.execute(tasks.get(i));
+      }
+      if (!tasks.isEmpty()) {
+        tasks.get(tasks.size() - 1).run();
+      }
+      for (FutureTask<Void> task : tasks) {
+        task.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while decompressing");
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException("Could not decompress", cause);
+    } finally {
+      for (FutureTask<Void> task : tasks) {
+        task.cancel(false);
+      }
+    }
+
+    return out;
+  }
+
+  /**
+   * Decompresses chunks {@code from} (inclusive) to {@code to} (exclusive).
+   */
+  private void decompress(final int from, final int to, final byte[] out)
+      throws IOException {
+    final ByteBuffer buf = in.duplicate();
+    byte[] scratch = null;
+    for (int i = from; i < to; i++) {
+      final int len = inLengths[i];
+      final int outLength = outOffsets[i + 1] - outOffsets[i];
+      if (types[i] == CHUNK_UNCOMPRESSED) {
+        buf.position(inOffsets[i]);
+        buf.get(out, outOffsets[i], len);
+        continue;
+      }
+
+      final byte[] src;
+      final int srcOffset;
+      if (buf.hasArray()) {
+        src = buf.array();
+        srcOffset = buf.arrayOffset() + inOffsets[i];
+      } else {
+        // e.g., memory-mapped
+        if (scratch == null || scratch.length < len) {
+          scratch = new byte[Math.max(len, 128 * 1024)];
+        }
+        buf.position(inOffsets[i]);
+        buf.get(scratch, 0, len);
+        src = scratch;
+        srcOffset = 0;
+      }
+
+      // decompressors may write a few bytes past the end of a block, which are then
+      // overwritten by the following chunks; near the end of the batch, this could
+      // clobber another task's output
+      final boolean nearEnd = outOffsets[to] - outOffsets[i + 1] < MAX_OVERRUN;
+      final byte[] dst = nearEnd ? new byte[outLength] : out;
+      final int dstOffset = nearEnd ? 0 : outOffsets[i];
+
+      final Object event = monitor.beginChunk();
+      int uncompressed = -1;
+      try {
+        uncompressed = decompressor.uncompress(src, srcOffset, len, dst, dstOffset);
+      } finally {
+        monitor.endChunk(event, len, uncompressed);
+      }
+      if (uncompressed != outLength) {
+        throw new IOException("Corrupt snappy block: expected " + outLength
+            + " bytes, but got " + uncompressed);
+      }
+      if (nearEnd) {
+        System.arraycopy(dst, 0, out, outOffsets[i], outLength);
+      }
+    }
+  }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.util.Iterator;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Receives timing and size information about the documents being parsed, for example to
+ * record them as profiling events.
+ * 
+ * Each {@code begin...} method returns an opaque event object, which the parser passes
+ * back to the matching {@code end...} method (in a {@code finally} block, so even if
+ * parsing fails). The event may be {@code null}, for example if the implementation is
+ * currently not recording; all methods do nothing by default, so a disabled monitor costs
+ * no more than a few empty calls per chunk.
+ * 
+ * Implementations must be thread-safe. The default monitor is the first one registered in
+ * {@code META-INF/services/com.evernote.iwana.ParseMonitor}, if any, or {@link #NONE};
+ * see {@link IwanaParser#setParseMonitor(ParseMonitor)} to use another one.
+ */
+public abstract class ParseMonitor {
+  private static final Logger LOG = Logger.getLogger(ParseMonitor.class);
+
+  /**
+   * A monitor that does nothing.
+   */
+  public static final ParseMonitor NONE = new ParseMonitor() {
+  };
+
+  /**
+   * Returns the default monitor.
+   * 
+   * @return The first monitor registered via {@link ServiceLoader}, or {@link #NONE}.
+   */
+  public static ParseMonitor getDefault() {
+    return DefaultHolder.DEFAULT;
+  }
+
+  /**
+   * Called when the parser begins parsing a document.
+   * 
+   * @param documentName The document's file name, or {@code null} if not known yet.
+   * @return The event to pass to
+   *         {@link #endDocument(Object, String, String, int, long, long)}, or {@code null}.
+   */
+  public Object beginDocument(String documentName) {
+    return null;
+  }
+
+  /**
+   * Called when the parser has finished parsing a document.
+   * 
+   * @param event The event returned by {@link #beginDocument(String)}.
+   * @param documentName The document's file name or, when parsing a stream, the name
+   *          found in the stream; {@code null} if none was found.
+   * @param contextClass The class name of the chosen {@link IwanaContext}, or
+   *          {@code null}.
+   * @param iwaFiles The number of {@code .iwa} files parsed.
+   * @param messages The number of messages dispatched.
+   * @param bytes The total (compressed) size of the {@code .iwa} files parsed, as far as
+   *          known.
+   */
+  public void endDocument(Object event, String documentName, String contextClass,
+      int iwaFiles, long messages, long bytes) {
+  }
+
+  /**
+   * Called when the parser begins dispatching the messages of an {@code .iwa} file.
+   * 
+   * @param documentName The document's name.
+   * @param fileName The {@code .iwa} file's name.
+   * @return The event to pass to {@link #endIWAFile(Object, long, int)}, or {@code null}.
+   */
+  public Object beginIWAFile(String documentName, String fileName) {
+    return null;
+  }
+
+  /**
+   * Called when the parser has finished dispatching the messages of an {@code .iwa}
+   * file.
+   * 
+   * @param event The event returned by {@link #beginIWAFile(String, String)}.
+   * @param bytes The file's (compressed) size, or -1 if unknown.
+   * @param messages The number of messages dispatched.
+   */
+  public void endIWAFile(Object event, long bytes, int messages) {
+  }
+
+  /**
+   * Called before a compressed chunk of an {@code .iwa} file is decompressed. This may
+   * happen on a decoding thread.
+   * 
+   * @return The event to pass to {@link #endChunk(Object, int, int)}, or {@code null}.
+   */
+  public Object beginChunk() {
+    return null;
+  }
+
+  /**
+   * Called after a compressed chunk of an {@code .iwa} file has been decompressed.
+   * 
+   * @param event The event returned by {@link #beginChunk()}.
+   * @param compressedBytes The chunk's compressed size.
+   * @param uncompressedBytes The chunk's uncompressed size, or -1 if decompression
+   *          failed.
+   */
+  public void endChunk(Object event, int compressedBytes, int uncompressedBytes) {
+  }
+
+  /**
+   * Called when a context begins assembling its results after the last {@code .iwa} file
+   * (e.g., ordering the extracted text).
+   * 
+   * @param documentName The document's name.
+   * @param contextClass The class name of the context.
+   * @return The event to pass to {@link #endAssembly(Object)}, or {@code null}.
+   */
+  public Object beginAssembly(String documentName, String contextClass) {
+    return null;
+  }
+
+  /**
+   * Called when a context has finished assembling its results.
+   * 
+   * @param event The event returned by {@link #beginAssembly(String, String)}.
+   */
+  public void endAssembly(Object event) {
+  }
+
+  private static final class DefaultHolder {
+    static final ParseMonitor DEFAULT;
+
+    static {
+      ParseMonitor m = null;
+      try {
+        final Iterator<ParseMonitor> it = ServiceLoader.load(ParseMonitor.class).iterator();
+        if (it.hasNext()) {
+          m = it.next();
+        }
+      } catch (ServiceConfigurationError e) {
+        LOG.warn("Could not load parse monitor", e);
+      }
+      DEFAULT = m == null ? NONE : m;
+    }
+  }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A pool of warm, reusable {@link IwanaParser}s for services that parse many documents
+ * concurrently.
+ * 
+ * Each parser keeps its decoding buffers and {@link java.util.zip.Inflater}s between
+ * documents, so a parser taken from the pool does not need to allocate them again.
+ * 
+ * <pre>
+ * final P parser = pool.acquire();
+ * try {
+ *   parser.parse(file, target);
+ * } finally {
+ *   pool.release(parser);
+ * }
+ * </pre>
+ * 
+ * This class is thread-safe.
+ * 
+ * @param <P> The parser type.
+ */
+public abstract class ParserPool<P extends IwanaParser<?>> {
+  private final BlockingQueue<P> idle;
+
+  /**
+   * Creates a new pool.
+   * 
+   * @param maxIdle The maximum number of idle parsers to keep; typically the number of
+   *          concurrent parses.
+   */
+  protected ParserPool(final int maxIdle) {
+    if (maxIdle <= 0) {
+      throw new IllegalArgumentException("maxIdle must be positive: " + maxIdle);
+    }
+    this.idle = new ArrayBlockingQueue<>(maxIdle);
+  }
+
+  /**
+   * Creates a new parser, when the pool has no idle parser left.
+   * 
+   * @return The parser.
+   */
+  protected abstract P newParser();
+
+  /**
+   * Takes an idle parser from the pool, or creates a new one.
+   * 
+   * @return The parser, for exclusive use by the caller until it is passed to
+   *         {@link #release(IwanaParser)}.
+   */
+  public P acquire() {
+    final P parser = idle.poll();
+    return parser != null ? parser : newParser();
+  }
+
+  /**
+   * Returns a parser to the pool. If the pool is full, the parser is discarded.
+   * 
+   * @param parser The parser, previously obtained from {@link #acquire()}.
+   */
+  public void release(final P parser) {
+    idle.offer(parser);
+  }
+
+  /**
+   * Fills the pool with new parsers.
+   * 
+   * @param count The number of idle parsers the pool should hold (at most its maximum).
+   */
+  public void warmUp(final int count) {
+    while (idle.size() < count) {
+      if (!idle.offer(newParser())) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Returns the number of idle parsers.
+   * 
+   * @return The number of idle parsers.
+   */
+  public int getIdleCount() {
+    return idle.size();
+  }
+}
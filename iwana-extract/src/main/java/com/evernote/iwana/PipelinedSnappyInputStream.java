@@ -0,0 +1,376 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * A variant of {@link SnappyNoCRCFramedInputStream} that reads and decompresses chunks
+ * ahead of the consumer, in a three-stage pipeline:
+ * 
+ * <ol>
+ * <li>A reader task reads raw chunks from the underlying {@link InputStream} (which
+ * typically inflates a zip entry),</li>
+ * <li>a decompressor task decompresses them, and</li>
+ * <li>the thread reading from this stream frames and dispatches the messages.</li>
+ * </ol>
+ * 
+ * The stages are connected by bounded queues, and each stage draws its buffers from a
+ * fixed pool, so a slow consumer stalls the other stages instead of buffering the entire
+ * file.
+ * 
+ * The underlying {@link InputStream} is read from another thread until the end of the
+ * stream is reached, or until this stream is closed; {@link #close()} waits for the
+ * pipeline to stop, but does not close the underlying stream.
+ */
+final class PipelinedSnappyInputStream extends InputStream {
+  private static final int NUM_BUFFERS = 4;
+  private static final int RAW_BUFFER_SIZE = 128 * 1024;
+  private static final int UNCOMPRESSED_BUFFER_SIZE = 64 * 1024;
+
+  private static final int CHUNK_COMPRESSED = 0;
+  private static final int CHUNK_UNCOMPRESSED = 1;
+  private static final int CHUNK_STREAM_IDENTIFIER = 0xff;
+
+  /**
+   * Marks the end of the stream in a queue.
+   */
+  private static final Chunk END = new Chunk(0);
+
+  private final InputStream in;
+  private final SnappyDecompressor decompressor;
+  private final ParseMonitor monitor;
+
+  // queue capacities leave room for END, so it can always be added without blocking
+  private final BlockingQueue<Chunk> freeRaw = new ArrayBlockingQueue<>(NUM_BUFFERS);
+  private final BlockingQueue<Chunk> raw = new ArrayBlockingQueue<>(NUM_BUFFERS + 1);
+  private final BlockingQueue<Chunk> freeUncompressed =
+      new ArrayBlockingQueue<>(NUM_BUFFERS);
+  private final BlockingQueue<Chunk> uncompressed =
+      new ArrayBlockingQueue<>(NUM_BUFFERS + 1);
+
+  private final Stage reader = new Stage() {
+    @Override
+    void runStage() throws IOException, InterruptedException {
+      final byte[] header = new byte[4];
+      while (!closed) {
+        final Chunk c = freeRaw.take();
+        if (!readChunk(header, c)) {
+          break;
+        }
+        raw.add(c);
+      }
+    }
+
+    @Override
+    void onEnd() {
+      raw.add(END);
+    }
+  };
+
+  private final Stage decompressorStage = new Stage() {
+    @Override
+    void runStage() throws IOException, InterruptedException {
+      Chunk c;
+      while ((c = raw.take()) != END) {
+        final Chunk u = freeUncompressed.take();
+        if (c.type == CHUNK_COMPRESSED) {
+          final Object event = monitor.beginChunk();
+          u.length = -1;
+          try {
+            u.length = decompressor.uncompress(c.data, 0, c.length, u.data, 0);
+          } finally {
+            monitor.endChunk(event, c.length, u.length);
+          }
+        } else {
+          if (c.length > u.data.length) {
+            throw new IOException("Uncompressed chunk size exceeds buffer capacity: "
+                + c.length + " > " + u.data.length);
+          }
+          System.arraycopy(c.data, 0, u.data, 0, c.length);
+          u.length = c.length;
+        }
+        freeRaw.add(c);
+        uncompressed.add(u);
+      }
+    }
+
+    @Override
+    void onEnd() {
+      uncompressed.add(END);
+    }
+  };
+
+  private volatile boolean closed = false;
+  private volatile Throwable failure = null;
+
+  private Chunk current = null;
+  private int readPointer = 0;
+  private boolean eof = false;
+
+  /**
+   * Creates a new {@link PipelinedSnappyInputStream} and starts its reader and
+   * decompressor tasks.
+   * 
+   * @param in The InputStream to wrap.
+   * @param executor The executor to run the reader and decompressor tasks; it must be
+   *          able to run both concurrently.
+   * @param decompressor The decompressor for compressed chunks.
+   */
+  PipelinedSnappyInputStream(final InputStream in, final Executor executor,
+      final SnappyDecompressor decompressor) {
+    this(in, executor, decompressor, ParseMonitor.NONE);
+  }
+
+  /**
+   * Creates a new {@link PipelinedSnappyInputStream} and starts its reader and
+   * decompressor tasks.
+   * 
+   * @param in The InputStream to wrap.
+   * @param executor The executor to run the reader and decompressor tasks; it must be
+   *          able to run both concurrently.
+   * @param decompressor The decompressor for compressed chunks.
+   * @param monitor The monitor to report decompressed chunks to.
+   */
+  PipelinedSnappyInputStream(final InputStream in, final Executor executor,
+      final SnappyDecompressor decompressor, final ParseMonitor monitor) {
+    this.in = in;
+    this.decompressor = decompressor;
+    this.monitor = monitor;
+    for (int i = 0; i < NUM_BUFFERS; i++) {
+      freeRaw.add(new Chunk(RAW_BUFFER_SIZE));
+      freeUncompressed.add(new Chunk(UNCOMPRESSED_BUFFER_SIZE));
+    }
+    executor.execute(reader);
+    executor.execute(decompressorStage);
+  }
+
+  /**
+   * A pooled buffer holding one chunk.
+   */
+  private static final class Chunk {
+    final byte[] data;
+    int type;
+    int length;
+
+    Chunk(final int capacity) {
+      this.data = new byte[capacity];
+    }
+  }
+
+  /**
+   * Reads the next compressed or uncompressed chunk, skipping all others.
+   * 
+   * @return {@code false} if the end of the stream has been reached.
+   */
+  private boolean readChunk(final byte[] header, final Chunk c) throws IOException {
+    while (true) {
+      if (readFully(header, header.length) < header.length) {
+        return false;
+      }
+      final int type = header[0] & 0xFF;
+      final int len =
+          ((header[3] & 0xFF) << 16) | ((header[2] & 0xFF) << 8) | (header[1] & 0xFF);
+
+      if (type == CHUNK_COMPRESSED || type == CHUNK_UNCOMPRESSED) {
+        if (len > c.data.length) {
+          throw new IOException("Chunk size exceeds buffer capacity: " + len + " > "
+              + c.data.length);
+        }
+        if (readFully(c.data, len) < len) {
+          throw new IOException("Truncated snappy chunk");
+        }
+        c.type = type;
+        c.length = len;
+        return true;
+      } else if (type == CHUNK_STREAM_IDENTIFIER) {
+        if (len != 6 || readFully(c.data, len) < len || c.data[0] != 0x73
+            || c.data[1] != 0x4e || c.data[2] != 0x61 || c.data[3] != 0x50
+            || c.data[4] != 0x70 || c.data[5] != 0x59) {
+          throw new IOException("Could not find magic bytes in Stream identifier");
+        }
+      } else if ((type & 0x80) == 0) {
+        throw new IOException("Detected unskippable snappy chunk; type=" + type
+            + "; len=" + len);
+      } else {
+        // padding or other skippable chunk
+        for (long toSkip = len; toSkip > 0;) {
+          final long skipped = in.skip(toSkip);
+          if (skipped <= 0) {
+            return false;
+          }
+          toSkip -= skipped;
+        }
+      }
+    }
+  }
+
+  private int readFully(final byte[] buf, final int len) throws IOException {
+    int ptr = 0;
+    while (ptr < len) {
+      final int read = in.read(buf, ptr, len - ptr);
+      if (read == -1) {
+        break;
+      }
+      ptr += read;
+    }
+    return ptr;
+  }
+
+  private boolean nextChunk() throws IOException {
+    while (!eof) {
+      if (current != null) {
+        freeUncompressed.add(current);
+        current = null;
+      }
+
+      final Chunk c;
+      try {
+        c = uncompressed.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException();
+      }
+
+      if (c == END) {
+        eof = true;
+        final Throwable t = failure;
+        if (t instanceof IOException) {
+          throw new IOException(t.getMessage(), t);
+        } else if (t instanceof RuntimeException) {
+          throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+          throw (Error) t;
+        }
+        return false;
+      }
+
+      current = c;
+      readPointer = 0;
+      if (c.length > 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return current == null ? 0 : current.length - readPointer;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if ((current == null || readPointer == current.length) && !nextChunk()) {
+      return -1;
+    }
+    return current.data[readPointer++] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if ((current == null || readPointer == current.length) && !nextChunk()) {
+      return -1;
+    }
+    final int read = Math.min(current.length - readPointer, len);
+    System.arraycopy(current.data, readPointer, b, off, read);
+    readPointer += read;
+    return read;
+  }
+
+  /**
+   * Stops the pipeline, and waits until the underlying {@link InputStream} is no longer
+   * being read from.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    eof = true;
+    reader.stop();
+    decompressorStage.stop();
+  }
+
+  /**
+   * A pipeline stage, run by the executor.
+   */
+  private abstract class Stage implements Runnable {
+    private Thread thread = null;
+
+    abstract void runStage() throws IOException, InterruptedException;
+
+    /**
+     * Signals the end of this stage's output; called even if the stage failed.
+     */
+    abstract void onEnd();
+
+    @Override
+    public final void run() {
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        thread = Thread.currentThread();
+      }
+      try {
+        runStage();
+      } catch (InterruptedException e) {
+        // closed
+      } catch (Throwable t) {
+        if (failure == null) {
+          failure = t;
+        }
+      } finally {
+        onEnd();
+        synchronized (this) {
+          thread = null;
+          notifyAll();
+        }
+        // clear a pending interrupt from stop(), before the thread is reused
+        Thread.interrupted();
+      }
+    }
+
+    /**
+     * Interrupts the stage if it is running, and waits for it to finish. A stage that has
+     * not started yet will not run.
+     */
+    synchronized void stop() {
+      if (thread == null) {
+        return;
+      }
+      thread.interrupt();
+      boolean interrupted = false;
+      while (thread != null) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
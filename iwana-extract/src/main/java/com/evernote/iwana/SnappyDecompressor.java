@@ -0,0 +1,52 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.io.IOException;
+
+/**
+ * Decompresses raw Snappy blocks, as found in the chunks of a
+ * {@link SnappyNoCRCFramedInputStream}.
+ * 
+ * Implementations must be thread-safe. Additional implementations can be registered
+ * through {@link java.util.ServiceLoader}, and selected by name using
+ * {@link SnappyDecompressors#PROPERTY}.
+ * 
+ * @see SnappyDecompressors
+ */
+public interface SnappyDecompressor {
+
+  /**
+   * Returns the name under which this decompressor can be selected.
+   * 
+   * @return The name.
+   */
+  String getName();
+
+  /**
+   * Decompresses a raw Snappy block.
+   * 
+   * @param in The compressed data.
+   * @param inOffset The offset of the block in {@code in}.
+   * @param inLength The length of the block.
+   * @param out The buffer to decompress into.
+   * @param outOffset The offset in {@code out} to start writing at.
+   * @return The number of uncompressed bytes written to {@code out}.
+   * @throws IOException if the block is corrupt, or does not fit into {@code out}.
+   */
+  int uncompress(byte[] in, int inOffset, int inLength, byte[] out, int outOffset)
+      throws IOException;
+}
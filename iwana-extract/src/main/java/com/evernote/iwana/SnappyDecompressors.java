@@ -0,0 +1,114 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Provides access to the available {@link SnappyDecompressor}s.
+ * 
+ * The default decompressor is chosen by name using the system property
+ * {@value #PROPERTY}. Besides the built-in {@code "iq80"} and {@code "java"}
+ * decompressors, any implementation registered in
+ * {@code META-INF/services/com.evernote.iwana.SnappyDecompressor} can be selected. If the
+ * property is not set, iq80's decompressor is used.
+ */
+public final class SnappyDecompressors {
+  private static final Logger LOG = Logger.getLogger(SnappyDecompressors.class);
+
+  /**
+   * The name of the system property that selects the default decompressor.
+   */
+  public static final String PROPERTY = "com.evernote.iwana.snappy";
+
+  private static final SnappyDecompressor IQ80 = new Iq80SnappyDecompressor();
+  private static final SnappyDecompressor JAVA = new JavaSnappyDecompressor();
+
+  private SnappyDecompressors() {
+  }
+
+  /**
+   * Returns iq80's decompressor.
+   * 
+   * @return The decompressor.
+   */
+  public static SnappyDecompressor iq80() {
+    return IQ80;
+  }
+
+  /**
+   * Returns the pure-Java decompressor.
+   * 
+   * @return The decompressor.
+   */
+  public static SnappyDecompressor java() {
+    return JAVA;
+  }
+
+  /**
+   * Returns the decompressor selected by {@value #PROPERTY}.
+   * 
+   * @return The default decompressor.
+   */
+  public static SnappyDecompressor getDefault() {
+    return DefaultHolder.DEFAULT;
+  }
+
+  /**
+   * Looks up a decompressor by name, among the built-in ones and those registered via
+   * {@link ServiceLoader}.
+   * 
+   * @param name The decompressor's name.
+   * @return The decompressor, or {@code null} if there is none with that name.
+   */
+  public static SnappyDecompressor forName(final String name) {
+    if (IQ80.getName().equals(name)) {
+      return IQ80;
+    }
+    if (JAVA.getName().equals(name)) {
+      return JAVA;
+    }
+    try {
+      for (SnappyDecompressor d : ServiceLoader.load(SnappyDecompressor.class)) {
+        if (d.getName().equals(name)) {
+          return d;
+        }
+      }
+    } catch (ServiceConfigurationError e) {
+      LOG.warn("Could not load snappy decompressors", e);
+    }
+    return null;
+  }
+
+  private static final class DefaultHolder {
+    static final SnappyDecompressor DEFAULT;
+
+    static {
+      final String name = System.getProperty(PROPERTY);
+      SnappyDecompressor d = null;
+      if (name != null) {
+        d = forName(name);
+        if (d == null) {
+          LOG.warn("Unknown snappy decompressor: " + name + "; using " + IQ80.getName());
+        }
+      }
+      DEFAULT = d == null ? IQ80 : d;
+    }
+  }
+}
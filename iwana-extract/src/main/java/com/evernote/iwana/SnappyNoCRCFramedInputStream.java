@@ -19,8 +19,6 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 
-import org.iq80.snappy.Snappy;
-
 /**
  * A snappy-compressed InputStream, using a variant of the Snappy Framing Format without
  * CRC values.
@@ -34,9 +32,11 @@ public class SnappyNoCRCFramedInputStream extends InputStream {
   private final byte[] uncompressedBuffer = new byte[64 * 1024];
   private int readPointer = 0;
   private int filled = 0;
-  private final InputStream in;
+  private InputStream in;
   private boolean eof = false;
   private boolean closeParent;
+  private final SnappyDecompressor decompressor;
+  private ParseMonitor monitor = ParseMonitor.NONE;
 
   /**
    * Creates a new {@link SnappyNoCRCFramedInputStream} wrapping the given
@@ -57,8 +57,44 @@ public class SnappyNoCRCFramedInputStream extends InputStream {
    *          {@link InputStream}.
    */
   public SnappyNoCRCFramedInputStream(final InputStream in, final boolean closeParent) {
+    this(in, closeParent, SnappyDecompressors.getDefault());
+  }
+
+  /**
+   * Creates a new {@link SnappyNoCRCFramedInputStream} wrapping the given
+   * {@link InputStream}, using the given {@link SnappyDecompressor}.
+   * 
+   * @param in The InputStream to wrap.
+   * @param closeParent Whether a call to {@link #close()} should close the parent
+   *          {@link InputStream}.
+   * @param decompressor The decompressor for compressed chunks.
+   */
+  public SnappyNoCRCFramedInputStream(final InputStream in, final boolean closeParent,
+      final SnappyDecompressor decompressor) {
     this.in = in;
     this.closeParent = closeParent;
+    this.decompressor = decompressor;
+  }
+
+  /**
+   * Prepares this instance for reading another stream, reusing its buffers.
+   * 
+   * @param in The InputStream to wrap, or {@code null} to release the current one.
+   */
+  void reset(final InputStream in) {
+    this.in = in;
+    readPointer = 0;
+    filled = 0;
+    eof = false;
+  }
+
+  /**
+   * Sets the monitor to report decompressed chunks to.
+   * 
+   * @param monitor The monitor.
+   */
+  void setMonitor(final ParseMonitor monitor) {
+    this.monitor = monitor;
   }
 
   @Override
@@ -90,6 +126,21 @@ public class SnappyNoCRCFramedInputStream extends InputStream {
     }
   }
 
+  private void skipFully(final int toSkip) throws IOException {
+    long len = toSkip;
+    while (len > 0) {
+      long skipped = in.skip(len);
+      if (skipped <= 0) {
+        if (in.read() == -1) {
+          eof = true;
+          return;
+        }
+        skipped = 1;
+      }
+      len -= skipped;
+    }
+  }
+
   private void fillBuffer() throws IOException {
     FILL_LOOP : while (true) {
 
@@ -105,8 +156,6 @@ public class SnappyNoCRCFramedInputStream extends InputStream {
 
       int len =
           ((header[3] & 0xFF) << 16) | ((header[2] & 0xFF) << 8) | (header[1] & 0xFF);
-      readFully(readBuffer, len);
-
       final int chunkType = header[0] & 0xFF;
       switch (chunkType) {
         case 0:
@@ -115,8 +164,15 @@ public class SnappyNoCRCFramedInputStream extends InputStream {
             throw new IOException("Compressed chunk size exceeds buffer capacity: " + len
                 + " > " + readBuffer.length);
           }
+          readFully(readBuffer, len);
 
-          filled = Snappy.uncompress(readBuffer, 0, len, uncompressedBuffer, 0);
+          final Object event = monitor.beginChunk();
+          filled = -1;
+          try {
+            filled = decompressor.uncompress(readBuffer, 0, len, uncompressedBuffer, 0);
+          } finally {
+            monitor.endChunk(event, len, filled);
+          }
           break FILL_LOOP;
         case 1:
           // uncompressed
@@ -124,11 +180,13 @@ public class SnappyNoCRCFramedInputStream extends InputStream {
             throw new IOException("Uncompressed chunk size exceeds buffer capacity: "
                 + len + " > " + readBuffer.length);
           }
+          readFully(readBuffer, len);
           System.arraycopy(readBuffer, 0, uncompressedBuffer, 0, len);
+          filled = len;
           break FILL_LOOP;
         case 0xfe:
           // padding
-          in.skip(len);
+          skipFully(len);
           break;
         case 0xff:
           // Stream identifier
@@ -136,13 +194,12 @@ public class SnappyNoCRCFramedInputStream extends InputStream {
             throw new IOException(
                 "Stream identifier data should be exactly 6 bytes long, but was: " + len);
           }
+          readFully(readBuffer, len);
 
           if (readBuffer[0] != 0x73 || readBuffer[1] != 0x4e || readBuffer[2] != 0x61
               || readBuffer[3] != 0x50 || readBuffer[4] != 0x70 || readBuffer[5] != 0x59) {
             throw new IOException("Could not find magic bytes in Stream identifier");
           }
-
-          in.skip(len);
           break;
         default:
           if ((chunkType & 0x80) == 0) {
@@ -151,7 +208,7 @@ public class SnappyNoCRCFramedInputStream extends InputStream {
                 + "; len=" + len);
           } else {
             // skippable
-            in.skip(len);
+            skipFully(len);
           }
       }
     }
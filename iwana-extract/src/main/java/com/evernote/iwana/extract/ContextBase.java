@@ -19,15 +19,22 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
-import com.evernote.iwana.pb.TST.TSTArchives;
 import org.apache.log4j.Logger;
 
+import com.evernote.iwana.ArchiveHeader;
 import com.evernote.iwana.MessageActions;
-import com.evernote.iwana.pb.TSD.TSDArchives.GroupArchive;
-import com.evernote.iwana.pb.TSP.TSPArchiveMessages.ArchiveInfo;
-import com.evernote.iwana.pb.TSP.TSPArchiveMessages.MessageInfo;
+import com.evernote.iwana.pb.TST.TSTArchives.DataStore;
+import com.evernote.iwana.pb.TST.TSTArchives.TableDataList;
+import com.evernote.iwana.pb.TST.TSTArchives.TableDataList.ListEntry;
+import com.evernote.iwana.pb.TST.TSTArchives.TableDataList.ListType;
+import com.evernote.iwana.pb.TST.TSTArchives.TableInfoArchive;
+import com.evernote.iwana.pb.TST.TSTArchives.TableModelArchive;
+import com.evernote.iwana.pb.TST.TSTArchives.Tile;
+import com.evernote.iwana.pb.TST.TSTArchives.TileStorage;
 import com.evernote.iwana.pb.TSWP.TSWPArchives.ObjectAttributeTable;
 import com.evernote.iwana.pb.TSWP.TSWPArchives.ObjectAttributeTable.ObjectAttribute;
 import com.evernote.iwana.pb.TSWP.TSWPArchives.PlaceholderSmartFieldArchive;
@@ -58,50 +65,13 @@ class ContextBase extends ExtractTextIWAContext {
 
   public static final MessageActions COMMON_ACTIONS = new MessageActions();
   static {
-
-    //FIXME -- this action on 6005 and 6201 only applies to NumbersContext
-    //Once we figure out how to trigger that correctly, move this back
-    //out of COMMON_ACTIONS to NUMBERS_ACTIONS.
-    COMMON_ACTIONS.setAction(new int[] {6005, 6201}, new StoreObject<TSTArchives.TableDataList>(
-        TSTArchives.TableDataList.PARSER) {
-
-      @Override
-      protected void onMessage(TSTArchives.TableDataList message, ArchiveInfo ai, MessageInfo mi,
-                               ExtractTextIWAContext context) throws IOException {
-        super.onMessage(message, ai, mi, context);
-
-        if (message.getListType() != TSTArchives.TableDataList.ListType.STRING) {
-          return;
-        }
-
-        List<TSTArchives.TableDataList.ListEntry> entriesList = new ArrayList<>(message.getEntriesList());
-        Collections.sort(entriesList, new Comparator<TSTArchives.TableDataList.ListEntry>() {
-
-          @Override
-          public int compare(TSTArchives.TableDataList.ListEntry o1, TSTArchives.TableDataList.ListEntry o2) {
-            if (o1.getKey() < o2.getKey()) {
-              return -1;
-            } else {
-              return 1;
-            }
-          }
-        });
-
-        for (TSTArchives.TableDataList.ListEntry le : entriesList) {
-          // FIXME These list entries are probably not ordered correctly
-          context.getTarget()
-              .onTextBlock(le.getString(), TextAttributes.DEFAULT_DOCUMENT);
-        }
-      }
-
-    });
-
+    // only reads the fields we need; see StorageArchiveScanner
     COMMON_ACTIONS.setAction(2001, new ExtractTextActionBase<StorageArchive>(
-        StorageArchive.PARSER) {
+        StorageArchiveScanner.PARSER) {
 
       @Override
-      protected void onMessage(StorageArchive message, ArchiveInfo ai, MessageInfo mi,
-          ExtractTextIWAContext context) throws IOException {
+      protected void onMessage(StorageArchive message, ArchiveHeader header,
+          int index, ExtractTextIWAContext context) throws IOException {
 
         if (!message.getInDocument()) {
           // not part of the document?
@@ -120,8 +90,7 @@ class ContextBase extends ExtractTextIWAContext {
                 + context.getCurrentFile());
         }
 
-        final String text = message.getText(0);
-        TextBlock tb = context.getTextBlock(ai.getIdentifier());
+        final String text = context.decode(message.getTextBytes(0));
 
         List<ObjectAttribute> attrs = null;
         ObjectAttributeTable tableSmartField = message.getTableSmartfield();
@@ -136,30 +105,193 @@ class ContextBase extends ExtractTextIWAContext {
           }
         }
 
-        tb.text = text;
-        tb.objectAttributes = attrs;
+        context.setText(header.getIdentifier(), text, attrs);
       }
     });
 
     COMMON_ACTIONS.setAction(2031,
         new ExtractTextActionBase<PlaceholderSmartFieldArchive>(
-            PlaceholderSmartFieldArchive.PARSER) {
+            PlaceholderSmartFieldArchive.class) {
 
           @Override
-          protected void onMessage(PlaceholderSmartFieldArchive message, ArchiveInfo ai,
-              MessageInfo mi, ExtractTextIWAContext context) throws IOException {
-            context.ignorableStyles.add(ai.getIdentifier());
+          protected void onMessage(PlaceholderSmartFieldArchive message,
+              ArchiveHeader header, int index, ExtractTextIWAContext context)
+              throws IOException {
+            context.addIgnorableStyle(header.getIdentifier());
           }
         });
 
-    COMMON_ACTIONS.setAction(3008, new StoreObject<GroupArchive>(GroupArchive.PARSER));
+    COMMON_ACTIONS.setAction(3008, GroupObject.PROJECT_GROUP);
+    COMMON_ACTIONS.freeze();
+  }
+
+  /**
+   * The message types registered by {@link #addTableActions(MessageActions)}.
+   */
+  static final int[] TABLE_MESSAGE_TYPES = {6000, 6001, 6002, 6005, 6201};
+
+  /**
+   * Registers the actions that collect tables, to be emitted by
+   * {@link #processTable(TableInfoArchive, TextAttributes)}.
+   * 
+   * Keynote slides, Pages documents and Numbers sheets can all hold tables, so every
+   * context registers these actions. Registries used when no table text is wanted
+   * remove the {@link #TABLE_MESSAGE_TYPES} again, so tables are not even parsed.
+   * 
+   * @param actions The registry to add the actions to.
+   */
+  static void addTableActions(MessageActions actions) {
+    actions.setAction(6000, new StoreObject<TableInfoArchive>(TableInfoArchive.class));
+    actions.setAction(6001, new StoreObject<TableModelArchive>(TableModelArchive.class));
+
+    actions.setAction(6002, new ExtractTextActionBase<Tile>(Tile.class) {
+
+      @Override
+      protected void onMessage(Tile message, ArchiveHeader header, int index,
+          ExtractTextIWAContext context) throws IOException {
+        // only keep the string cells; the tile message is dropped right away
+        ((ContextBase) context).tiles.put(header.getIdentifier(),
+            TableTile.decode(message));
+      }
+    });
+
+    actions.setAction(new int[] {6005, 6201},
+        new ExtractTextActionBase<TableDataList>(TableDataList.class) {
+
+          @Override
+          protected void onMessage(TableDataList message, ArchiveHeader header,
+              int index, ExtractTextIWAContext context) throws IOException {
+            if (message.getListType() != ListType.STRING) {
+              return;
+            }
+
+            IntStringMap strings = new IntStringMap(message.getEntriesCount());
+            for (ListEntry le : message.getEntriesList()) {
+              if (le.hasString()) {
+                strings.put(le.getKey(), context.decode(le.getStringBytes()));
+              }
+            }
+            ((ContextBase) context).stringTables.put(header.getIdentifier(), strings);
+          }
+        });
   }
 
+  private static final Comparator<TileStorage.Tile> COMPARATOR_TILEID =
+      new Comparator<TileStorage.Tile>() {
+        @Override
+        public int compare(TileStorage.Tile o1, TileStorage.Tile o2) {
+          return Integer.compare(o1.getTileid(), o2.getTileid());
+        }
+      };
+
+  final Map<Long, TableTile> tiles = new HashMap<>();
+  final Map<Long, IntStringMap> stringTables = new HashMap<>();
+
   @Override
   protected MessageActions getMessageTypeActions() {
     return COMMON_ACTIONS;
   }
 
+  /**
+   * Emits the string cells of the given table row by row, one text block per row (cells
+   * separated by tabs). A table is only emitted once.
+   * 
+   * @param table The table.
+   * @param attrs The attributes to emit the rows with, or {@code null} to only mark the
+   *          table as done.
+   */
+  void processTable(TableInfoArchive table, TextAttributes attrs) {
+    TableModelArchive model = getObject(table.getTableModel(), TableModelArchive.class);
+    if (model == null) {
+      return;
+    }
+    DataStore dataStore = model.getDataStore();
+    IntStringMap strings =
+        stringTables.remove(dataStore.getStringTable().getIdentifier());
+    if (strings == null) {
+      return;
+    }
+
+    List<TileStorage.Tile> tileRefs =
+        new ArrayList<>(dataStore.getTiles().getTilesList());
+    Collections.sort(tileRefs, COMPARATOR_TILEID);
+
+    final StringBuilder sb = new StringBuilder();
+    for (TileStorage.Tile tileRef : tileRefs) {
+      // release the tile as soon as it is consumed
+      TableTile tile = tiles.remove(tileRef.getTile().getIdentifier());
+      if (tile == null || attrs == null) {
+        continue;
+      }
+
+      int row = -1;
+      for (int i = 0; i < tile.numCells; i++) {
+        String text = strings.get(tile.stringKeys[i]);
+        if (text == null) {
+          continue;
+        }
+        if (tile.rows[i] != row) {
+          flushRow(sb, attrs);
+          row = tile.rows[i];
+        } else {
+          sb.append('\t');
+        }
+        sb.append(text);
+      }
+      flushRow(sb, attrs);
+    }
+  }
+
+  /**
+   * Checks whether everything needed to emit the given table has been decoded: its model,
+   * its string table and all of its tiles.
+   * 
+   * @param table The table.
+   * @return {@code true} if {@link #processTable(TableInfoArchive, TextAttributes)} would
+   *         not miss any cells.
+   */
+  boolean isTableReady(TableInfoArchive table) {
+    TableModelArchive model = getObject(table.getTableModel(), TableModelArchive.class);
+    if (model == null) {
+      return false;
+    }
+    DataStore dataStore = model.getDataStore();
+    if (!stringTables.containsKey(dataStore.getStringTable().getIdentifier())) {
+      return false;
+    }
+    for (TileStorage.Tile tileRef : dataStore.getTiles().getTilesList()) {
+      if (!tiles.containsKey(tileRef.getTile().getIdentifier())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Emits the tables that have not been emitted yet, in identifier order.
+   * 
+   * @param attrs The attributes to emit the rows with, or {@code null} to skip them.
+   */
+  void processRemainingTables(TextAttributes attrs) {
+    List<Long> ids = new ArrayList<>();
+    for (Map.Entry<Long, Object> en : objectStorage.entrySet()) {
+      if (en.getValue() instanceof TableInfoArchive) {
+        ids.add(en.getKey());
+      }
+    }
+    Collections.sort(ids);
+    for (long id : ids) {
+      processTable(getObject(id, TableInfoArchive.class), attrs);
+    }
+  }
+
+  private void flushRow(StringBuilder sb, TextAttributes attrs) {
+    if (sb.length() > 0) {
+      emit(sb.toString(), attrs);
+      sb.setLength(0);
+    }
+  }
+
   @Override
   protected void processRootObject(Message obj) {
   }
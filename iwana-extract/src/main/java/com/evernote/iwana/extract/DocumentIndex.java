@@ -0,0 +1,252 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.evernote.iwana.extract.TextAttributes.Scope;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+
+/**
+ * The postings (term &rarr; token positions) of one document, per {@link Scope}.
+ * 
+ * Positions are token indexes within the scope's text, counted across all text blocks of
+ * that scope, in the order they were extracted.
+ * 
+ * An index can be exported in a compact binary format using
+ * {@link #writeTo(OutputStream)}, and read back using {@link #readFrom(InputStream)}:
+ * 
+ * <pre>
+ * "IWIX" version=1
+ * varint numScopes
+ *   string scopeName, varint numTokens, varint numTerms
+ *     string term, varint numPositions, varint position deltas...
+ * </pre>
+ * 
+ * Strings are written as varint length and UTF-8 bytes; terms are sorted.
+ * 
+ * @see IndexingCallback
+ */
+public final class DocumentIndex {
+  private static final byte[] MAGIC = {'I', 'W', 'I', 'X'};
+  private static final int VERSION = 1;
+
+  private final ScopePostings[] scopes = new ScopePostings[Scope.values().length];
+
+  /**
+   * Adds a term at the next position of the given scope.
+   * 
+   * @param scope The scope.
+   * @param term The term.
+   */
+  void add(final Scope scope, final String term) {
+    final ScopePostings sp = getScopePostings(scope);
+    sp.add(term, sp.numTokens++);
+  }
+
+  /**
+   * Returns the scopes that have at least one token.
+   * 
+   * @return The scopes, in declaration order.
+   */
+  public List<Scope> getScopes() {
+    final List<Scope> list = new ArrayList<>();
+    for (Scope scope : Scope.values()) {
+      if (scopes[scope.ordinal()] != null) {
+        list.add(scope);
+      }
+    }
+    return list;
+  }
+
+  /**
+   * Returns the number of tokens in the given scope.
+   * 
+   * @param scope The scope.
+   * @return The number of tokens.
+   */
+  public int getTokenCount(final Scope scope) {
+    final ScopePostings sp = scopes[scope.ordinal()];
+    return sp == null ? 0 : sp.numTokens;
+  }
+
+  /**
+   * Returns the distinct terms of the given scope.
+   * 
+   * @param scope The scope.
+   * @return The terms, sorted.
+   */
+  public List<String> getTerms(final Scope scope) {
+    final ScopePostings sp = scopes[scope.ordinal()];
+    if (sp == null) {
+      return Collections.emptyList();
+    }
+    final String[] terms = Arrays.copyOf(sp.terms, sp.numTerms);
+    Arrays.sort(terms);
+    return Arrays.asList(terms);
+  }
+
+  /**
+   * Returns the positions of the given term in the given scope.
+   * 
+   * @param scope The scope.
+   * @param term The term.
+   * @return The positions, in ascending order; empty if the term does not occur.
+   */
+  public int[] getPositions(final Scope scope, final String term) {
+    final ScopePostings sp = scopes[scope.ordinal()];
+    final Integer id = sp == null ? null : sp.termIds.get(term);
+    if (id == null) {
+      return new int[0];
+    }
+    return Arrays.copyOf(sp.positions[id], sp.counts[id]);
+  }
+
+  /**
+   * Writes this index in binary format.
+   * 
+   * @param out The output stream; not closed.
+   * @throws IOException
+   */
+  public void writeTo(final OutputStream out) throws IOException {
+    final CodedOutputStream cos = CodedOutputStream.newInstance(out);
+    cos.writeRawBytes(MAGIC);
+    cos.writeRawVarint32(VERSION);
+    final List<Scope> nonEmpty = getScopes();
+    cos.writeRawVarint32(nonEmpty.size());
+    for (Scope scope : nonEmpty) {
+      final ScopePostings sp = scopes[scope.ordinal()];
+      cos.writeStringNoTag(scope.name());
+      cos.writeRawVarint32(sp.numTokens);
+      cos.writeRawVarint32(sp.numTerms);
+      for (String term : getTerms(scope)) {
+        final int id = sp.termIds.get(term);
+        final int[] positions = sp.positions[id];
+        final int n = sp.counts[id];
+        cos.writeStringNoTag(term);
+        cos.writeRawVarint32(n);
+        int last = 0;
+        for (int i = 0; i < n; i++) {
+          cos.writeRawVarint32(positions[i] - last);
+          last = positions[i];
+        }
+      }
+    }
+    cos.flush();
+  }
+
+  /**
+   * Reads an index that has been written using {@link #writeTo(OutputStream)}.
+   * 
+   * @param in The input stream.
+   * @return The index.
+   * @throws IOException if the data is malformed, or uses an unknown scope.
+   */
+  public static DocumentIndex readFrom(final InputStream in) throws IOException {
+    final CodedInputStream cis = CodedInputStream.newInstance(in);
+    cis.setSizeLimit(Integer.MAX_VALUE);
+    if (!Arrays.equals(MAGIC, cis.readRawBytes(MAGIC.length))) {
+      throw new IOException("Not a document index");
+    }
+    final int version = cis.readRawVarint32();
+    if (version != VERSION) {
+      throw new IOException("Unsupported document index version: " + version);
+    }
+
+    final DocumentIndex index = new DocumentIndex();
+    for (int s = cis.readRawVarint32(); s > 0; s--) {
+      final Scope scope;
+      try {
+        scope = Scope.valueOf(cis.readString());
+      } catch (IllegalArgumentException e) {
+        throw new IOException("Unknown scope", e);
+      }
+      final ScopePostings sp = index.getScopePostings(scope);
+      sp.numTokens = cis.readRawVarint32();
+      for (int t = cis.readRawVarint32(); t > 0; t--) {
+        final String term = cis.readString();
+        int position = 0;
+        for (int n = cis.readRawVarint32(); n > 0; n--) {
+          position += cis.readRawVarint32();
+          if (position < 0 || position >= sp.numTokens) {
+            throw new IOException("Invalid position: " + position);
+          }
+          sp.add(term, position);
+        }
+      }
+    }
+    return index;
+  }
+
+  private ScopePostings getScopePostings(final Scope scope) {
+    ScopePostings sp = scopes[scope.ordinal()];
+    if (sp == null) {
+      sp = new ScopePostings();
+      scopes[scope.ordinal()] = sp;
+    }
+    return sp;
+  }
+
+  /**
+   * Postings of one scope; the positions of each term are kept in a growable
+   * {@code int[]}.
+   */
+  private static final class ScopePostings {
+    final Map<String, Integer> termIds = new HashMap<>();
+    String[] terms = new String[64];
+    int[][] positions = new int[64][];
+    int[] counts = new int[64];
+    int numTerms = 0;
+    int numTokens = 0;
+
+    void add(final String term, final int position) {
+      Integer id = termIds.get(term);
+      if (id == null) {
+        id = newTerm(term);
+      }
+      int[] p = positions[id];
+      final int n = counts[id];
+      if (n == p.length) {
+        p = Arrays.copyOf(p, n * 2);
+        positions[id] = p;
+      }
+      p[n] = position;
+      counts[id] = n + 1;
+    }
+
+    private int newTerm(final String term) {
+      final int id = numTerms++;
+      if (id == terms.length) {
+        terms = Arrays.copyOf(terms, id * 2);
+        positions = Arrays.copyOf(positions, id * 2);
+        counts = Arrays.copyOf(counts, id * 2);
+      }
+      terms[id] = term;
+      positions[id] = new int[2];
+      termIds.put(term, id);
+      return id;
+    }
+  }
+}
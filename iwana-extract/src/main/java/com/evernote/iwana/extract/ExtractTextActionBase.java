@@ -15,7 +15,7 @@
  */
 package com.evernote.iwana.extract;
 
-import com.evernote.iwana.MessageAction;
+import com.evernote.iwana.HeaderMessageAction;
 import com.google.protobuf.Message;
 import com.google.protobuf.Parser;
 
@@ -23,7 +23,11 @@ import com.google.protobuf.Parser;
  * Some {@link MessageAction} using an {@link ExtractTextIWAContext}.
  */
 abstract class ExtractTextActionBase<T extends Message> extends
-    MessageAction<T, ExtractTextIWAContext> {
+    HeaderMessageAction<T, ExtractTextIWAContext> {
+  protected ExtractTextActionBase(Class<T> messageType) {
+    super(messageType);
+  }
+
   protected ExtractTextActionBase(Parser<T> parser) {
     super(parser);
   }
@@ -16,29 +16,42 @@
 package com.evernote.iwana.extract;
 
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * A demo application.
+ * 
+ * Writes the text of all given documents to standard output, UTF-8 encoded, either as
+ * plain text or as JSON Lines (with {@code --jsonl}; see {@link JsonLinesSink}).
  */
 public class ExtractTextApp {
   public static void main(String[] args) throws IOException {
-    if (args.length != 1) {
-      System.err.println("Syntax: ExtractTextApp <filename>");
+    List<String> files = Arrays.asList(args);
+    boolean jsonLines = false;
+    if (!files.isEmpty() && "--jsonl".equals(files.get(0))) {
+      jsonLines = true;
+      files = files.subList(1, files.size());
+    }
+    if (files.isEmpty()) {
+      System.err.println("Syntax: ExtractTextApp [--jsonl] <filename> [<filename>...]");
       System.exit(1);
     }
 
-    ExtractTextCallback target = new ExtractTextCallback() {
-
-      @Override
-      public void onTextBlock(String text, TextAttributes scope) {
-        System.out.println(text);
-        System.out.println();
-      }
-
-    };
-
+    FileOutputStream stdout = new FileOutputStream(FileDescriptor.out);
     ExtractTextIWAParser parser = new ExtractTextIWAParser();
-    parser.parse(new File(args[0]), target);
+    try (TextSink target =
+        jsonLines ? new JsonLinesSink(stdout) : new PlainTextSink(stdout)) {
+      for (String filename : files) {
+        File file = new File(filename);
+        target.setDocumentName(file.getName());
+        parser.parse(file, target);
+      }
+    } catch (TextSink.SinkException e) {
+      throw e.getCause();
+    }
   }
 }
@@ -29,4 +29,23 @@ public abstract class ExtractTextCallback extends IwanaParserCallback {
    * @param attrs Some text attributes
    */
   public abstract void onTextBlock(final String text, TextAttributes attrs);
+
+  /**
+   * Called for a portion of text extracted from the document, along with the number of
+   * times the same text has already been passed to this callback for this document.
+   * 
+   * Repeats are only counted if string deduplication is enabled (see
+   * {@link ExtractTextIWAParser#setDeduplicateStrings(boolean)}); otherwise,
+   * {@code repeatCount} is always {@code 0}.
+   * 
+   * The default implementation calls {@link #onTextBlock(String, TextAttributes)}, so
+   * consumers that can skip repeated work should override this method.
+   * 
+   * @param text The text block.
+   * @param attrs Some text attributes
+   * @param repeatCount The number of times the same text has been seen before.
+   */
+  public void onTextBlock(final String text, TextAttributes attrs, int repeatCount) {
+    onTextBlock(text, attrs);
+  }
 }
@@ -15,18 +15,23 @@
  */
 package com.evernote.iwana.extract;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.apache.log4j.Logger;
+
 import com.evernote.iwana.IwanaContext;
-import com.evernote.iwana.pb.TSD.TSDArchives.GroupArchive;
+import com.evernote.iwana.extract.TextAttributes.Scope;
 import com.evernote.iwana.pb.TSP.TSPMessages.Reference;
 import com.evernote.iwana.pb.TSWP.TSWPArchives.ObjectAttributeTable.ObjectAttribute;
-import com.evernote.iwana.pb.TSWP.TSWPArchives.ShapeInfoArchive;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.Message;
 
 /**
@@ -34,36 +39,264 @@ import com.google.protobuf.Message;
  * document.
  */
 public abstract class ExtractTextIWAContext extends IwanaContext<ExtractTextCallback> {
+  private static final Logger LOG = Logger.getLogger(ExtractTextIWAContext.class);
+
+  static final Set<Scope> ALL_SCOPES = Collections.unmodifiableSet(EnumSet
+      .allOf(Scope.class));
+
   protected ExtractTextIWAContext(String documentFilename, ExtractTextCallback target) {
     super(documentFilename, target);
   }
 
   final Map<Long, TextBlock> objectIdToText = new HashMap<>();
   final Set<Long> ignorableStyles = new HashSet<>();
-  final Map<Long, Message> objectStorage = new HashMap<>();
+  final Map<Long, Object> objectStorage = new HashMap<>();
+  private final Map<Long, List<GeometryObject>> flattenedGroups = new HashMap<>();
+  private final ReadingOrder readingOrder = new ReadingOrder();
+
+  private TemplateCache templateCache;
+  private StringDeduplicator strings;
+  private Set<Scope> scopes = ALL_SCOPES;
+  private final Map<String, PendingTemplate> pendingTemplates = new HashMap<>();
+  private PendingTemplate currentTemplate;
+  private boolean stylesheetDecoded;
+
+  /**
+   * Enables sharing decoded template files (see {@link #isTemplateFile(String)}) across
+   * documents, using the given cache.
+   * 
+   * @param templateCache The cache, or {@code null} to disable.
+   */
+  void setTemplateCache(TemplateCache templateCache) {
+    this.templateCache = templateCache;
+  }
+
+  TemplateCache getTemplateCache() {
+    return templateCache;
+  }
+
+  /**
+   * Enables string deduplication for this document.
+   * 
+   * @param strings The deduplication table, or {@code null} to disable.
+   */
+  void setStringDeduplicator(StringDeduplicator strings) {
+    this.strings = strings;
+  }
+
+  /**
+   * Restricts the text passed to our target to the given scopes. Contexts skip decoding
+   * and processing whatever is only needed for other scopes.
+   * 
+   * @param scopes The wanted scopes.
+   */
+  void setScopes(Set<Scope> scopes) {
+    this.scopes = scopes;
+  }
+
+  /**
+   * Checks whether text of the given scope is passed to our target.
+   * 
+   * @param scope The scope.
+   * @return {@code true} if wanted.
+   */
+  boolean isWanted(Scope scope) {
+    return scopes.contains(scope);
+  }
+
+  /**
+   * Returns the given attributes if text of their scope is wanted.
+   * 
+   * @param attrs The attributes.
+   * @return The attributes, or {@code null} if their scope is not wanted.
+   */
+  TextAttributes ifWanted(TextAttributes attrs) {
+    return scopes.contains(attrs.getScope()) ? attrs : null;
+  }
+
+  /**
+   * Decodes the given UTF-8 string, returning the same instance for repeated values if
+   * string deduplication is enabled.
+   * 
+   * @param utf8 The UTF-8 encoded string.
+   * @return The decoded string.
+   */
+  String decode(final ByteString utf8) {
+    return strings == null ? utf8.toStringUtf8() : strings.decode(utf8);
+  }
+
+  /**
+   * Passes the given text block to our target, unless it has requested to stop, or the
+   * text's scope is not wanted.
+   * 
+   * @param text The text block.
+   * @param attrs The text attributes.
+   */
+  void emit(final String text, final TextAttributes attrs) {
+    if (target.isStopRequested() || !scopes.contains(attrs.getScope())) {
+      return;
+    }
+    target.onTextBlock(text, attrs, strings == null ? 0 : strings.countEmitted(text));
+  }
+
+  /**
+   * Checks whether the named {@code .iwa} file is part of a template that is likely
+   * shared with other documents, and may therefore be cached in a {@link TemplateCache}.
+   * 
+   * @param name The name of the {@code .iwa} file.
+   * @return {@code true} if the file is a template file.
+   */
+  protected boolean isTemplateFile(String name) {
+    return false;
+  }
+
+  @Override
+  public boolean acceptIWAFile(String name) {
+    return !scopes.isEmpty();
+  }
+
+  @Override
+  public boolean needsIWAFingerprint(String name) {
+    return templateCache != null && isTemplateFile(name);
+  }
+
+  @Override
+  public boolean onIWAFingerprint(String name, long crc, long size) {
+    TemplateCache.Entry entry = templateCache.get(crc, size);
+    if (entry != null) {
+      replay(entry);
+      onStylesheetDecoded(name);
+      return true;
+    }
+
+    // record the file's contents when it is parsed; this may happen after other files
+    // have been fingerprinted
+    pendingTemplates.put(name, new PendingTemplate(crc, size));
+    return false;
+  }
+
+  @Override
+  public void onBeginParseIWAFile(String name) {
+    currentTemplate = pendingTemplates.remove(name);
+  }
+
+  @Override
+  public void onFailParseIWAFile(String name) {
+    currentTemplate = null;
+  }
+
+  @Override
+  public void onEndParseIWAFile(String name) {
+    if (currentTemplate != null) {
+      templateCache.put(currentTemplate.crc, currentTemplate.size,
+          currentTemplate.recorder.toEntry());
+      currentTemplate = null;
+    }
+    onStylesheetDecoded(name);
+  }
+
+  private void onStylesheetDecoded(String name) {
+    if (name.contains("/DocumentStylesheet")) {
+      stylesheetDecoded = true;
+    }
+  }
+
+  /**
+   * A template file that is being recorded for the {@link TemplateCache}.
+   */
+  private static final class PendingTemplate {
+    final long crc;
+    final long size;
+    final TemplateCache.Recorder recorder = new TemplateCache.Recorder();
+
+    PendingTemplate(long crc, long size) {
+      this.crc = crc;
+      this.size = size;
+    }
+  }
+
+  private void replay(TemplateCache.Entry entry) {
+    for (int i = 0; i < entry.objectIds.length; i++) {
+      objectStorage.put(entry.objectIds[i], entry.objects[i]);
+    }
+    for (int i = 0; i < entry.textIds.length; i++) {
+      List<ObjectAttribute> attrs = entry.objectAttributes.get(i);
+      TextBlock tb = getTextBlock(entry.textIds[i]);
+      tb.text = entry.texts[i];
+      tb.objectAttributes = attrs == null ? null : new ArrayList<>(attrs);
+    }
+    for (long id : entry.ignorableStyles) {
+      ignorableStyles.add(id);
+    }
+  }
 
-  protected <T extends Message> T getObject(final Reference ref, final Class<T> objectType) {
+  /**
+   * Stores a message, or an immutable projection of it, for deferred processing.
+   * 
+   * @param id The message's archive identifier.
+   * @param object The message or its projection (see {@link ProjectObject}).
+   */
+  void storeObject(final long id, final Object object) {
+    objectStorage.put(id, object);
+    if (currentTemplate != null) {
+      currentTemplate.recorder.onObject(id, object);
+    }
+  }
+
+  /**
+   * Sets the text of the {@link TextBlock} for the given storage.
+   * 
+   * @param id The storage's archive identifier.
+   * @param text The text.
+   * @param attrs The object attributes with character indexes, or {@code null}.
+   */
+  void setText(final long id, final String text, final List<ObjectAttribute> attrs) {
+    TextBlock tb = getTextBlock(id);
+    tb.text = text;
+    tb.objectAttributes = attrs;
+    if (currentTemplate != null) {
+      currentTemplate.recorder.onText(id, text, attrs);
+    }
+  }
+
+  /**
+   * Marks the given object as a style whose text should be treated as placeholder text.
+   * 
+   * @param id The style's archive identifier.
+   */
+  void addIgnorableStyle(final long id) {
+    ignorableStyles.add(id);
+    if (currentTemplate != null) {
+      currentTemplate.recorder.onIgnorableStyle(id);
+    }
+  }
+
+  protected <T> T getObject(final Reference ref, final Class<T> objectType) {
     return getObject(ref.getIdentifier(), objectType);
   }
 
-  protected <T extends Message> T getObject(final long id, final Class<T> objectType) {
-    Message m = objectStorage.get(id);
-    if (m == null) {
+  protected <T> T getObject(final long id, final Class<T> objectType) {
+    return cast(objectStorage.get(id), objectType);
+  }
+
+  private <T> T cast(final Object o, final Class<T> objectType) {
+    if (o == null) {
       // LOG.info("Object " + id + " does not exist / has not been parsed");
       return null;
     }
-    if (!objectType.isAssignableFrom(m.getClass())) {
-
-      // poor-man's type inference
-      m = tryCast(m, objectType);
-      if (m != null) {
-        return objectType.cast(m);
+    if (!objectType.isInstance(o)) {
+      if (o instanceof Message && Message.class.isAssignableFrom(objectType)) {
+        // poor-man's type inference
+        Message m = tryCast((Message) o, objectType.asSubclass(Message.class));
+        if (m != null) {
+          return objectType.cast(m);
+        }
       }
 
       // LOG.info("Object " + id + " cannot be cast to " + objectType);
       return null;
     }
-    return objectType.cast(m);
+    return objectType.cast(o);
   }
 
   /**
@@ -83,37 +316,115 @@ public abstract class ExtractTextIWAContext extends IwanaContext<ExtractTextCall
   }
 
   /**
-   * Resolves a list of {@link Reference}s to a list of {@link Message} instances.
+   * Resolves a list of object identifiers to a list of objects.
    * 
-   * Messages that could not be resolved are skipped.
+   * Objects that could not be resolved are skipped. When resolving
+   * {@link GeometryObject}s, {@link GroupObject}s are replaced by their children.
    * 
-   * @param refs The list of {@link Reference}s.
-   * @param objectType The list of messages that we could resolve, or an empty list.
-   * @param <T> a subclass of a {@link Message}
-   * @return The resolved list.
+   * @param ids The object identifiers.
+   * @param objectType The type of objects to resolve.
+   * @param <T> The object type.
+   * @return The list of objects that we could resolve, or an empty list.
    */
-  protected <T extends Message> List<T> resolve(final List<Reference> refs,
-      final Class<T> objectType) {
+  protected <T> List<T> resolve(final long[] ids, final Class<T> objectType) {
     List<T> objects = new ArrayList<>();
-    if (refs == null) {
-      return objects;
-    }
-    for (Reference ref : refs) {
-      long id = ref.getIdentifier();
-      T obj = getObject(id, objectType);
-      if (obj != null) {
-        objects.add(obj);
+    for (long id : ids) {
+      final Object o = objectStorage.get(id);
+      if (o instanceof GroupObject && objectType == GeometryObject.class) {
+        for (GeometryObject go : flattenGroup(id, (GroupObject) o)) {
+          objects.add(objectType.cast(go));
+        }
+      } else {
+        T obj = cast(o, objectType);
+        if (obj != null) {
+          objects.add(obj);
+        }
       }
+    }
+    return objects;
+  }
 
-      if (objectType == ShapeInfoArchive.class) {
-        // check other types to cast
-        GroupArchive arc = getObject(id, GroupArchive.class);
-        if (arc != null) {
-          objects.addAll(resolve(arc.getChildrenList(), objectType));
+  /**
+   * Returns the {@link GeometryObject}s contained in the given group and its nested
+   * groups, in document order.
+   * 
+   * Groups are walked iteratively, so deep nesting cannot overflow the stack, and the
+   * result for every group visited along the way is memoized, as groups are typically
+   * resolved more than once (e.g., from several slides that share a master). A group
+   * that (indirectly) contains itself is only expanded once; the groups of such a cycle
+   * are not memoized, as their result depends on where the walk entered the cycle.
+   * 
+   * @param id The group's archive identifier.
+   * @param group The group.
+   * @return The flattened children (unmodifiable).
+   */
+  private List<GeometryObject> flattenGroup(final long id, final GroupObject group) {
+    List<GeometryObject> flattened = flattenedGroups.get(id);
+    if (flattened != null) {
+      return flattened;
+    }
+
+    final ArrayDeque<GroupFrame> stack = new ArrayDeque<>();
+    final Map<Long, Integer> onStack = new HashMap<>();
+    stack.push(new GroupFrame(id, group, 1));
+    onStack.put(id, 1);
+    while (true) {
+      final GroupFrame frame = stack.peek();
+      if (frame.next < frame.childIds.length) {
+        final long childId = frame.childIds[frame.next++];
+        final Object o = objectStorage.get(childId);
+        if (o instanceof GeometryObject) {
+          frame.children.add((GeometryObject) o);
+        } else if (o instanceof GroupObject) {
+          final List<GeometryObject> memo = flattenedGroups.get(childId);
+          final Integer depth = onStack.get(childId);
+          if (memo != null) {
+            frame.children.addAll(memo);
+          } else if (depth == null) {
+            final int childDepth = frame.depth + 1;
+            stack.push(new GroupFrame(childId, (GroupObject) o, childDepth));
+            onStack.put(childId, childDepth);
+          } else {
+            LOG.info("Circular group reference detected: id=" + childId);
+            frame.cycleDepth = Math.min(frame.cycleDepth, depth);
+          }
         }
+        continue;
+      }
+
+      stack.pop();
+      onStack.remove(frame.id);
+      flattened = Collections.unmodifiableList(frame.children);
+      if (frame.cycleDepth > frame.depth) {
+        // not part of a cycle, so the result does not depend on where the walk started
+        flattenedGroups.put(frame.id, flattened);
+      }
+      final GroupFrame parent = stack.peek();
+      if (parent == null) {
+        return flattened;
       }
+      parent.children.addAll(flattened);
+      parent.cycleDepth = Math.min(parent.cycleDepth, frame.cycleDepth);
+    }
+  }
+
+  /**
+   * A group whose children are being flattened by {@link #flattenGroup(long, GroupObject)}.
+   */
+  private static final class GroupFrame {
+    final long id;
+    final long[] childIds;
+    final int depth;
+    final List<GeometryObject> children = new ArrayList<>();
+    int next;
+    // the depth of the shallowest group on the stack that a cycle led back to
+    int cycleDepth = Integer.MAX_VALUE;
+
+    GroupFrame(long id, GroupObject group, int depth) {
+      this.id = id;
+      this.childIds = group.childIds;
+      this.depth = depth;
     }
-    return objects;
   }
 
   TextBlock getTextBlock(final long objectId) {
@@ -128,17 +439,29 @@ public abstract class ExtractTextIWAContext extends IwanaContext<ExtractTextCall
 
   @Override
   public void onEndParseIndexZip() {
-    // Remove placeholder text
-    removePlaceholderText();
-
-    // Order content
-    Message obj = objectStorage.get(1L);
-    if (obj != null) {
-      processRootObject(obj);
+    if (isStopRequested()) {
+      // The target has enough; skip ordering and emitting the collected text
+      return;
     }
 
-    // Dump unreferenced text
-    dumpUnreferencedTextBlocks();
+    final Object event = beginAssembly();
+    try {
+      // Remove placeholder text
+      removePlaceholderText();
+
+      // Order content
+      Object obj = objectStorage.get(1L);
+      if (obj instanceof Message) {
+        processRootObject((Message) obj);
+      }
+
+      // Dump unreferenced text
+      if (isWanted(Scope.UNREFERENCED)) {
+        dumpUnreferencedTextBlocks();
+      }
+    } finally {
+      endAssembly(event);
+    }
   }
 
   protected void dumpUnreferencedTextBlocks() {
@@ -149,7 +472,7 @@ public abstract class ExtractTextIWAContext extends IwanaContext<ExtractTextCall
         continue;
       }
 
-      target.onTextBlock(tb.flushText(), TextAttributes.DEFAULT_UNREFERENCED);
+      emit(tb.flushText(), TextAttributes.DEFAULT_UNREFERENCED);
     }
   }
 
@@ -166,26 +489,49 @@ public abstract class ExtractTextIWAContext extends IwanaContext<ExtractTextCall
    * Removes placeholder text from the retrieved text blocks.
    */
   protected void removePlaceholderText() {
-    for (Map.Entry<Long, TextBlock> en : objectIdToText.entrySet()) {
-      TextBlock tb = en.getValue();
-      if (tb.objectAttributes != null) {
+    for (TextBlock tb : objectIdToText.values()) {
+      removePlaceholderText(tb);
+    }
+  }
+
+  /**
+   * Checks whether placeholder text can already be removed from the given text block,
+   * before the whole document has been decoded. The placeholder styles it may refer to
+   * are defined in the document's stylesheet, which may be decoded after the text.
+   * 
+   * @param tb The text block.
+   * @return {@code true} if the text block has no object attributes, or the stylesheet
+   *         has been decoded.
+   */
+  boolean canRemovePlaceholderText(TextBlock tb) {
+    return tb.objectAttributes == null || stylesheetDecoded;
+  }
 
-        int placeholderStart = -1;
-        for (ObjectAttribute oa : IwanaUtil.sortObjectAttributes(tb.objectAttributes)) {
-          fixPlaceholder(tb, placeholderStart, oa.getCharacterIndex());
+  /**
+   * Removes placeholder text from the given text block, unless it has already been
+   * emitted.
+   * 
+   * @param tb The text block.
+   */
+  void removePlaceholderText(TextBlock tb) {
+    if (tb.objectAttributes == null || tb.text == null) {
+      return;
+    }
 
-          if (oa.hasObject()) {
-            if (ignorableStyles.contains(oa.getObject().getIdentifier())) {
-              placeholderStart = oa.getCharacterIndex();
-            }
-          } else {
-            placeholderStart = -1;
-          }
-        }
+    int placeholderStart = -1;
+    for (ObjectAttribute oa : IwanaUtil.sortObjectAttributes(tb.objectAttributes)) {
+      fixPlaceholder(tb, placeholderStart, oa.getCharacterIndex());
 
-        fixPlaceholder(tb, placeholderStart, tb.text.length());
+      if (oa.hasObject()) {
+        if (ignorableStyles.contains(oa.getObject().getIdentifier())) {
+          placeholderStart = oa.getCharacterIndex();
+        }
+      } else {
+        placeholderStart = -1;
       }
     }
+
+    fixPlaceholder(tb, placeholderStart, tb.text.length());
   }
 
   protected void addContainedStorageTextBlock(Reference containedStorageRef,
@@ -193,14 +539,58 @@ public abstract class ExtractTextIWAContext extends IwanaContext<ExtractTextCall
     if (containedStorageRef == null) {
       return;
     }
-    long storageArchiveID = containedStorageRef.getIdentifier();
+    addContainedStorageTextBlock(containedStorageRef.getIdentifier(), attrs);
+  }
+
+  /**
+   * Adds the text of the given storage, unless it has already been added.
+   * 
+   * @param storageArchiveID The storage's archive identifier.
+   * @param attrs The text attributes, or {@code null} to only mark the text as
+   *          referenced, so it is not reported as unreferenced text.
+   */
+  protected void addContainedStorageTextBlock(final long storageArchiveID,
+      TextAttributes attrs) {
     TextBlock textBlock = objectIdToText.get(storageArchiveID);
     if (textBlock == null || textBlock.done) {
       return;
     }
     textBlock.done = true;
 
-    target.onTextBlock(textBlock.flushText(), attrs);
+    if (attrs != null) {
+      emit(textBlock.flushText(), attrs);
+    }
+  }
+
+  /**
+   * Adds the contained storage text of the given {@link GeometryObject}s, in reading
+   * order (top-to-bottom, left-to-right).
+   *
+   * @param geoms The objects to add.
+   * @param attrs The attributes to use for all text blocks, or {@code null} to only mark
+   *          the text as referenced.
+   * @see ReadingOrder
+   */
+  protected void addContainedStorageTextBlocksInReadingOrder(List<GeometryObject> geoms,
+      TextAttributes attrs) {
+    final int n = geoms.size();
+    if (attrs == null) {
+      for (int i = 0; i < n; i++) {
+        addContainedStorageTextBlock(geoms.get(i).storageId, null);
+      }
+      return;
+    }
+
+    readingOrder.clear();
+    for (int i = 0; i < n; i++) {
+      GeometryObject go = geoms.get(i);
+      readingOrder.add(go.x, go.y, go.width, go.height);
+    }
+
+    final int[] order = readingOrder.sort();
+    for (int i = 0; i < n; i++) {
+      addContainedStorageTextBlock(geoms.get(order[i]).storageId, attrs);
+    }
   }
 
   private void fixPlaceholder(TextBlock tb, final int placeholderStart,
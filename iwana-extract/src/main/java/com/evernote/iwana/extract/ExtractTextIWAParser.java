@@ -15,30 +15,205 @@
  */
 package com.evernote.iwana.extract;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+import com.evernote.iwana.DocumentType;
 import com.evernote.iwana.IwanaParser;
+import com.evernote.iwana.SnappyDecompressors;
+import com.evernote.iwana.extract.TextAttributes.Scope;
 
 /**
  * An {@link IwanaParser} that can extract text from Keynote, Pages, Numbers, and
  * potentially other iWork'13-style documents.
  */
-class ExtractTextIWAParser extends IwanaParser<ExtractTextCallback> {
+public class ExtractTextIWAParser extends IwanaParser<ExtractTextCallback> {
+  private TemplateCache templateCache;
+  private boolean deduplicateStrings;
+  private Set<Scope> scopes = ExtractTextIWAContext.ALL_SCOPES;
+  private boolean skipHiddenSlides;
+  private boolean skipCollapsedSlides;
+
+  /**
+   * Enables extracting Keynote master slide text, using the given cache to share decoded
+   * master slides and themes across documents.
+   * 
+   * The cache may be shared between parser instances and threads.
+   * 
+   * @param templateCache The cache, or {@code null} to skip master slides (the default).
+   */
+  public void setTemplateCache(TemplateCache templateCache) {
+    this.templateCache = templateCache;
+  }
+
+  /**
+   * Returns the cache used for master slides and themes, if any.
+   * 
+   * @return The cache, or {@code null}.
+   */
+  public TemplateCache getTemplateCache() {
+    return templateCache;
+  }
+
+  /**
+   * Enables per-document string deduplication.
+   * 
+   * Repeated text values (such as table cells with the same category labels or dates)
+   * are then decoded only once and share the same {@link String} instance, and the
+   * callback is told how often each text block has been seen before (see
+   * {@link ExtractTextCallback#onTextBlock(String, TextAttributes, int)}).
+   * 
+   * @param deduplicateStrings {@code true} to enable deduplication (default:
+   *          {@code false}).
+   */
+  public void setDeduplicateStrings(boolean deduplicateStrings) {
+    this.deduplicateStrings = deduplicateStrings;
+  }
+
+  /**
+   * Checks whether per-document string deduplication is enabled.
+   * 
+   * @return {@code true} if enabled.
+   */
+  public boolean isDeduplicateStrings() {
+    return deduplicateStrings;
+  }
+
+  /**
+   * Restricts extraction to text of the given scopes.
+   * 
+   * Only the text of these scopes is passed to the callback, and whatever is only needed
+   * for other scopes is neither decoded nor processed: for example, Keynote speaker notes
+   * are skipped unless {@link Scope#NOTES} or {@link Scope#UNREFERENCED} is wanted, and
+   * master slides unless {@link Scope#MASTER} is wanted (which also requires a
+   * {@link #setTemplateCache(TemplateCache) template cache}). Unreferenced text can only be
+   * told apart from other text by processing all of it, so excluding
+   * {@link Scope#UNREFERENCED} saves the most.
+   * 
+   * The body text of Pages documents is document text, like their text boxes, shapes
+   * and tables; the placeholder text of Keynote master slides is unreferenced text.
+   * 
+   * @param scopes The wanted scopes, or {@code null} for all scopes (the default).
+   */
+  public void setScopes(Set<Scope> scopes) {
+    this.scopes = scopes == null ? ExtractTextIWAContext.ALL_SCOPES : Collections
+        .unmodifiableSet(EnumSet.copyOf(scopes));
+  }
+
+  /**
+   * Restricts extraction to text of the given scopes.
+   * 
+   * @param scopes The wanted scopes.
+   * @see #setScopes(Set)
+   */
+  public void setScopes(Scope... scopes) {
+    setScopes(scopes.length == 0 ? EnumSet.noneOf(Scope.class) : EnumSet.copyOf(Arrays
+        .asList(scopes)));
+  }
+
+  /**
+   * Returns the scopes of text to extract.
+   * 
+   * @return The scopes (unmodifiable).
+   */
+  public Set<Scope> getScopes() {
+    return scopes;
+  }
+
+  /**
+   * Skips the text of Keynote slides that are hidden in the slide show.
+   * 
+   * @param skipHiddenSlides {@code true} to skip hidden slides (default: {@code false}).
+   */
+  public void setSkipHiddenSlides(boolean skipHiddenSlides) {
+    this.skipHiddenSlides = skipHiddenSlides;
+  }
+
+  /**
+   * Checks whether the text of hidden Keynote slides is skipped.
+   * 
+   * @return {@code true} if hidden slides are skipped.
+   */
+  public boolean isSkipHiddenSlides() {
+    return skipHiddenSlides;
+  }
+
+  /**
+   * Skips the text of Keynote slides that are nested under a collapsed slide in the
+   * slide navigator.
+   * 
+   * @param skipCollapsedSlides {@code true} to skip collapsed slides (default:
+   *          {@code false}).
+   */
+  public void setSkipCollapsedSlides(boolean skipCollapsedSlides) {
+    this.skipCollapsedSlides = skipCollapsedSlides;
+  }
+
+  /**
+   * Checks whether the text of collapsed Keynote slides is skipped.
+   * 
+   * @return {@code true} if collapsed slides are skipped.
+   */
+  public boolean isSkipCollapsedSlides() {
+    return skipCollapsedSlides;
+  }
+
+  /**
+   * Initializes the message parsers and generated protobuf classes needed for the given
+   * document types, so that the first document of each type does not pay for it.
+   * 
+   * Message classes are otherwise initialized lazily, upon the first message of each
+   * type. Services may call this method at startup, off the request path.
+   * 
+   * @param types The document types, or none for all types.
+   */
+  public static void warmUp(DocumentType... types) {
+    if (types.length == 0) {
+      types = DocumentType.values();
+    }
+    SnappyDecompressors.getDefault();
+
+    final ExtractTextIWAParser parser = new ExtractTextIWAParser();
+    for (DocumentType type : types) {
+      ((ContextBase) parser.newContext(null, type, null)).getMessageTypeActions().warmUp();
+    }
+  }
+
   @Override
   protected ExtractTextIWAContext newContext(String documentName,
       ExtractTextCallback target) {
-    //FIXME -- the original document name is not actually
-    //passed into this by the IWAParser.  So, for now,
-    //this is misleading because the ContextBase is always returned
-    if (documentName == null) {
-      return new ContextBase(documentName, target);
+    return newContext(documentName, DocumentType.fromDocumentName(documentName), target);
+  }
+
+  @Override
+  protected ExtractTextIWAContext newContext(String documentName, DocumentType type,
+      ExtractTextCallback target) {
+    ExtractTextIWAContext context;
+    switch (type) {
+      case KEYNOTE:
+        context = new KeynoteContext(documentName, target);
+        break;
+      case PAGES:
+        context = new PagesContext(documentName, target);
+        break;
+      case NUMBERS:
+        context = new NumbersContext(documentName, target);
+        break;
+      default:
+        context = new ContextBase(documentName, target);
+        break;
+    }
+    context.setTemplateCache(templateCache);
+    context.setScopes(scopes);
+    if (context instanceof KeynoteContext) {
+      ((KeynoteContext) context).setSkipHiddenSlides(skipHiddenSlides);
+      ((KeynoteContext) context).setSkipCollapsedSlides(skipCollapsedSlides);
     }
-    if (documentName.endsWith(".key")) {
-      return new KeynoteContext(documentName, target);
-    } else if (documentName.endsWith(".pages")) {
-      return new PagesContext(documentName, target);
-    } else if (documentName.endsWith(".numbers")) {
-      return new NumbersContext(documentName, target);
-    } else {
-      return new ContextBase(documentName, target);
+    if (deduplicateStrings) {
+      context.setStringDeduplicator(new StringDeduplicator());
     }
+    return context;
   }
 }
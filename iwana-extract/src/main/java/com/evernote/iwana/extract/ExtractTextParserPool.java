@@ -0,0 +1,150 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import com.evernote.iwana.ParserPool;
+import com.evernote.iwana.extract.TextAttributes.Scope;
+
+/**
+ * A {@link ParserPool} of {@link ExtractTextIWAParser}s, all configured alike.
+ * 
+ * The configuration must be set before the first parser is acquired. Parsers may be
+ * created by whichever thread acquires one, so the configuration fields are volatile.
+ */
+public class ExtractTextParserPool extends ParserPool<ExtractTextIWAParser> {
+  private volatile TemplateCache templateCache;
+  private volatile Executor decodeExecutor;
+  private volatile Executor pipelineExecutor;
+  private volatile boolean deduplicateStrings;
+  private volatile Set<Scope> scopes;
+  private volatile boolean skipHiddenSlides;
+  private volatile boolean skipCollapsedSlides;
+
+  /**
+   * Creates a new pool.
+   * 
+   * @param maxIdle The maximum number of idle parsers to keep; typically the number of
+   *          concurrent parses.
+   */
+  public ExtractTextParserPool(final int maxIdle) {
+    super(maxIdle);
+  }
+
+  /**
+   * Sets the cache for master slides and themes, shared by all parsers of this pool.
+   * 
+   * @param templateCache The cache, or {@code null}.
+   * @see ExtractTextIWAParser#setTemplateCache(TemplateCache)
+   */
+  public void setTemplateCache(final TemplateCache templateCache) {
+    this.templateCache = templateCache;
+  }
+
+  /**
+   * Sets the executor used to decode {@code .iwa} files in parallel.
+   * 
+   * @param decodeExecutor The executor, or {@code null}.
+   * @see ExtractTextIWAParser#setDecodeExecutor(Executor)
+   */
+  public void setDecodeExecutor(final Executor decodeExecutor) {
+    this.decodeExecutor = decodeExecutor;
+  }
+
+  /**
+   * Sets the executor used to decode large {@code .iwa} files in a pipeline.
+   * 
+   * @param pipelineExecutor The executor, or {@code null}.
+   * @see ExtractTextIWAParser#setPipelineExecutor(Executor)
+   */
+  public void setPipelineExecutor(final Executor pipelineExecutor) {
+    this.pipelineExecutor = pipelineExecutor;
+  }
+
+  /**
+   * Enables per-document string deduplication for all parsers of this pool.
+   * 
+   * @param deduplicateStrings {@code true} to enable deduplication.
+   * @see ExtractTextIWAParser#setDeduplicateStrings(boolean)
+   */
+  public void setDeduplicateStrings(final boolean deduplicateStrings) {
+    this.deduplicateStrings = deduplicateStrings;
+  }
+
+  /**
+   * Restricts extraction to text of the given scopes for all parsers of this pool.
+   * 
+   * @param scopes The wanted scopes, or {@code null} for all scopes.
+   * @see ExtractTextIWAParser#setScopes(Set)
+   */
+  public void setScopes(final Set<Scope> scopes) {
+    this.scopes = scopes;
+  }
+
+  /**
+   * Skips the text of hidden Keynote slides for all parsers of this pool.
+   * 
+   * @param skipHiddenSlides {@code true} to skip hidden slides.
+   * @see ExtractTextIWAParser#setSkipHiddenSlides(boolean)
+   */
+  public void setSkipHiddenSlides(final boolean skipHiddenSlides) {
+    this.skipHiddenSlides = skipHiddenSlides;
+  }
+
+  /**
+   * Skips the text of collapsed Keynote slides for all parsers of this pool.
+   * 
+   * @param skipCollapsedSlides {@code true} to skip collapsed slides.
+   * @see ExtractTextIWAParser#setSkipCollapsedSlides(boolean)
+   */
+  public void setSkipCollapsedSlides(final boolean skipCollapsedSlides) {
+    this.skipCollapsedSlides = skipCollapsedSlides;
+  }
+
+  @Override
+  protected ExtractTextIWAParser newParser() {
+    final ExtractTextIWAParser parser = new ExtractTextIWAParser();
+    parser.setTemplateCache(templateCache);
+    parser.setDecodeExecutor(decodeExecutor);
+    parser.setPipelineExecutor(pipelineExecutor);
+    parser.setDeduplicateStrings(deduplicateStrings);
+    parser.setScopes(scopes);
+    parser.setSkipHiddenSlides(skipHiddenSlides);
+    parser.setSkipCollapsedSlides(skipCollapsedSlides);
+    return parser;
+  }
+
+  /**
+   * Parses the given file using a parser from this pool.
+   * 
+   * @param iworkFile The input file.
+   * @param target The target.
+   * @throws IOException
+   */
+  public void parse(final File iworkFile, final ExtractTextCallback target)
+      throws IOException {
+    final ExtractTextIWAParser parser = acquire();
+    try {
+      parser.parse(iworkFile, target);
+    } finally {
+      release(parser);
+    }
+  }
+}
@@ -0,0 +1,601 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A long-running extraction server, so that clients do not pay JVM startup and JIT
+ * warm-up for every document.
+ * 
+ * Clients connect via TCP (by default, on the loopback interface only) and send one or
+ * more requests, without having to wait for responses (pipelining):
+ * 
+ * <pre>
+ * FILE &lt;path&gt;             extract text from a local file or package directory
+ * DATA &lt;length&gt;           extract text from a document in .zip format, sent as the
+ *                         &lt;length&gt; bytes that follow the request line
+ * QUIT                    close the connection after all responses have been sent
+ * </pre>
+ * 
+ * Request lines are UTF-8 encoded and terminated by {@code '\n'}. Responses are sent in
+ * request order; each consists of the document's text blocks in JSON Lines format (see
+ * {@link JsonLinesSink}), followed by a status line, either {@code {"status":"ok"}} or
+ * {@code {"status":"error","message":"..."}}.
+ * 
+ * Requests from all connections are processed by a fixed number of threads. Each
+ * connection may have a limited number of requests in flight, beyond which the server
+ * stops reading from it until responses have been sent. Documents sent inline are held
+ * in memory until they have been parsed; when their total size would exceed a global
+ * budget, the server stops reading {@code DATA} requests until memory is released.
+ * 
+ * The response to the oldest request of a connection is written to the socket while the
+ * document is being parsed; only the responses to later requests are buffered until it
+ * is their turn.
+ */
+public class ExtractTextServer implements Closeable {
+  private static final Logger LOG = Logger.getLogger(ExtractTextServer.class);
+
+  public static final int DEFAULT_PORT = 7357;
+
+  private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+  /**
+   * Marks the end of the responses for a connection.
+   */
+  private static final Response END = new Response();
+
+  private final ServerSocket serverSocket;
+  private final ExecutorService workers;
+  private final ThreadPoolExecutor connectionThreads = new ThreadPoolExecutor(0,
+      Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+  private final Set<Socket> connections = Collections
+      .newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+  private final ExtractTextParserPool parsers;
+  private final int maxInFlight;
+  private final int maxDataLength;
+  private final Semaphore dataBudget;
+
+  /**
+   * Creates a new server, bound to the given address. Up to {@code concurrency} documents
+   * of the maximum size may be held in memory at once.
+   * 
+   * @param address The address to listen on.
+   * @param concurrency The number of documents to parse concurrently.
+   * @param maxInFlight The maximum number of pending requests per connection.
+   * @param maxDataLength The maximum size of documents sent inline, in bytes.
+   * @throws IOException if the server socket cannot be bound.
+   */
+  public ExtractTextServer(final InetSocketAddress address, final int concurrency,
+      final int maxInFlight, final int maxDataLength) throws IOException {
+    this(address, concurrency, maxInFlight, maxDataLength,
+        (int) Math.min(Integer.MAX_VALUE, (long) maxDataLength * concurrency));
+  }
+
+  /**
+   * Creates a new server, bound to the given address.
+   * 
+   * @param address The address to listen on.
+   * @param concurrency The number of documents to parse concurrently.
+   * @param maxInFlight The maximum number of pending requests per connection.
+   * @param maxDataLength The maximum size of documents sent inline, in bytes.
+   * @param maxBufferedData The maximum total size of documents sent inline that are held
+   *          in memory, across all connections, in bytes. Must be at least
+   *          {@code maxDataLength}.
+   * @throws IOException if the server socket cannot be bound.
+   */
+  public ExtractTextServer(final InetSocketAddress address, final int concurrency,
+      final int maxInFlight, final int maxDataLength, final int maxBufferedData)
+      throws IOException {
+    if (concurrency <= 0 || maxInFlight <= 0 || maxDataLength < 0
+        || maxBufferedData < maxDataLength) {
+      throw new IllegalArgumentException("Invalid limits: concurrency=" + concurrency
+          + ", maxInFlight=" + maxInFlight + ", maxDataLength=" + maxDataLength
+          + ", maxBufferedData=" + maxBufferedData);
+    }
+    this.workers = Executors.newFixedThreadPool(concurrency);
+    this.parsers = new ExtractTextParserPool(concurrency);
+    this.maxInFlight = maxInFlight;
+    this.maxDataLength = maxDataLength;
+    // fair, so that large documents are not starved by small ones
+    this.dataBudget = new Semaphore(maxBufferedData, true);
+    this.serverSocket = new ServerSocket();
+    serverSocket.bind(address);
+  }
+
+  /**
+   * Returns the pool of parsers used by this server, so that it can be configured before
+   * the server is started.
+   * 
+   * @return The parser pool.
+   */
+  public ExtractTextParserPool getParserPool() {
+    return parsers;
+  }
+
+  /**
+   * Returns the port this server listens on.
+   * 
+   * @return The port.
+   */
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * Returns the number of threads that accept connections, or read requests from or write
+   * responses to a connection.
+   * 
+   * @return The approximate number of active threads.
+   */
+  int getActiveConnectionThreads() {
+    return connectionThreads.getActiveCount();
+  }
+
+  /**
+   * Starts accepting connections, in a background thread.
+   */
+  public void start() {
+    connectionThreads.execute(new Runnable() {
+      @Override
+      public void run() {
+        acceptConnections();
+      }
+    });
+  }
+
+  /**
+   * Stops accepting connections, and closes all open connections. Requests in progress
+   * are interrupted.
+   */
+  @Override
+  public void close() throws IOException {
+    serverSocket.close();
+    for (Socket socket : connections) {
+      closeQuietly(socket);
+    }
+    connectionThreads.shutdownNow();
+    workers.shutdownNow();
+  }
+
+  private void acceptConnections() {
+    while (!serverSocket.isClosed()) {
+      final Socket socket;
+      try {
+        socket = serverSocket.accept();
+      } catch (IOException e) {
+        if (!serverSocket.isClosed()) {
+          LOG.warn("Could not accept connection", e);
+        }
+        continue;
+      }
+      connections.add(socket);
+      try {
+        new Connection(socket).start();
+      } catch (IOException | RuntimeException e) {
+        LOG.warn("Could not start connection", e);
+        closeQuietly(socket);
+      }
+    }
+  }
+
+  private void closeQuietly(final Socket socket) {
+    connections.remove(socket);
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // ignore
+    }
+  }
+
+  /**
+   * A client connection, with a reader thread that submits requests, and a writer thread
+   * that sends the responses in request order.
+   */
+  private final class Connection {
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final BlockingQueue<Response> inFlight;
+
+    Connection(final Socket socket) throws IOException {
+      this.socket = socket;
+      this.in = new BufferedInputStream(socket.getInputStream());
+      this.out = socket.getOutputStream();
+      this.inFlight = new ArrayBlockingQueue<>(maxInFlight);
+    }
+
+    void start() {
+      connectionThreads.execute(new Runnable() {
+        @Override
+        public void run() {
+          readRequests();
+        }
+      });
+      connectionThreads.execute(new Runnable() {
+        @Override
+        public void run() {
+          writeResponses();
+        }
+      });
+    }
+
+    private void readRequests() {
+      boolean ended = false;
+      try {
+        String line;
+        while ((line = readRequestLine()) != null && !line.equals("QUIT")) {
+          if (line.startsWith("FILE ")) {
+            submit(new FileRequest(line.substring(5)));
+          } else if (line.startsWith("DATA ")) {
+            final int length = parseLength(line.substring(5));
+            if (length < 0) {
+              // we cannot find the start of the next request
+              inFlight.put(error("Invalid length: " + line.substring(5)));
+              break;
+            }
+            dataBudget.acquire(length);
+            final byte[] data;
+            try {
+              data = new byte[length];
+              readFully(in, data);
+            } catch (IOException | RuntimeException | Error e) {
+              dataBudget.release(length);
+              throw e;
+            }
+            submit(new DataRequest(data));
+          } else {
+            inFlight.put(error("Unknown request: " + line));
+          }
+        }
+        inFlight.put(END);
+        ended = true;
+      } catch (IOException | RuntimeException e) {
+        LOG.info("Could not read request: " + e);
+      } catch (InterruptedException e) {
+        // closing
+      } finally {
+        if (!ended) {
+          closeQuietly(socket);
+          // the responses cannot be sent anymore; let the writer stop, and drop the
+          // queued responses rather than waiting for them
+          inFlight.clear();
+          inFlight.offer(END);
+        }
+      }
+    }
+
+    /**
+     * Reads the next request line. If it is too long, an error response is queued, as
+     * we cannot find the start of the next request.
+     * 
+     * @return The line, or {@code null} if there are no more requests.
+     */
+    private String readRequestLine() throws IOException, InterruptedException {
+      try {
+        return readLine(in);
+      } catch (LineTooLongException e) {
+        inFlight.put(error(e.getMessage()));
+        return null;
+      }
+    }
+
+    private void submit(final Request request) throws InterruptedException {
+      workers.execute(request);
+      inFlight.put(request.response);
+    }
+
+    private void writeResponses() {
+      try {
+        Response response;
+        while ((response = inFlight.take()) != END) {
+          response.sendTo(out);
+          if (inFlight.isEmpty()) {
+            // send everything that is done, but batch pipelined responses
+            out.flush();
+          }
+        }
+        out.flush();
+      } catch (IOException e) {
+        LOG.info("Could not write response: " + e);
+      } catch (InterruptedException e) {
+        // closing
+      } finally {
+        closeQuietly(socket);
+        // unblock the reader, if necessary
+        inFlight.clear();
+      }
+    }
+
+    private int parseLength(final String s) {
+      try {
+        final int length = Integer.parseInt(s.trim());
+        return length <= maxDataLength ? length : -1;
+      } catch (NumberFormatException e) {
+        return -1;
+      }
+    }
+  }
+
+  /**
+   * The response to a request. It is buffered until the responses to all earlier
+   * requests of the connection have been sent, and written straight to the socket from
+   * then on.
+   */
+  static final class Response extends OutputStream {
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private OutputStream target;
+    private boolean complete;
+
+    @Override
+    public synchronized void write(final int b) throws IOException {
+      if (target != null) {
+        target.write(b);
+      } else {
+        buffer.write(b);
+      }
+    }
+
+    @Override
+    public synchronized void write(final byte[] b, final int off, final int len)
+        throws IOException {
+      if (target != null) {
+        target.write(b, off, len);
+      } else {
+        buffer.write(b, off, len);
+      }
+    }
+
+    /**
+     * Marks the response as complete; the socket itself is closed by the connection.
+     */
+    @Override
+    public void close() {
+      complete();
+    }
+
+    synchronized void complete() {
+      complete = true;
+      notifyAll();
+    }
+
+    /**
+     * Sends what has been buffered, lets the request write to the given stream directly
+     * from now on, and waits until the response is complete.
+     */
+    synchronized void sendTo(final OutputStream out)
+        throws IOException, InterruptedException {
+      buffer.writeTo(out);
+      buffer = null;
+      target = out;
+      while (!complete) {
+        wait();
+      }
+    }
+  }
+
+  /**
+   * Extracts text from a document into its response.
+   */
+  private abstract class Request implements Runnable {
+    final Response response = new Response();
+
+    @Override
+    public void run() {
+      try (JsonLinesSink sink = new JsonLinesSink(response)) {
+        final ExtractTextIWAParser parser = parsers.acquire();
+        try {
+          parse(parser, sink);
+          writeStatus(sink.out, null);
+        } catch (IOException | RuntimeException e) {
+          LOG.info("Could not extract text: " + e);
+          writeStatus(sink.out, e);
+        } finally {
+          parsers.release(parser);
+        }
+      } catch (IOException | RuntimeException e) {
+        // most likely, the connection has been closed
+        LOG.info("Could not write response: " + e);
+      } finally {
+        response.complete();
+      }
+    }
+
+    abstract void parse(ExtractTextIWAParser parser, JsonLinesSink sink)
+        throws IOException;
+  }
+
+  private final class FileRequest extends Request {
+    private final File file;
+
+    FileRequest(final String path) {
+      this.file = new File(path);
+    }
+
+    @Override
+    void parse(final ExtractTextIWAParser parser, final JsonLinesSink sink)
+        throws IOException {
+      sink.setDocumentName(file.getName());
+      parser.parse(file, sink);
+    }
+  }
+
+  private final class DataRequest extends Request {
+    private final byte[] data;
+
+    DataRequest(final byte[] data) {
+      this.data = data;
+    }
+
+    @Override
+    public void run() {
+      try {
+        super.run();
+      } finally {
+        dataBudget.release(data.length);
+      }
+    }
+
+    @Override
+    void parse(final ExtractTextIWAParser parser, final JsonLinesSink sink)
+        throws IOException {
+      parser.parse(new ByteArrayInputStream(data), sink);
+    }
+  }
+
+  private static void writeStatus(final Utf8Writer out, final Object error)
+      throws IOException {
+    if (error == null) {
+      out.write("{\"status\":\"ok\"}\n");
+    } else {
+      out.write("{\"status\":\"error\",\"message\":");
+      out.writeJsonString(error.toString());
+      out.write("}\n");
+    }
+  }
+
+  /**
+   * Returns a completed response for a request that could not be processed.
+   */
+  private static Response error(final String message) throws IOException {
+    final Response response = new Response();
+    try (Utf8Writer out = new Utf8Writer(Channels.newChannel(response), 1024)) {
+      writeStatus(out, message);
+    }
+    return response;
+  }
+
+  /**
+   * Reads a UTF-8 encoded line, without the line terminator.
+   * 
+   * @return The line, or {@code null} at the end of the stream.
+   */
+  private static String readLine(final InputStream in) throws IOException {
+    final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) != '\n') {
+      if (b == -1) {
+        if (line.size() == 0) {
+          return null;
+        }
+        break;
+      }
+      if (line.size() == MAX_LINE_LENGTH) {
+        throw new LineTooLongException();
+      }
+      line.write(b);
+    }
+    String s = new String(line.toByteArray(), StandardCharsets.UTF_8);
+    if (s.endsWith("\r")) {
+      s = s.substring(0, s.length() - 1);
+    }
+    return s;
+  }
+
+  private static final class LineTooLongException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    LineTooLongException() {
+      super("Request line too long");
+    }
+  }
+
+  private static void readFully(final InputStream in, final byte[] data)
+      throws IOException {
+    int off = 0;
+    while (off < data.length) {
+      final int r = in.read(data, off, data.length - off);
+      if (r == -1) {
+        throw new EOFException("Expected " + data.length + " bytes, got " + off);
+      }
+      off += r;
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    int port = DEFAULT_PORT;
+    int threads = Runtime.getRuntime().availableProcessors();
+    int maxInFlight = 64;
+    int maxDataLength = 256 * 1024 * 1024;
+    int maxBufferedData = -1;
+    try {
+      for (int i = 0; i < args.length; i += 2) {
+        final int value = Integer.parseInt(args[i + 1]);
+        switch (args[i]) {
+          case "--port":
+            port = value;
+            break;
+          case "--threads":
+            threads = value;
+            break;
+          case "--queue":
+            maxInFlight = value;
+            break;
+          case "--max-data":
+            maxDataLength = value;
+            break;
+          case "--max-buffered":
+            maxBufferedData = value;
+            break;
+          default:
+            throw new IllegalArgumentException(args[i]);
+        }
+      }
+    } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+      System.err.println("Syntax: ExtractTextServer [--port <port>] [--threads <n>] "
+          + "[--queue <n>] [--max-data <bytes>] [--max-buffered <bytes>]");
+      System.exit(1);
+    }
+
+    final InetSocketAddress address =
+        new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+    final ExtractTextServer server = maxBufferedData < 0
+        ? new ExtractTextServer(address, threads, maxInFlight, maxDataLength)
+        : new ExtractTextServer(address, threads, maxInFlight, maxDataLength,
+            maxBufferedData);
+    ExtractTextIWAParser.warmUp();
+    server.getParserPool().warmUp(threads);
+    server.start();
+    System.err.println("Listening on " + server.serverSocket.getLocalSocketAddress());
+  }
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import java.io.IOException;
+
+import com.evernote.iwana.pb.TSP.TSPMessages.Reference;
+import com.evernote.iwana.pb.TSWP.TSWPArchives.ObjectAttributeTable;
+import com.evernote.iwana.pb.TSWP.TSWPArchives.ObjectAttributeTable.ObjectAttribute;
+import com.google.protobuf.AbstractParser;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.ExtensionRegistryLite;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Parses the floating drawables of a Pages document (a
+ * {@code TP.FloatingDrawablesArchive}, message type 10010) by scanning its wire format,
+ * and returns which page each drawable is placed on.
+ * 
+ * The archive has one group per page ({@code page_groups}, field 1), holding the page's
+ * index (field 1) and its drawables, by layer (the other fields; each entry references
+ * its drawable in field 1). Neither message is part of our schemas, so the result is
+ * returned as an {@link ObjectAttributeTable} whose entries hold the page index as their
+ * {@code character_index}, and reference the drawable as their {@code object}, in the
+ * order they appear in the archive.
+ */
+final class FloatingDrawablesScanner extends AbstractParser<ObjectAttributeTable> {
+  static final FloatingDrawablesScanner PARSER = new FloatingDrawablesScanner();
+
+  private static final int WIRETYPE_VARINT = 0;
+  private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+
+  private static final int FIELD_PAGE_GROUPS = 1;
+  private static final int FIELD_PAGE_INDEX = 1;
+  private static final int FIELD_DRAWABLE = 1;
+
+  private FloatingDrawablesScanner() {
+  }
+
+  @Override
+  public ObjectAttributeTable parsePartialFrom(final CodedInputStream in,
+      final ExtensionRegistryLite extensionRegistry) throws InvalidProtocolBufferException {
+    final ObjectAttributeTable.Builder pages = ObjectAttributeTable.newBuilder();
+    try {
+      int tag;
+      while ((tag = in.readTag()) != 0) {
+        if (tag == (FIELD_PAGE_GROUPS << 3 | WIRETYPE_LENGTH_DELIMITED)) {
+          final int oldLimit = in.pushLimit(in.readRawVarint32());
+          readPageGroup(in, extensionRegistry, pages);
+          in.popLimit(oldLimit);
+        } else if (!in.skipField(tag)) {
+          // end-group tag
+          break;
+        }
+      }
+    } catch (InvalidProtocolBufferException e) {
+      throw e.setUnfinishedMessage(pages.buildPartial());
+    } catch (IOException e) {
+      throw new InvalidProtocolBufferException(e.getMessage())
+          .setUnfinishedMessage(pages.buildPartial());
+    }
+    return pages.buildPartial();
+  }
+
+  private static void readPageGroup(final CodedInputStream in,
+      final ExtensionRegistryLite extensionRegistry,
+      final ObjectAttributeTable.Builder pages) throws IOException {
+    // the page index usually comes first, but is not required to
+    final int first = pages.getEntriesCount();
+    int pageIndex = 0;
+
+    int tag;
+    while ((tag = in.readTag()) != 0) {
+      if (tag == (FIELD_PAGE_INDEX << 3 | WIRETYPE_VARINT)) {
+        pageIndex = in.readUInt32();
+      } else if ((tag & 7) == WIRETYPE_LENGTH_DELIMITED) {
+        final int oldLimit = in.pushLimit(in.readRawVarint32());
+        readDrawables(in, extensionRegistry, pages);
+        in.popLimit(oldLimit);
+      } else if (!in.skipField(tag)) {
+        break;
+      }
+    }
+
+    for (int i = first, n = pages.getEntriesCount(); i < n; i++) {
+      pages.getEntriesBuilder(i).setCharacterIndex(pageIndex);
+    }
+  }
+
+  private static void readDrawables(final CodedInputStream in,
+      final ExtensionRegistryLite extensionRegistry,
+      final ObjectAttributeTable.Builder pages) throws IOException {
+    int tag;
+    while ((tag = in.readTag()) != 0) {
+      if (tag == (FIELD_DRAWABLE << 3 | WIRETYPE_LENGTH_DELIMITED)) {
+        final Reference.Builder drawable = Reference.newBuilder();
+        in.readMessage(drawable, extensionRegistry);
+        pages.addEntries(ObjectAttribute.newBuilder().setObject(drawable));
+      } else if (!in.skipField(tag)) {
+        break;
+      }
+    }
+  }
+}
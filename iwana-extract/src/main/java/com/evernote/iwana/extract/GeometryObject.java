@@ -15,36 +15,54 @@
  */
 package com.evernote.iwana.extract;
 
-import com.evernote.iwana.pb.TSD.TSDArchives.DrawableArchive;
 import com.evernote.iwana.pb.TSD.TSDArchives.GeometryArchive;
 import com.evernote.iwana.pb.TSP.TSPMessages.Point;
+import com.evernote.iwana.pb.TSP.TSPMessages.Size;
 import com.evernote.iwana.pb.TSWP.TSWPArchives.ShapeInfoArchive;
-import com.google.protobuf.Message;
 
 /**
- * An object that has position information.
+ * An object that has position and size information, and the identifier of the storage
+ * that holds its text.
+ * 
+ * Instances are immutable and small, so they are kept instead of the full
+ * {@link ShapeInfoArchive} (see {@link ProjectObject}).
+ * 
+ * @see ReadingOrder
  */
-class GeometryObject implements Comparable<GeometryObject> {
-  GeometryObject(ShapeInfoArchive m) {
-    this(m, m.getSuper().getSuper());
-  }
+class GeometryObject {
+  /**
+   * Projects {@link ShapeInfoArchive}s with text to {@link GeometryObject}s; shapes
+   * without text are dropped.
+   */
+  static final ProjectObject<ShapeInfoArchive, GeometryObject> PROJECT_SHAPE_INFO =
+      new ProjectObject<ShapeInfoArchive, GeometryObject>(ShapeInfoArchive.class) {
+        @Override
+        protected GeometryObject project(ShapeInfoArchive message) {
+          return message.hasContainedStorage() ? new GeometryObject(message) : null;
+        }
+      };
 
-  private GeometryObject(Message m, DrawableArchive da) {
-    this.message = m;
-
-    GeometryArchive geometry = da.getGeometry();
+  GeometryObject(ShapeInfoArchive m) {
+    GeometryArchive geometry = m.getSuper().getSuper().getGeometry();
     Point pos = geometry.getPosition();
     this.x = pos.getX();
     this.y = pos.getY();
-  }
 
-  float x;
-  float y;
+    if (geometry.hasSize()) {
+      Size size = geometry.getSize();
+      this.width = size.getWidth();
+      this.height = size.getHeight();
+    } else {
+      this.width = 0;
+      this.height = 0;
+    }
+    this.storageId = m.getContainedStorage().getIdentifier();
+  }
 
-  Message message;
+  final float x;
+  final float y;
+  final float width;
+  final float height;
 
-  @Override
-  public int compareTo(GeometryObject o) {
-    return x < o.x ? -1 : x == o.x ? y < o.y ? -1 : 1 : 1;
-  }
+  final long storageId;
 }
@@ -0,0 +1,59 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import java.util.List;
+
+import com.evernote.iwana.pb.TSD.TSDArchives.GroupArchive;
+import com.evernote.iwana.pb.TSP.TSPMessages.Reference;
+
+/**
+ * A group of drawables, holding only the identifiers of its children.
+ * 
+ * @see ExtractTextIWAContext#resolve(long[], Class)
+ */
+final class GroupObject {
+  /**
+   * Projects {@link GroupArchive}s to {@link GroupObject}s.
+   */
+  static final ProjectObject<GroupArchive, GroupObject> PROJECT_GROUP =
+      new ProjectObject<GroupArchive, GroupObject>(GroupArchive.class) {
+        @Override
+        protected GroupObject project(GroupArchive message) {
+          return new GroupObject(toIds(message.getChildrenList()));
+        }
+      };
+
+  final long[] childIds;
+
+  GroupObject(long[] childIds) {
+    this.childIds = childIds;
+  }
+
+  /**
+   * Converts a list of {@link Reference}s to an array of identifiers.
+   * 
+   * @param refs The references.
+   * @return The identifiers, in the same order.
+   */
+  static long[] toIds(List<Reference> refs) {
+    final long[] ids = new long[refs.size()];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = refs.get(i).getIdentifier();
+    }
+    return ids;
+  }
+}
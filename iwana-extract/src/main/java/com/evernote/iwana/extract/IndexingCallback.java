@@ -0,0 +1,121 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import java.text.BreakIterator;
+import java.util.Locale;
+
+/**
+ * An {@link ExtractTextCallback} stage that tokenizes text blocks as they arrive, and
+ * builds a {@link DocumentIndex} with the postings of each {@link TextAttributes.Scope},
+ * without keeping the document text.
+ * 
+ * Words are found using the Unicode word boundaries of a {@link BreakIterator}; only
+ * words that contain at least one letter or digit become terms, in lower case. Text
+ * blocks may optionally be passed on to another callback.
+ * 
+ * Instances are not thread-safe; the index is reset at the beginning of each document.
+ */
+public class IndexingCallback extends ExtractTextCallback {
+  /**
+   * Longer words are not indexed.
+   */
+  static final int MAX_TERM_LENGTH = 128;
+
+  private final ExtractTextCallback next;
+  private final BreakIterator words;
+  private final Locale locale;
+  private DocumentIndex index = new DocumentIndex();
+
+  /**
+   * Creates a new {@link IndexingCallback}, using locale-independent rules.
+   */
+  public IndexingCallback() {
+    this(null, Locale.ROOT);
+  }
+
+  /**
+   * Creates a new {@link IndexingCallback}.
+   * 
+   * @param next The callback that text blocks are passed on to, or {@code null}.
+   * @param locale The locale for word breaking and lower-casing.
+   */
+  public IndexingCallback(final ExtractTextCallback next, final Locale locale) {
+    this.next = next;
+    this.locale = locale;
+    this.words = BreakIterator.getWordInstance(locale);
+  }
+
+  /**
+   * Returns the index of the current (or last) document.
+   * 
+   * @return The index.
+   */
+  public DocumentIndex getDocumentIndex() {
+    return index;
+  }
+
+  @Override
+  public void onBeginDocument() {
+    index = new DocumentIndex();
+    if (next != null) {
+      next.onBeginDocument();
+    }
+  }
+
+  @Override
+  public void onEndDocument() {
+    if (next != null) {
+      next.onEndDocument();
+    }
+  }
+
+  @Override
+  public void onTextBlock(final String text, final TextAttributes attrs) {
+    onTextBlock(text, attrs, 0);
+  }
+
+  @Override
+  public void onTextBlock(final String text, final TextAttributes attrs,
+      final int repeatCount) {
+    tokenize(text, attrs.getScope());
+    if (next != null) {
+      next.onTextBlock(text, attrs, repeatCount);
+    }
+  }
+
+  private void tokenize(final String text, final TextAttributes.Scope scope) {
+    words.setText(text);
+    int start = words.first();
+    for (int end = words.next(); end != BreakIterator.DONE; start = end, end =
+        words.next()) {
+      if (end - start <= MAX_TERM_LENGTH && isWord(text, start, end)) {
+        index.add(scope, text.substring(start, end).toLowerCase(locale));
+      }
+    }
+  }
+
+  private static boolean isWord(final String text, final int start, final int end) {
+    for (int i = start; i < end;) {
+      final int cp = text.codePointAt(i);
+      if (Character.isLetterOrDigit(cp)) {
+        return true;
+      }
+      i += Character.charCount(cp);
+    }
+    return false;
+  }
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import java.util.Arrays;
+
+/**
+ * A map from {@code int} keys to Strings, using open addressing with linear probing, so
+ * no keys are boxed.
+ */
+final class IntStringMap {
+  private int[] keys;
+  private String[] values;
+  private int size = 0;
+
+  /**
+   * Creates a new map.
+   *
+   * @param expectedSize The number of entries expected.
+   */
+  IntStringMap(final int expectedSize) {
+    int capacity = 8;
+    while (capacity < expectedSize * 2) {
+      capacity <<= 1;
+    }
+    keys = new int[capacity];
+    values = new String[capacity];
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * Associates the given key with the given value.
+   *
+   * @param key The key.
+   * @param value The value; must not be {@code null}.
+   */
+  void put(final int key, final String value) {
+    if (value == null) {
+      throw new NullPointerException("value");
+    }
+    if ((size + 1) * 2 > keys.length) {
+      rehash(keys.length * 2);
+    }
+    final int mask = keys.length - 1;
+    int i = mix(key) & mask;
+    while (values[i] != null) {
+      if (keys[i] == key) {
+        values[i] = value;
+        return;
+      }
+      i = (i + 1) & mask;
+    }
+    keys[i] = key;
+    values[i] = value;
+    size++;
+  }
+
+  /**
+   * Returns the value associated with the given key.
+   *
+   * @param key The key.
+   * @return The value, or {@code null} if the key is not present.
+   */
+  String get(final int key) {
+    final int mask = keys.length - 1;
+    int i = mix(key) & mask;
+    String v;
+    while ((v = values[i]) != null) {
+      if (keys[i] == key) {
+        return v;
+      }
+      i = (i + 1) & mask;
+    }
+    return null;
+  }
+
+  void clear() {
+    Arrays.fill(values, null);
+    size = 0;
+  }
+
+  private void rehash(final int capacity) {
+    final int[] oldKeys = keys;
+    final String[] oldValues = values;
+    keys = new int[capacity];
+    values = new String[capacity];
+    size = 0;
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldValues[i] != null) {
+        put(oldKeys[i], oldValues[i]);
+      }
+    }
+  }
+
+  private static int mix(final int key) {
+    final int h = key * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
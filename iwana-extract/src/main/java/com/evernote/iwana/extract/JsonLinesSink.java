@@ -0,0 +1,57 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A {@link TextSink} that writes one JSON object per text block and line (JSON Lines),
+ * for example:
+ * 
+ * <pre>
+ * {"document":"Slides.key","scope":"DOCUMENT","text":"A sample presentation"}
+ * </pre>
+ * 
+ * The {@code document} member is omitted if no document name has been set.
+ */
+public final class JsonLinesSink extends TextSink {
+  public JsonLinesSink(final WritableByteChannel out) {
+    super(out);
+  }
+
+  public JsonLinesSink(final OutputStream out) {
+    super(out);
+  }
+
+  @Override
+  void write(final String text, final TextAttributes attrs) throws IOException {
+    out.writeAscii('{');
+    final String documentName = getDocumentName();
+    if (documentName != null) {
+      out.write("\"document\":");
+      out.writeJsonString(documentName);
+      out.writeAscii(',');
+    }
+    out.write("\"scope\":");
+    out.writeJsonString(attrs.getScope().name());
+    out.write(",\"text\":");
+    out.writeJsonString(text);
+    out.writeAscii('}');
+    out.writeAscii('\n');
+  }
+}
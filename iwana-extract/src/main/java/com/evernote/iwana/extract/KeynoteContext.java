@@ -16,7 +16,6 @@
 package com.evernote.iwana.extract;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -26,82 +25,151 @@ import java.util.Set;
 import org.apache.log4j.Logger;
 
 import com.evernote.iwana.MessageActions;
+import com.evernote.iwana.extract.TextAttributes.Scope;
 import com.evernote.iwana.pb.KN.KNArchives.DocumentArchive;
 import com.evernote.iwana.pb.KN.KNArchives.NoteArchive;
 import com.evernote.iwana.pb.KN.KNArchives.PlaceholderArchive;
 import com.evernote.iwana.pb.KN.KNArchives.ShowArchive;
 import com.evernote.iwana.pb.KN.KNArchives.SlideArchive;
 import com.evernote.iwana.pb.KN.KNArchives.SlideNodeArchive;
-import com.evernote.iwana.pb.TSD.TSDArchives.DrawableArchive;
-import com.evernote.iwana.pb.TSD.TSDArchives.ShapeArchive;
+import com.evernote.iwana.pb.KN.KNArchives.SlideTreeArchive;
 import com.evernote.iwana.pb.TSP.TSPMessages.Reference;
+import com.evernote.iwana.pb.TST.TSTArchives.TableInfoArchive;
 import com.evernote.iwana.pb.TSWP.TSWPArchives.ShapeInfoArchive;
 import com.google.protobuf.Message;
 
 /**
  * A Keynote-specific extractor context.
+ * 
+ * Slides, slide nodes, notes and shapes are kept as compact records (see
+ * {@link ProjectObject}) rather than as full messages; large decks would otherwise keep
+ * all style, path and geometry submessages until the end of the document.
  */
 class KeynoteContext extends ContextBase {
   private static final Logger LOG = Logger.getLogger(KeynoteContext.class);
 
+  /**
+   * The identifier used for missing references.
+   */
+  private static final long NONE = -1;
+
   private static final MessageActions KEYNOTE_ACTIONS = new MessageActions(
       ContextBase.COMMON_ACTIONS);
   static {
     KEYNOTE_ACTIONS
-        .setAction(1, new StoreObject<DocumentArchive>(DocumentArchive.PARSER));
-    KEYNOTE_ACTIONS.setAction(2, new StoreObject<ShowArchive>(ShowArchive.PARSER));
-    KEYNOTE_ACTIONS.setAction(4, new StoreObject<SlideNodeArchive>(
-        SlideNodeArchive.PARSER));
-    KEYNOTE_ACTIONS.setAction(5, new StoreObject<SlideArchive>(SlideArchive.PARSER));
-    KEYNOTE_ACTIONS.setAction(6, new StoreObject<SlideArchive>(SlideArchive.PARSER));
-    KEYNOTE_ACTIONS.setAction(7, new StoreObject<PlaceholderArchive>(
-        PlaceholderArchive.PARSER));
-    KEYNOTE_ACTIONS.setAction(15, new StoreObject<NoteArchive>(NoteArchive.PARSER));
-    KEYNOTE_ACTIONS.setAction(2011, new StoreObject<ShapeInfoArchive>(
-        ShapeInfoArchive.PARSER));
+        .setAction(1, new StoreObject<DocumentArchive>(DocumentArchive.class));
+    KEYNOTE_ACTIONS.setAction(2, new StoreObject<ShowArchive>(ShowArchive.class));
+    KEYNOTE_ACTIONS.setAction(4, new ProjectObject<SlideNodeArchive, SlideNode>(
+        SlideNodeArchive.class) {
+      @Override
+      protected SlideNode project(SlideNodeArchive message) {
+        return new SlideNode(message);
+      }
+    });
+    KEYNOTE_ACTIONS.setAction(new int[] {5, 6}, new ProjectObject<SlideArchive, Slide>(
+        SlideArchive.class) {
+      @Override
+      protected Slide project(SlideArchive message) {
+        return new Slide(message);
+      }
+    });
+    KEYNOTE_ACTIONS.setAction(7, new ProjectObject<PlaceholderArchive, Placeholder>(
+        PlaceholderArchive.class) {
+      @Override
+      protected Placeholder project(PlaceholderArchive message) {
+        return message.getSuper().hasContainedStorage() ? new Placeholder(message) : null;
+      }
+    });
+    KEYNOTE_ACTIONS.setAction(15, new ProjectObject<NoteArchive, Note>(NoteArchive.class) {
+      @Override
+      protected Note project(NoteArchive message) {
+        return message.hasContainedStorage() ? new Note(message) : null;
+      }
+    });
+    KEYNOTE_ACTIONS.setAction(2011, GeometryObject.PROJECT_SHAPE_INFO);
+    addTableActions(KEYNOTE_ACTIONS);
+    KEYNOTE_ACTIONS.freeze();
   }
 
+  /**
+   * For when neither notes nor unreferenced text are wanted.
+   */
+  private static final MessageActions KEYNOTE_ACTIONS_NO_NOTES = new MessageActions(
+      KEYNOTE_ACTIONS);
+  static {
+    KEYNOTE_ACTIONS_NO_NOTES.removeAction(15);
+    KEYNOTE_ACTIONS_NO_NOTES.freeze();
+  }
+
+  /**
+   * For when only notes are wanted; shapes, placeholders, groups and tables are skipped.
+   */
+  private static final MessageActions KEYNOTE_ACTIONS_NOTES_ONLY = new MessageActions(
+      KEYNOTE_ACTIONS);
+  static {
+    KEYNOTE_ACTIONS_NOTES_ONLY.removeAction(7, 2011, 3008);
+    KEYNOTE_ACTIONS_NOTES_ONLY.removeAction(TABLE_MESSAGE_TYPES);
+    KEYNOTE_ACTIONS_NOTES_ONLY.freeze();
+  }
+
+  private boolean skipHiddenSlides = false;
+  private boolean skipCollapsedSlides = false;
+
   protected KeynoteContext(String documentFilename, ExtractTextCallback target) {
     super(documentFilename, target);
   }
 
+  /**
+   * Skips the text of slides that are hidden in the slide show.
+   * 
+   * @param skipHiddenSlides {@code true} to skip hidden slides.
+   */
+  void setSkipHiddenSlides(boolean skipHiddenSlides) {
+    this.skipHiddenSlides = skipHiddenSlides;
+  }
+
+  /**
+   * Skips the text of slides that are nested under a collapsed slide in the slide
+   * navigator.
+   * 
+   * @param skipCollapsedSlides {@code true} to skip collapsed slides.
+   */
+  void setSkipCollapsedSlides(boolean skipCollapsedSlides) {
+    this.skipCollapsedSlides = skipCollapsedSlides;
+  }
+
   @Override
   public boolean acceptIWAFile(String name) {
-    if (name.contains("/MasterSlide")) {
-      // skip master slides (short cut)
+    if (name.contains("/MasterSlide") && (getTemplateCache() == null
+        || !(isWanted(Scope.MASTER) || isWanted(Scope.UNREFERENCED)))) {
+      // skip master slides (short cut), unless we can share them across documents and
+      // want their text: master text, or the unreferenced text of their placeholders
       return false;
     }
     return super.acceptIWAFile(name);
   }
 
   @Override
-  protected MessageActions getMessageTypeActions() {
-    return KEYNOTE_ACTIONS;
+  public boolean needsIWAFingerprint(String name) {
+    // pruned registries would record incomplete templates
+    return getMessageTypeActions() == KEYNOTE_ACTIONS && super.needsIWAFingerprint(name);
   }
 
   @Override
-  protected <T extends Message> T tryCast(final Message message, final Class<T> objectType) {
-    if (message instanceof PlaceholderArchive) {
-      ShapeInfoArchive m1 = ((PlaceholderArchive) message).getSuper();
-      if (objectType.isAssignableFrom(m1.getClass())) {
-        return objectType.cast(m1);
-      }
-      return tryCast(m1, objectType);
-    } else if (message instanceof ShapeInfoArchive) {
-      ShapeArchive m1 = ((ShapeInfoArchive) message).getSuper();
-      if (objectType.isAssignableFrom(m1.getClass())) {
-        return objectType.cast(m1);
-      }
-      return tryCast(m1, objectType);
-    } else if (message instanceof ShapeArchive) {
-      DrawableArchive m1 = ((ShapeArchive) message).getSuper();
-      if (objectType.isAssignableFrom(m1.getClass())) {
-        return objectType.cast(m1);
-      }
-      return tryCast(m1, objectType);
-    }
+  protected boolean isTemplateFile(String name) {
+    return name.contains("/MasterSlide") || name.contains("/DocumentStylesheet");
+  }
 
-    return super.tryCast(message, objectType);
+  @Override
+  protected MessageActions getMessageTypeActions() {
+    final boolean unreferenced = isWanted(Scope.UNREFERENCED);
+    if (!unreferenced && !isWanted(Scope.NOTES)) {
+      return KEYNOTE_ACTIONS_NO_NOTES;
+    }
+    if (!unreferenced && !isWanted(Scope.DOCUMENT) && !isWanted(Scope.MASTER)) {
+      return KEYNOTE_ACTIONS_NOTES_ONLY;
+    }
+    return KEYNOTE_ACTIONS;
   }
 
   @Override
@@ -114,110 +182,201 @@ class KeynoteContext extends ContextBase {
     DocumentArchive root = (DocumentArchive) obj;
     ShowArchive showArchive = getObject(root.getShow(), ShowArchive.class);
 
-    final long rootSlideNoteId =
-        showArchive.getSlideTree().getRootSlideNode().getIdentifier();
-    SlideNodeArchive slideNodeId = getObject(rootSlideNoteId, SlideNodeArchive.class);
-    LinkedHashMap<Long, SlideNodeArchive> nodes = new LinkedHashMap<>();
-    nodes.put(rootSlideNoteId, slideNodeId);
+    if (showArchive == null) {
+      return;
+    }
+
+    SlideTreeArchive slideTree = showArchive.getSlideTree();
+    long[] topLevelNodes;
+    if (slideTree.hasRootSlideNode()) {
+      topLevelNodes = new long[] {slideTree.getRootSlideNode().getIdentifier()};
+    } else {
+      // flat slide list, without a root node
+      topLevelNodes = GroupObject.toIds(slideTree.getSlidesList());
+    }
+
+    LinkedHashMap<Long, SlideNode> nodes = new LinkedHashMap<>();
+    for (long id : topLevelNodes) {
+      nodes.put(id, getObject(id, SlideNode.class));
+    }
 
     processSlideNodes(nodes);
+
+    // tables that are not on any slide, e.g. in groups or on master slides
+    processRemainingTables(ifWanted(TextAttributes.DEFAULT_UNREFERENCED));
   }
 
   /**
    * @param nodes
    */
-  private void processSlideNodes(LinkedHashMap<Long, SlideNodeArchive> nodes) {
-    LinkedHashMap<Long, SlideNodeArchive> children = new LinkedHashMap<>();
+  private void processSlideNodes(LinkedHashMap<Long, SlideNode> nodes) {
+    LinkedHashMap<Long, SlideNode> children = new LinkedHashMap<>();
 
     Set<Long> seenIds = new HashSet<Long>();
+    Set<Long> seenMasterIds = new HashSet<Long>();
+    Set<Long> collapsedIds = new HashSet<Long>();
+    List<GeometryObject> geoms = new ArrayList<>();
 
     while (!nodes.isEmpty()) {
-      for (Map.Entry<Long, SlideNodeArchive> en : nodes.entrySet()) {
+      for (Map.Entry<Long, SlideNode> en : nodes.entrySet()) {
         if (!seenIds.add(en.getKey())) {
           LOG.info("Circular reference detected: id=" + en.getKey());
           continue;
         }
 
-        SlideNodeArchive sna = en.getValue();
-        if (sna == null) {
+        SlideNode sn = en.getValue();
+        if (sn == null) {
           continue;
         }
-        for (Reference ref : sna.getChildrenList()) {
-          final long childId = ref.getIdentifier();
-          SlideNodeArchive child = getObject(childId, SlideNodeArchive.class);
+        final boolean inCollapsed = collapsedIds.contains(en.getKey());
+        final boolean collapseChildren =
+            inCollapsed || (skipCollapsedSlides && sn.collapsed);
+        for (long childId : sn.childIds) {
+          SlideNode child = getObject(childId, SlideNode.class);
           if (child != null) {
             children.put(childId, child);
+            if (collapseChildren) {
+              collapsedIds.add(childId);
+            }
           }
         }
 
-        // FIXME we could skip hidden slides using sna.getIsHidden(); / collapsed
+        // the text of skipped slides is only marked as referenced
+        final boolean skip = inCollapsed || (skipHiddenSlides && sn.hidden);
+        final boolean unreferenced = isWanted(Scope.UNREFERENCED);
 
-        SlideArchive slide = getObject(sna.getSlide(), SlideArchive.class);
+        Slide slide = getObject(sn.slideId, Slide.class);
         if (slide != null) {
-          // process note objects
-
-          List<GeometryObject> geoms = new ArrayList<>();
+          final TextAttributes documentAttrs =
+              skip ? null : ifWanted(TextAttributes.DEFAULT_DOCUMENT);
+          if (documentAttrs != null || unreferenced) {
+            geoms.clear();
 
-          {
-            ShapeInfoArchive sia =
-                getObject(slide.getTitlePlaceholder(), ShapeInfoArchive.class);
-            if (sia != null && sia.hasContainedStorage()) {
-              geoms.add(new GeometryObject(sia));
+            {
+              GeometryObject go =
+                  getObject(slide.titlePlaceholderId, GeometryObject.class);
+              if (go != null) {
+                geoms.add(go);
+              }
             }
-          }
-          {
-            ShapeInfoArchive sia =
-                getObject(slide.getBodyPlaceholder(), ShapeInfoArchive.class);
-            if (sia != null && sia.hasContainedStorage()) {
-              // that's mostly crap content; defer to the end
-              // geoms.add(new GeometryObject(sia));
+            // the body placeholder is mostly crap content; defer to the end
+            {
+              GeometryObject go =
+                  getObject(slide.objectPlaceholderId, GeometryObject.class);
+              if (go != null) {
+                geoms.add(go);
+              }
             }
-          }
-          {
-            ShapeInfoArchive sia =
-                getObject(slide.getObjectPlaceholder(), ShapeInfoArchive.class);
-            if (sia != null && sia.hasContainedStorage()) {
-              geoms.add(new GeometryObject(sia));
-            }
-          }
 
-          for (ShapeInfoArchive sia : resolve(slide.getOwnedDrawablesList(),
-              ShapeInfoArchive.class)) {
-            if (sia.hasContainedStorage()) {
-              geoms.add(new GeometryObject(sia));
-            }
-          }
+            geoms.addAll(resolve(slide.ownedDrawableIds, GeometryObject.class));
 
-          // FIXME this currently assumes top-to-bottom, left-to-right document
-          // orientation
-          Collections.sort(geoms);
+            // FIXME this currently assumes top-to-bottom, left-to-right document
+            // orientation
+            addContainedStorageTextBlocksInReadingOrder(geoms, documentAttrs);
 
-          for (GeometryObject go : geoms) {
-            ShapeInfoArchive sia = (ShapeInfoArchive) go.message;
-
-            addContainedStorageTextBlock(sia.getContainedStorage(),
-                TextAttributes.DEFAULT_DOCUMENT);
+            for (long id : slide.ownedDrawableIds) {
+              TableInfoArchive table = getObject(id, TableInfoArchive.class);
+              if (table != null) {
+                processTable(table, documentAttrs);
+              }
+            }
           }
 
           // process slide notes
-          NoteArchive arc = getObject(slide.getNote(), NoteArchive.class);
-          if (arc != null) {
-            addContainedStorageTextBlock(arc.getContainedStorage(),
-                TextAttributes.DEFAULT_NOTES);
+          final TextAttributes notesAttrs =
+              skip ? null : ifWanted(TextAttributes.DEFAULT_NOTES);
+          if (notesAttrs != null || unreferenced) {
+            Note note = getObject(slide.noteId, Note.class);
+            if (note != null) {
+              addContainedStorageTextBlock(note.storageId, notesAttrs);
+            }
+          }
+
+          // process master slide objects, once per master; master placeholders only
+          // contain template text
+          if (!skip && isWanted(Scope.MASTER) && slide.masterId != NONE
+              && seenMasterIds.add(slide.masterId)) {
+            Slide master = getObject(slide.masterId, Slide.class);
+            if (master != null) {
+              geoms.clear();
+              for (long id : master.ownedDrawableIds) {
+                if (getObject(id, Placeholder.class) != null) {
+                  continue;
+                }
+                geoms.addAll(resolve(new long[] {id}, GeometryObject.class));
+              }
+              addContainedStorageTextBlocksInReadingOrder(geoms,
+                  TextAttributes.DEFAULT_MASTER);
+            }
           }
         }
 
       }
 
       nodes.clear();
-      LinkedHashMap<Long, SlideNodeArchive> other = nodes;
+      LinkedHashMap<Long, SlideNode> other = nodes;
       nodes = children;
       children = other;
     }
   }
 
-  @Override
-  protected void dumpUnreferencedTextBlocks() {
-    // don't dump unreferenced text blocks
+  private static long id(boolean has, Reference ref) {
+    return has ? ref.getIdentifier() : NONE;
+  }
+
+  /**
+   * The parts of a {@link SlideNodeArchive} we need.
+   */
+  private static final class SlideNode {
+    final long[] childIds;
+    final long slideId;
+    final boolean hidden;
+    final boolean collapsed;
+
+    SlideNode(SlideNodeArchive m) {
+      this.childIds = GroupObject.toIds(m.getChildrenList());
+      this.slideId = id(m.hasSlide(), m.getSlide());
+      this.hidden = m.getIsHidden();
+      this.collapsed = m.getIsCollapsed();
+    }
+  }
+
+  /**
+   * The parts of a {@link SlideArchive} (slide or master slide) we need.
+   */
+  private static final class Slide {
+    final long titlePlaceholderId;
+    final long objectPlaceholderId;
+    final long noteId;
+    final long masterId;
+    final long[] ownedDrawableIds;
+
+    Slide(SlideArchive m) {
+      this.titlePlaceholderId = id(m.hasTitlePlaceholder(), m.getTitlePlaceholder());
+      this.objectPlaceholderId = id(m.hasObjectPlaceholder(), m.getObjectPlaceholder());
+      this.noteId = id(m.hasNote(), m.getNote());
+      this.masterId = id(m.hasMaster(), m.getMaster());
+      this.ownedDrawableIds = GroupObject.toIds(m.getOwnedDrawablesList());
+    }
+  }
+
+  /**
+   * The parts of a {@link NoteArchive} we need.
+   */
+  private static final class Note {
+    final long storageId;
+
+    Note(NoteArchive m) {
+      this.storageId = m.getContainedStorage().getIdentifier();
+    }
+  }
+
+  /**
+   * A {@link PlaceholderArchive} with text.
+   */
+  private static final class Placeholder extends GeometryObject {
+    Placeholder(PlaceholderArchive m) {
+      super(m.getSuper());
+    }
   }
 }
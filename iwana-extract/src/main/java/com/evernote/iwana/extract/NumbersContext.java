@@ -16,77 +16,194 @@
 package com.evernote.iwana.extract;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.List;
+import java.util.ArrayDeque;
 
+import com.evernote.iwana.ArchiveHeader;
 import com.evernote.iwana.MessageActions;
+import com.evernote.iwana.extract.TextAttributes.Scope;
 import com.evernote.iwana.pb.TN.TNArchives.DocumentArchive;
-import com.evernote.iwana.pb.TSP.TSPArchiveMessages.ArchiveInfo;
-import com.evernote.iwana.pb.TSP.TSPArchiveMessages.MessageInfo;
-import com.evernote.iwana.pb.TST.TSTArchives.TableDataList;
-import com.evernote.iwana.pb.TST.TSTArchives.TableDataList.ListEntry;
-import com.evernote.iwana.pb.TST.TSTArchives.TableDataList.ListType;
+import com.evernote.iwana.pb.TN.TNArchives.SheetArchive;
+import com.evernote.iwana.pb.TSP.TSPMessages.Reference;
+import com.evernote.iwana.pb.TST.TSTArchives.TableInfoArchive;
+import com.evernote.iwana.pb.TSWP.TSWPArchives.ShapeInfoArchive;
+import com.google.protobuf.AbstractParser;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.ExtensionRegistryLite;
 import com.google.protobuf.Message;
 
 /**
  * A Numbers-specific extractor context.
+ * 
+ * Table cells are emitted row by row, one text block per row (cells separated by tabs),
+ * per table, in sheet order.
  */
 class NumbersContext extends ContextBase {
+  /**
+   * Stored for drawables without text (shapes without text, images, movies, connection
+   * lines and charts), so that {@link #drain(boolean)} does not wait for them.
+   */
+  static final Object NO_TEXT = new Object();
+
+  /**
+   * Stores {@link #NO_TEXT} for the archive; the message itself is not read, but skipped
+   * by the parser.
+   */
+  private static final StoreObject<Reference> MARK_NO_TEXT = new StoreObject<Reference>(
+      new AbstractParser<Reference>() {
+        @Override
+        public Reference parsePartialFrom(CodedInputStream in,
+            ExtensionRegistryLite extensionRegistry) {
+          return Reference.getDefaultInstance();
+        }
+      }) {
+
+    @Override
+    protected void onMessage(Reference message, ArchiveHeader header, int index,
+        ExtractTextIWAContext context) throws IOException {
+      context.storeObject(header.getIdentifier(), NO_TEXT);
+    }
+  };
+
   private static final MessageActions NUMBERS_ACTIONS = new MessageActions(
       ContextBase.COMMON_ACTIONS);
 
   static {
     NUMBERS_ACTIONS
-        .setAction(1, new StoreObject<DocumentArchive>(DocumentArchive.PARSER));
-
-    NUMBERS_ACTIONS.setAction(new int[] {6005, 6201}, new StoreObject<TableDataList>(
-        TableDataList.PARSER) {
-
+        .setAction(1, new StoreObject<DocumentArchive>(DocumentArchive.class));
+    NUMBERS_ACTIONS.setAction(2, new StoreObject<SheetArchive>(SheetArchive.class));
+    NUMBERS_ACTIONS.setAction(2011, new ProjectObject<ShapeInfoArchive, Object>(
+        ShapeInfoArchive.class) {
       @Override
-      protected void onMessage(TableDataList message, ArchiveInfo ai, MessageInfo mi,
-          ExtractTextIWAContext context) throws IOException {
-        super.onMessage(message, ai, mi, context);
-
-        if (message.getListType() != ListType.STRING) {
-          return;
-        }
-
-        List<ListEntry> entriesList = new ArrayList<>(message.getEntriesList());
-        Collections.sort(entriesList, new Comparator<ListEntry>() {
-
-          @Override
-          public int compare(ListEntry o1, ListEntry o2) {
-            if (o1.getKey() < o2.getKey()) {
-              return -1;
-            } else {
-              return 1;
-            }
-          }
-        });
-
-        for (ListEntry le : entriesList) {
-          // FIXME These list entries are probably not ordered correctly
-          context.getTarget()
-              .onTextBlock(le.getString(), TextAttributes.DEFAULT_DOCUMENT);
-        }
+      protected Object project(ShapeInfoArchive message) {
+        return message.hasContainedStorage() ? new GeometryObject(message) : NO_TEXT;
       }
-
     });
+    NUMBERS_ACTIONS.setAction(new int[] {3005, 3007, 3009, 5021}, MARK_NO_TEXT);
+    addTableActions(NUMBERS_ACTIONS);
+    NUMBERS_ACTIONS.freeze();
+  }
+
+  /**
+   * For when document text is not wanted; tables are skipped.
+   */
+  private static final MessageActions NUMBERS_ACTIONS_NO_TABLES = new MessageActions(
+      NUMBERS_ACTIONS);
+  static {
+    NUMBERS_ACTIONS_NO_TABLES.removeAction(TABLE_MESSAGE_TYPES);
+    NUMBERS_ACTIONS_NO_TABLES.freeze();
   }
 
   protected NumbersContext(String documentFilename, ExtractTextCallback target) {
     super(documentFilename, target);
   }
 
+  @Override
+  public boolean acceptIWAFile(String name) {
+    // all text is either document text or unreferenced text
+    return isWanted(Scope.DOCUMENT) || isWanted(Scope.UNREFERENCED);
+  }
+
   @Override
   protected MessageActions getMessageTypeActions() {
-    return NUMBERS_ACTIONS;
+    return isWanted(Scope.DOCUMENT) ? NUMBERS_ACTIONS : NUMBERS_ACTIONS_NO_TABLES;
+  }
+
+  /**
+   * The sheet names (as {@link String}s) and drawable identifiers (as {@link Long}s) that
+   * have yet to be emitted, in document order, or {@code null} until the root object
+   * has been decoded.
+   */
+  private ArrayDeque<Object> pending;
+
+  @Override
+  public void onEndParseIWAFile(String name) {
+    super.onEndParseIWAFile(name);
+
+    // tiles and string tables arrive file by file; emit whatever can be resolved, so a
+    // target that has enough text can stop before the remaining files are decoded
+    if (pending == null) {
+      Object obj = objectStorage.get(1L);
+      if (!(obj instanceof DocumentArchive)) {
+        return;
+      }
+      pending = plan((DocumentArchive) obj);
+    }
+    drain(false);
   }
 
   @Override
   protected void processRootObject(Message obj) {
-    // FIXME
+    if (pending == null) {
+      if (!(obj instanceof DocumentArchive)) {
+        return;
+      }
+      pending = plan((DocumentArchive) obj);
+    }
+    drain(true);
+  }
+
+  private ArrayDeque<Object> plan(DocumentArchive root) {
+    ArrayDeque<Object> items = new ArrayDeque<>();
+    for (Reference sheetRef : root.getSheetsList()) {
+      SheetArchive sheet = getObject(sheetRef, SheetArchive.class);
+      if (sheet == null) {
+        continue;
+      }
+      if (sheet.hasName()) {
+        items.add(sheet.getName());
+      }
+      for (Reference ref : sheet.getDrawableInfosList()) {
+        items.add(ref.getIdentifier());
+      }
+    }
+    return items;
+  }
+
+  /**
+   * Emits the pending items in order.
+   * 
+   * @param all If {@code false}, stops at the first item that has not been completely
+   *          decoded yet (drawables without text are skipped); otherwise, emits whatever
+   *          is available.
+   */
+  private void drain(boolean all) {
+    final TextAttributes documentAttrs = ifWanted(TextAttributes.DEFAULT_DOCUMENT);
+    while (!pending.isEmpty() && !isStopRequested()) {
+      Object item = pending.peek();
+      if (item instanceof String) {
+        if (documentAttrs != null) {
+          emit((String) item, documentAttrs);
+        }
+        pending.remove();
+        continue;
+      }
+
+      final long id = (Long) item;
+      TableInfoArchive table = getObject(id, TableInfoArchive.class);
+      if (table != null) {
+        if (!all && !isTableReady(table)) {
+          return;
+        }
+        processTable(table, documentAttrs);
+        pending.remove();
+        continue;
+      }
+
+      GeometryObject shape = getObject(id, GeometryObject.class);
+      if (shape != null) {
+        TextBlock tb = objectIdToText.get(shape.storageId);
+        if (!all && (tb == null || !canRemovePlaceholderText(tb))) {
+          return;
+        }
+        if (tb != null) {
+          removePlaceholderText(tb);
+        }
+        addContainedStorageTextBlock(shape.storageId, documentAttrs);
+      } else if (!all && !objectStorage.containsKey(id)) {
+        // not decoded yet
+        return;
+      }
+      pending.remove();
+    }
   }
 }
@@ -15,7 +15,17 @@
  */
 package com.evernote.iwana.extract;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
 import com.evernote.iwana.MessageActions;
+import com.evernote.iwana.extract.TextAttributes.Scope;
+import com.evernote.iwana.pb.TSP.TSPMessages.Reference;
+import com.evernote.iwana.pb.TSWP.TSWPArchives.ObjectAttributeTable;
+import com.evernote.iwana.pb.TSWP.TSWPArchives.ObjectAttributeTable.ObjectAttribute;
+import com.google.protobuf.Message;
 
 /**
  * A Pages-specific extractor context.
@@ -23,13 +33,121 @@ import com.evernote.iwana.MessageActions;
 class PagesContext extends ContextBase {
   private static final MessageActions PAGES_ACTIONS = new MessageActions(
       ContextBase.COMMON_ACTIONS);
+  static {
+    // only the body storage reference; see PagesDocumentScanner
+    PAGES_ACTIONS.setAction(10000,
+        new StoreObject<Reference>(PagesDocumentScanner.PARSER));
+    PAGES_ACTIONS.setAction(2011, GeometryObject.PROJECT_SHAPE_INFO);
+    // the page of each floating drawable; see FloatingDrawablesScanner
+    PAGES_ACTIONS.setAction(10010,
+        new StoreObject<ObjectAttributeTable>(FloatingDrawablesScanner.PARSER));
+    addTableActions(PAGES_ACTIONS);
+    PAGES_ACTIONS.freeze();
+  }
+
+  /**
+   * For when document text is not wanted; tables are skipped.
+   */
+  private static final MessageActions PAGES_ACTIONS_NO_TABLES = new MessageActions(
+      PAGES_ACTIONS);
+  static {
+    PAGES_ACTIONS_NO_TABLES.removeAction(TABLE_MESSAGE_TYPES);
+    PAGES_ACTIONS_NO_TABLES.freeze();
+  }
+
+  private static final Comparator<ObjectAttribute> BY_PAGE =
+      new Comparator<ObjectAttribute>() {
+        @Override
+        public int compare(ObjectAttribute a, ObjectAttribute b) {
+          return Integer.compare(a.getCharacterIndex(), b.getCharacterIndex());
+        }
+      };
 
   protected PagesContext(String documentFilename, ExtractTextCallback target) {
     super(documentFilename, target);
   }
 
+  @Override
+  public boolean acceptIWAFile(String name) {
+    // all text is either document text or unreferenced text
+    return isWanted(Scope.DOCUMENT) || isWanted(Scope.UNREFERENCED);
+  }
+
   @Override
   protected MessageActions getMessageTypeActions() {
-    return PAGES_ACTIONS;
+    return isWanted(Scope.DOCUMENT) ? PAGES_ACTIONS : PAGES_ACTIONS_NO_TABLES;
+  }
+
+  @Override
+  public void onEndParseIWAFile(String name) {
+    super.onEndParseIWAFile(name);
+
+    // the body comes first, so emit it as soon as it has been decoded (along with the
+    // styles of its placeholders); a target that has enough text can then stop before
+    // the remaining files are decoded
+    Object obj = objectStorage.get(1L);
+    if (obj instanceof Reference) {
+      TextBlock body = objectIdToText.get(((Reference) obj).getIdentifier());
+      if (body != null && !body.done && canRemovePlaceholderText(body)) {
+        removePlaceholderText(body);
+        addContainedStorageTextBlock((Reference) obj,
+            ifWanted(TextAttributes.DEFAULT_DOCUMENT));
+      }
+    }
+  }
+
+  @Override
+  protected void processRootObject(Message obj) {
+    final TextAttributes documentAttrs = ifWanted(TextAttributes.DEFAULT_DOCUMENT);
+
+    // the body, as referenced by the document archive (see PagesDocumentScanner), unless
+    // it has been emitted already
+    if (obj instanceof Reference) {
+      addContainedStorageTextBlock((Reference) obj, documentAttrs);
+    }
+
+    // floating text boxes and shapes, page by page, as their positions are relative to
+    // their page
+    List<GeometryObject> geoms = new ArrayList<>();
+    for (Object o : objectStorage.values()) {
+      if (o instanceof ObjectAttributeTable) {
+        List<ObjectAttribute> drawables =
+            new ArrayList<>(((ObjectAttributeTable) o).getEntriesList());
+        // stable, so drawables keep their order within a page
+        Collections.sort(drawables, BY_PAGE);
+
+        final int n = drawables.size();
+        for (int start = 0, end; start < n; start = end) {
+          final int page = drawables.get(start).getCharacterIndex();
+          end = start + 1;
+          while (end < n && drawables.get(end).getCharacterIndex() == page) {
+            end++;
+          }
+
+          final long[] ids = new long[end - start];
+          for (int i = start; i < end; i++) {
+            ids[i - start] = drawables.get(i).getObject().getIdentifier();
+          }
+          geoms.clear();
+          geoms.addAll(resolve(ids, GeometryObject.class));
+          addContainedStorageTextBlocksInReadingOrder(geoms, documentAttrs);
+        }
+      }
+    }
+
+    // any other text boxes and shapes (e.g., inline in the body)
+    geoms.clear();
+    for (Object o : objectStorage.values()) {
+      if (o instanceof GeometryObject) {
+        TextBlock tb = objectIdToText.get(((GeometryObject) o).storageId);
+        if (tb != null && !tb.done) {
+          geoms.add((GeometryObject) o);
+        }
+      }
+    }
+    addContainedStorageTextBlocksInReadingOrder(geoms, documentAttrs);
+
+    // tables, whether inline in the body or floating
+    processRemainingTables(documentAttrs);
   }
 }
@@ -0,0 +1,67 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import java.io.IOException;
+
+import com.evernote.iwana.pb.TSP.TSPMessages.Reference;
+import com.google.protobuf.AbstractParser;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.ExtensionRegistryLite;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Parses the root object of a Pages document (a {@code TP.DocumentArchive}, message type
+ * 10000) by scanning its wire format, and returns the reference to the document's body
+ * storage ({@code body_storage}, field 4).
+ * 
+ * The reference is all we need from the archive, so the rest of it is skipped rather
+ * than decoded into a generated message. If the document has no body, the returned
+ * reference has identifier 0, which no object uses.
+ */
+final class PagesDocumentScanner extends AbstractParser<Reference> {
+  static final PagesDocumentScanner PARSER = new PagesDocumentScanner();
+
+  private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+
+  private static final int FIELD_BODY_STORAGE = 4;
+
+  private PagesDocumentScanner() {
+  }
+
+  @Override
+  public Reference parsePartialFrom(final CodedInputStream in,
+      final ExtensionRegistryLite extensionRegistry) throws InvalidProtocolBufferException {
+    final Reference.Builder body = Reference.newBuilder().setIdentifier(0);
+    try {
+      int tag;
+      while ((tag = in.readTag()) != 0) {
+        if (tag == (FIELD_BODY_STORAGE << 3 | WIRETYPE_LENGTH_DELIMITED)) {
+          in.readMessage(body, extensionRegistry);
+        } else if (!in.skipField(tag)) {
+          // end-group tag
+          break;
+        }
+      }
+    } catch (InvalidProtocolBufferException e) {
+      throw e.setUnfinishedMessage(body.buildPartial());
+    } catch (IOException e) {
+      throw new InvalidProtocolBufferException(e.getMessage())
+          .setUnfinishedMessage(body.buildPartial());
+    }
+    return body.buildPartial();
+  }
+}
@@ -0,0 +1,41 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A {@link TextSink} that writes plain text, each text block followed by an empty line.
+ */
+public final class PlainTextSink extends TextSink {
+  private static final String SEPARATOR = System.lineSeparator() + System.lineSeparator();
+
+  public PlainTextSink(final WritableByteChannel out) {
+    super(out);
+  }
+
+  public PlainTextSink(final OutputStream out) {
+    super(out);
+  }
+
+  @Override
+  void write(final String text, final TextAttributes attrs) throws IOException {
+    out.write(text);
+    out.write(SEPARATOR);
+  }
+}
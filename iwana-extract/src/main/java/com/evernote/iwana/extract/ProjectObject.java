@@ -0,0 +1,55 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import java.io.IOException;
+
+import com.evernote.iwana.ArchiveHeader;
+import com.evernote.iwana.HeaderMessageAction;
+import com.google.protobuf.Message;
+
+/**
+ * Stores a compact projection of the given Message in our objectStorage for deferred
+ * processing; the Message itself is dropped right away.
+ * 
+ * Projections may be shared across documents via the {@link TemplateCache}, so they
+ * must be immutable.
+ * 
+ * @see StoreObject To keep the entire Message.
+ */
+abstract class ProjectObject<T extends Message, R> extends
+    HeaderMessageAction<T, ExtractTextIWAContext> {
+  protected ProjectObject(Class<T> messageType) {
+    super(messageType);
+  }
+
+  /**
+   * Extracts the fields we need from the given message.
+   * 
+   * @param message The message.
+   * @return The projection, or {@code null} if the message is not needed.
+   */
+  protected abstract R project(T message);
+
+  @Override
+  protected void onMessage(T message, ArchiveHeader header, int index,
+      ExtractTextIWAContext context) throws IOException {
+    R record = project(message);
+    if (record != null) {
+      context.storeObject(header.getIdentifier(), record);
+    }
+  }
+}
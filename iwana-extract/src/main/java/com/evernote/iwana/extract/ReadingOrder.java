@@ -0,0 +1,194 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import java.util.Arrays;
+
+/**
+ * Computes a top-to-bottom, left-to-right reading order for a set of drawables, given
+ * their bounding boxes.
+ *
+ * Drawables whose vertical extents overlap are clustered into lines. Within a line,
+ * drawables whose horizontal extents overlap are clustered into columns, which are read
+ * left-to-right, each from top to bottom.
+ *
+ * All coordinates are kept in primitive arrays, and sorting is done on packed
+ * {@code long} keys (coordinate in the upper half, insertion index in the lower half),
+ * so ordering is stable and takes O(n log n) without boxing.
+ *
+ * Instances are not thread-safe, but may be reused via {@link #clear()}.
+ */
+final class ReadingOrder {
+  private static final int INITIAL_CAPACITY = 16;
+
+  private float[] x = new float[INITIAL_CAPACITY];
+  private float[] y = new float[INITIAL_CAPACITY];
+  private float[] right = new float[INITIAL_CAPACITY];
+  private float[] bottom = new float[INITIAL_CAPACITY];
+  private long[] keys = new long[INITIAL_CAPACITY];
+  private int[] order = new int[INITIAL_CAPACITY];
+  private int size = 0;
+
+  /**
+   * Removes all drawables, keeping the allocated buffers.
+   */
+  void clear() {
+    size = 0;
+  }
+
+  /**
+   * Returns the number of drawables added since the last {@link #clear()}.
+   *
+   * @return The number of drawables.
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Adds a drawable's bounding box.
+   *
+   * Negative or unknown sizes are treated as zero.
+   *
+   * @param left The x coordinate of the top-left corner.
+   * @param top The y coordinate of the top-left corner.
+   * @param width The width.
+   * @param height The height.
+   * @return The index of the drawable, as used in the array returned by {@link #sort()}.
+   */
+  int add(final float left, final float top, final float width, final float height) {
+    if (size == x.length) {
+      grow();
+    }
+    final int i = size++;
+    x[i] = left;
+    y[i] = top;
+    right[i] = width > 0 ? left + width : left;
+    bottom[i] = height > 0 ? top + height : top;
+    return i;
+  }
+
+  /**
+   * Computes the reading order for all added drawables.
+   *
+   * @return An array whose first {@link #size()} elements are the drawable indexes in
+   *         reading order. The array is owned by this instance and is overwritten by the
+   *         next call.
+   */
+  int[] sort() {
+    final int n = size;
+    final long[] k = keys;
+
+    for (int i = 0; i < n; i++) {
+      k[i] = key(y[i], i);
+    }
+    Arrays.sort(k, 0, n);
+
+    int lineStart = 0;
+    while (lineStart < n) {
+      // extend the line while the next drawable starts above the line's bottom
+      final float lineTop = y[(int) k[lineStart]];
+      float lineBottom = bottom[(int) k[lineStart]];
+      int lineEnd = lineStart + 1;
+      while (lineEnd < n) {
+        int idx = (int) k[lineEnd];
+        if (!overlaps(y[idx], lineTop, lineBottom)) {
+          break;
+        }
+        lineBottom = Math.max(lineBottom, bottom[idx]);
+        lineEnd++;
+      }
+
+      sortColumns(lineStart, lineEnd);
+      lineStart = lineEnd;
+    }
+
+    for (int i = 0; i < n; i++) {
+      order[i] = (int) k[i];
+    }
+    return order;
+  }
+
+  /**
+   * Clusters the given line (a range in {@link #keys}) into columns, and orders each
+   * column top to bottom.
+   */
+  private void sortColumns(final int from, final int to) {
+    if (to - from < 2) {
+      return;
+    }
+    final long[] k = keys;
+
+    for (int i = from; i < to; i++) {
+      int idx = (int) k[i];
+      k[i] = key(x[idx], idx);
+    }
+    Arrays.sort(k, from, to);
+
+    int colStart = from;
+    while (colStart < to) {
+      final float colLeft = x[(int) k[colStart]];
+      float colRight = right[(int) k[colStart]];
+      int colEnd = colStart + 1;
+      while (colEnd < to) {
+        int idx = (int) k[colEnd];
+        if (!overlaps(x[idx], colLeft, colRight)) {
+          break;
+        }
+        colRight = Math.max(colRight, right[idx]);
+        colEnd++;
+      }
+
+      if (colEnd - colStart > 1) {
+        for (int i = colStart; i < colEnd; i++) {
+          int idx = (int) k[i];
+          k[i] = key(y[idx], idx);
+        }
+        Arrays.sort(k, colStart, colEnd);
+      }
+      colStart = colEnd;
+    }
+  }
+
+  private void grow() {
+    final int capacity = x.length * 2;
+    x = Arrays.copyOf(x, capacity);
+    y = Arrays.copyOf(y, capacity);
+    right = Arrays.copyOf(right, capacity);
+    bottom = Arrays.copyOf(bottom, capacity);
+    keys = new long[capacity];
+    order = new int[capacity];
+  }
+
+  /**
+   * Checks whether an extent starting at {@code start} overlaps the extent
+   * {@code [min, max)}. Zero-sized extents only overlap extents starting at the same
+   * coordinate.
+   */
+  private static boolean overlaps(final float start, final float min, final float max) {
+    return start < max || start == min;
+  }
+
+  /**
+   * Packs a coordinate and an index into a {@code long} whose natural order is the order
+   * of the coordinate, ties broken by index.
+   */
+  private static long key(final float coordinate, final int index) {
+    int bits = Float.floatToIntBits(coordinate + 0.0f);
+    bits ^= (bits >> 31) & 0x7fffffff;
+    return ((long) bits << 32) | index;
+  }
+}
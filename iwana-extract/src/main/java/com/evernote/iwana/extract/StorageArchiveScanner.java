@@ -0,0 +1,137 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.evernote.iwana.pb.TSWP.TSWPArchives.ObjectAttributeTable;
+import com.evernote.iwana.pb.TSWP.TSWPArchives.StorageArchive;
+import com.google.protobuf.AbstractParser;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.ExtensionRegistryLite;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Parses {@link StorageArchive}s by scanning their wire format, keeping only the fields
+ * we read: {@code text}, {@code in_document} and {@code table_smartfield}.
+ * 
+ * All other fields (style and attribute tables, paragraph data, ...) are skipped by their
+ * wire type, without building any message objects for them. Storages are the most
+ * common and largest messages in a document, so this avoids most of the allocation that
+ * the generated parser would cause.
+ * 
+ * If one of the kept fields has an unexpected wire type, the generated parser takes over
+ * for the rest of the message.
+ */
+final class StorageArchiveScanner extends AbstractParser<StorageArchive> {
+  static final StorageArchiveScanner PARSER = new StorageArchiveScanner();
+
+  private static final int WIRETYPE_VARINT = 0;
+  private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+
+  private static final int FIELD_TEXT = 3;
+  private static final int FIELD_IN_DOCUMENT = 10;
+  private static final int FIELD_TABLE_SMARTFIELD = 11;
+
+  private StorageArchiveScanner() {
+  }
+
+  @Override
+  public StorageArchive parsePartialFrom(final CodedInputStream in,
+      final ExtensionRegistryLite extensionRegistry) throws InvalidProtocolBufferException {
+    List<ByteString> text = null;
+    boolean hasInDocument = false;
+    boolean inDocument = false;
+    ObjectAttributeTable.Builder smartfield = null;
+
+    try {
+      int tag;
+      while ((tag = in.readTag()) != 0) {
+        final int wireType = tag & 7;
+        switch (tag >>> 3) {
+          case FIELD_TEXT:
+            if (wireType != WIRETYPE_LENGTH_DELIMITED) {
+              break;
+            }
+            if (text == null) {
+              text = new ArrayList<>(1);
+            }
+            text.add(in.readBytes());
+            continue;
+          case FIELD_IN_DOCUMENT:
+            if (wireType != WIRETYPE_VARINT) {
+              break;
+            }
+            hasInDocument = true;
+            inDocument = in.readBool();
+            continue;
+          case FIELD_TABLE_SMARTFIELD:
+            if (wireType != WIRETYPE_LENGTH_DELIMITED) {
+              break;
+            }
+            if (smartfield == null) {
+              smartfield = ObjectAttributeTable.newBuilder();
+            }
+            in.readMessage(smartfield, extensionRegistry);
+            continue;
+          default:
+            if (!in.skipField(tag)) {
+              // end-group tag
+              return build(text, hasInDocument, inDocument, smartfield).buildPartial();
+            }
+            continue;
+        }
+
+        // unexpected wire type for one of our fields; like the generated parser, treat
+        // the field as unknown, and let the generated parser handle the rest
+        in.skipField(tag);
+        final StorageArchive.Builder builder =
+            build(text, hasInDocument, inDocument, smartfield);
+        builder.mergeFrom(in, extensionRegistry);
+        return builder.buildPartial();
+      }
+    } catch (InvalidProtocolBufferException e) {
+      throw e.setUnfinishedMessage(build(text, hasInDocument, inDocument, smartfield)
+          .buildPartial());
+    } catch (IOException e) {
+      throw new InvalidProtocolBufferException(e.getMessage()).setUnfinishedMessage(build(
+          text, hasInDocument, inDocument, smartfield).buildPartial());
+    }
+
+    return build(text, hasInDocument, inDocument, smartfield).buildPartial();
+  }
+
+  private static StorageArchive.Builder build(final List<ByteString> text,
+      final boolean hasInDocument, final boolean inDocument,
+      final ObjectAttributeTable.Builder smartfield) {
+    final StorageArchive.Builder builder = StorageArchive.newBuilder();
+    if (text != null) {
+      for (ByteString t : text) {
+        builder.addTextBytes(t);
+      }
+    }
+    if (hasInDocument) {
+      builder.setInDocument(inDocument);
+    }
+    if (smartfield != null) {
+      builder.setTableSmartfield(smartfield);
+    }
+    return builder;
+  }
+}
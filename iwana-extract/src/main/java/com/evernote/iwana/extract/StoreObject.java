@@ -17,23 +17,27 @@ package com.evernote.iwana.extract;
 
 import java.io.IOException;
 
-import com.evernote.iwana.MessageAction;
-import com.evernote.iwana.pb.TSP.TSPArchiveMessages.ArchiveInfo;
-import com.evernote.iwana.pb.TSP.TSPArchiveMessages.MessageInfo;
+import com.evernote.iwana.ArchiveHeader;
+import com.evernote.iwana.HeaderMessageAction;
 import com.google.protobuf.Message;
 import com.google.protobuf.Parser;
 
 /**
  * Stores the given Message in our objectStorage for deferred processing.
  */
-class StoreObject<T extends Message> extends MessageAction<T, ExtractTextIWAContext> {
+class StoreObject<T extends Message> extends
+    HeaderMessageAction<T, ExtractTextIWAContext> {
+  protected StoreObject(Class<T> messageType) {
+    super(messageType);
+  }
+
   protected StoreObject(Parser<T> parser) {
     super(parser);
   }
 
   @Override
-  protected void onMessage(T message, ArchiveInfo ai, MessageInfo mi,
+  protected void onMessage(T message, ArchiveHeader header, int index,
       ExtractTextIWAContext context) throws IOException {
-    context.objectStorage.put(ai.getIdentifier(), message);
+    context.storeObject(header.getIdentifier(), message);
   }
 }
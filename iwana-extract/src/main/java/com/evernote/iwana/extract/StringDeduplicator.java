@@ -0,0 +1,123 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.protobuf.ByteString;
+
+/**
+ * A per-document table that returns the same {@link String} instance for repeated text
+ * values, and counts how often each text block has been emitted.
+ * 
+ * Values are looked up by their UTF-8 bytes, before decoding, so repeats are never
+ * decoded again. Values longer than {@link #MAX_LENGTH} bytes (or chars) are rarely
+ * repeated and are passed through, so the table stays small.
+ * 
+ * Instances are not thread-safe.
+ * 
+ * @see ExtractTextIWAParser#setDeduplicateStrings(boolean)
+ */
+final class StringDeduplicator {
+  static final int MAX_LENGTH = 256;
+
+  private ByteString[] keys = new ByteString[64];
+  private String[] values = new String[64];
+  private int size = 0;
+
+  private final Map<String, int[]> emitted = new HashMap<>();
+
+  /**
+   * Decodes the given UTF-8 bytes, returning the same instance for repeated values.
+   * 
+   * @param utf8 The UTF-8 encoded string.
+   * @return The decoded string.
+   */
+  String decode(final ByteString utf8) {
+    if (utf8.size() > MAX_LENGTH) {
+      return utf8.toStringUtf8();
+    }
+    final int mask = keys.length - 1;
+    int i = mix(utf8.hashCode()) & mask;
+    ByteString k;
+    while ((k = keys[i]) != null) {
+      if (k.equals(utf8)) {
+        return values[i];
+      }
+      i = (i + 1) & mask;
+    }
+
+    final String value = utf8.toStringUtf8();
+    keys[i] = utf8;
+    values[i] = value;
+    if (++size * 2 > keys.length) {
+      rehash(keys.length * 2);
+    }
+    return value;
+  }
+
+  /**
+   * Records that the given text block is emitted.
+   * 
+   * @param text The text block.
+   * @return The number of times the same text has been emitted before, or {@code 0} if
+   *         the text is longer than {@link #MAX_LENGTH} chars.
+   */
+  int countEmitted(final String text) {
+    if (text.length() > MAX_LENGTH) {
+      return 0;
+    }
+    int[] count = emitted.get(text);
+    if (count == null) {
+      emitted.put(text, new int[] {1});
+      return 0;
+    }
+    return count[0]++;
+  }
+
+  /**
+   * Returns the number of distinct values decoded so far.
+   * 
+   * @return The number of values.
+   */
+  int size() {
+    return size;
+  }
+
+  private void rehash(final int capacity) {
+    final ByteString[] oldKeys = keys;
+    final String[] oldValues = values;
+    keys = new ByteString[capacity];
+    values = new String[capacity];
+    final int mask = capacity - 1;
+    for (int j = 0; j < oldKeys.length; j++) {
+      if (oldKeys[j] != null) {
+        int i = mix(oldKeys[j].hashCode()) & mask;
+        while (keys[i] != null) {
+          i = (i + 1) & mask;
+        }
+        keys[i] = oldKeys[j];
+        values[i] = oldValues[j];
+      }
+    }
+  }
+
+  private static int mix(final int hash) {
+    final int h = hash * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+}
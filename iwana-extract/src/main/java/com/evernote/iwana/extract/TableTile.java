@@ -0,0 +1,178 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import org.apache.log4j.Logger;
+
+import com.evernote.iwana.pb.TST.TSTArchives.Tile;
+import com.evernote.iwana.pb.TST.TSTArchives.TileRowInfo;
+
+/**
+ * A compact, decoded form of a table {@link Tile}, holding only the string cells, in
+ * row-major order.
+ *
+ * The tile message itself (including its cell storage buffers) can be dropped as soon as
+ * it has been decoded.
+ */
+final class TableTile {
+  private static final Logger LOG = Logger.getLogger(TableTile.class);
+
+  private static final int MAX_CELL_STORAGE_VERSION = 4;
+  private static final int CELL_TYPE_STRING = 3;
+  private static final int NO_CELL = 0xffff;
+
+  /*
+   * A cell starts with the storage version (byte 0), the cell type (byte 1 from version
+   * 4 on, byte 2 before) and the flags (bytes 4-7). The optional fields present
+   * according to the flags follow, from byte 12 (byte 8 in version 1): 4-byte fields for
+   * 0xd8e (0x18e in version 1), the rich text key (0x200), 4-byte fields for 0x3000
+   * (0x1000 in version 1), then the string key (0x10).
+   */
+  private static final int FLAGS_OFFSET = 4;
+  private static final int FLAG_RICH_TEXT = 0x200;
+  private static final int FLAG_STRING = 0x10;
+
+  final int[] rows;
+  final int[] columns;
+  final int[] stringKeys;
+  final int numCells;
+
+  private TableTile(int[] rows, int[] columns, int[] stringKeys, int numCells) {
+    this.rows = rows;
+    this.columns = columns;
+    this.stringKeys = stringKeys;
+    this.numCells = numCells;
+  }
+
+  /**
+   * Decodes the string cells of the given {@link Tile}.
+   *
+   * @param tile The tile.
+   * @return The decoded tile.
+   */
+  static TableTile decode(final Tile tile) {
+    int capacity = Math.max(16, tile.getNumCells());
+    int[] rows = new int[capacity];
+    int[] columns = new int[capacity];
+    int[] stringKeys = new int[capacity];
+    int n = 0;
+
+    int lastRow = -1;
+    boolean sorted = true;
+    int unsupportedVersion = -1;
+    for (TileRowInfo ri : tile.getRowInfosList()) {
+      final int row = ri.getTileRowIndex();
+      if (row < lastRow) {
+        sorted = false;
+      }
+      lastRow = row;
+
+      final ByteBuffer storage =
+          ri.getCellStorageBuffer().asReadOnlyByteBuffer().order(ByteOrder.LITTLE_ENDIAN);
+      final ByteBuffer offsets =
+          ri.getCellOffsets().asReadOnlyByteBuffer().order(ByteOrder.LITTLE_ENDIAN);
+      final int numColumns = offsets.remaining() / 2;
+
+      for (int col = 0; col < numColumns; col++) {
+        final int offset = offsets.getShort(col * 2) & 0xffff;
+        if (offset == NO_CELL || offset + 12 > storage.limit()) {
+          continue;
+        }
+        final int version = storage.get(offset) & 0xff;
+        if (version == 0 || version > MAX_CELL_STORAGE_VERSION) {
+          unsupportedVersion = version;
+          continue;
+        }
+        final int type = storage.get(offset + (version >= 4 ? 1 : 2)) & 0xff;
+        if (type != CELL_TYPE_STRING) {
+          continue;
+        }
+        final int flags = storage.getInt(offset + FLAGS_OFFSET);
+        if ((flags & FLAG_STRING) == 0) {
+          continue;
+        }
+        final int keyOffset = offset + stringKeyOffset(version, flags);
+        if (keyOffset + 4 > storage.limit()) {
+          continue;
+        }
+
+        if (n == rows.length) {
+          rows = Arrays.copyOf(rows, n * 2);
+          columns = Arrays.copyOf(columns, n * 2);
+          stringKeys = Arrays.copyOf(stringKeys, n * 2);
+        }
+        rows[n] = row;
+        columns[n] = col;
+        stringKeys[n] = storage.getInt(keyOffset);
+        n++;
+      }
+    }
+
+    if (unsupportedVersion != -1) {
+      LOG.info("Unsupported cell storage version: " + unsupportedVersion);
+    }
+
+    TableTile tt = new TableTile(rows, columns, stringKeys, n);
+    if (!sorted) {
+      tt.sortByRow();
+    }
+    return tt;
+  }
+
+  /**
+   * Returns the offset of the string key within a cell.
+   *
+   * @param version The cell storage version.
+   * @param flags The cell's flags.
+   * @return The offset, relative to the start of the cell.
+   */
+  static int stringKeyOffset(final int version, final int flags) {
+    final boolean v1 = version == 1;
+    int offset = v1 ? 8 : 12;
+    offset += 4 * Integer.bitCount(flags & (v1 ? 0x18e : 0xd8e));
+    if ((flags & FLAG_RICH_TEXT) != 0) {
+      offset += 4;
+    }
+    offset += 4 * Integer.bitCount(flags & (v1 ? 0x1000 : 0x3000));
+    return offset;
+  }
+
+  /**
+   * Sorts cells by row, then by column (insertion sort; rows are nearly always in order
+   * already).
+   */
+  private void sortByRow() {
+    for (int i = 1; i < numCells; i++) {
+      final int r = rows[i];
+      final int c = columns[i];
+      final int k = stringKeys[i];
+      int j = i - 1;
+      while (j >= 0 && (rows[j] > r || (rows[j] == r && columns[j] > c))) {
+        rows[j + 1] = rows[j];
+        columns[j + 1] = columns[j];
+        stringKeys[j + 1] = stringKeys[j];
+        j--;
+      }
+      rows[j + 1] = r;
+      columns[j + 1] = c;
+      stringKeys[j + 1] = k;
+    }
+  }
+}
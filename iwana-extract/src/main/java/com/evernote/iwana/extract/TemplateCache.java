@@ -0,0 +1,167 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.evernote.iwana.pb.TSWP.TSWPArchives.ObjectAttributeTable.ObjectAttribute;
+
+/**
+ * A bounded, thread-safe cache for the decoded contents of template {@code .iwa} files
+ * (Keynote master slides and the theme stylesheet), shared across documents.
+ *
+ * Entries are keyed by the CRC-32 and size of the {@code .iwa} file, so decks built from
+ * the same template only decode it once. The least recently used entry is evicted when
+ * the cache is full.
+ *
+ * A cache is enabled per parser via
+ * {@link ExtractTextIWAParser#setTemplateCache(TemplateCache)}.
+ */
+public final class TemplateCache {
+  private final Map<Key, Entry> entries;
+
+  /**
+   * Creates a new {@link TemplateCache}.
+   *
+   * @param maxEntries The maximum number of {@code .iwa} files to keep.
+   */
+  public TemplateCache(final int maxEntries) {
+    if (maxEntries <= 0) {
+      throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+    }
+    this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, TemplateCache.Entry> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Returns the number of cached {@code .iwa} files.
+   *
+   * @return The number of entries.
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Removes all entries.
+   */
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  synchronized Entry get(final long crc, final long size) {
+    return entries.get(new Key(crc, size));
+  }
+
+  synchronized void put(final long crc, final long size, final Entry entry) {
+    entries.put(new Key(crc, size), entry);
+  }
+
+  private static final class Key {
+    private final long crc;
+    private final long size;
+
+    Key(final long crc, final long size) {
+      this.crc = crc;
+      this.size = size;
+    }
+
+    @Override
+    public int hashCode() {
+      return (int) (crc ^ (crc >>> 32)) * 31 + (int) (size ^ (size >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      return crc == other.crc && size == other.size;
+    }
+  }
+
+  /**
+   * The immutable, decoded contents of one {@code .iwa} file.
+   */
+  static final class Entry {
+    final long[] objectIds;
+    final Object[] objects;
+    final long[] textIds;
+    final String[] texts;
+    final List<List<ObjectAttribute>> objectAttributes;
+    final long[] ignorableStyles;
+
+    private Entry(Recorder r) {
+      this.objectIds = toArray(r.objectIds);
+      this.objects = r.objects.toArray();
+      this.textIds = toArray(r.textIds);
+      this.texts = r.texts.toArray(new String[r.texts.size()]);
+      this.objectAttributes = Collections.unmodifiableList(r.objectAttributes);
+      this.ignorableStyles = toArray(r.ignorableStyles);
+    }
+
+    private static long[] toArray(List<Long> list) {
+      final long[] array = new long[list.size()];
+      for (int i = 0; i < array.length; i++) {
+        array[i] = list.get(i);
+      }
+      return array;
+    }
+  }
+
+  /**
+   * Records the results of parsing one {@code .iwa} file, for later replay.
+   */
+  static final class Recorder {
+    private final List<Long> objectIds = new ArrayList<>();
+    private final List<Object> objects = new ArrayList<>();
+    private final List<Long> textIds = new ArrayList<>();
+    private final List<String> texts = new ArrayList<>();
+    private final List<List<ObjectAttribute>> objectAttributes = new ArrayList<>();
+    private final List<Long> ignorableStyles = new ArrayList<>();
+
+    void onObject(final long id, final Object object) {
+      objectIds.add(id);
+      objects.add(object);
+    }
+
+    void onText(final long id, final String text, final List<ObjectAttribute> attrs) {
+      textIds.add(id);
+      texts.add(text);
+      objectAttributes.add(attrs == null ? null : Collections
+          .unmodifiableList(new ArrayList<>(attrs)));
+    }
+
+    void onIgnorableStyle(final long id) {
+      ignorableStyles.add(id);
+    }
+
+    Entry toEntry() {
+      return new Entry(this);
+    }
+  }
+}
@@ -20,7 +20,7 @@ package com.evernote.iwana.extract;
  */
 public class TextAttributes {
   public static enum Scope {
-    UNREFERENCED, DOCUMENT, NOTES
+    UNREFERENCED, DOCUMENT, NOTES, MASTER
   }
 
   /**
@@ -39,6 +39,11 @@ public class TextAttributes {
    */
   static final TextAttributes DEFAULT_NOTES = new TextAttributes(Scope.NOTES);
 
+  /**
+   * The text is part of a master slide (template) used by the document.
+   */
+  static final TextAttributes DEFAULT_MASTER = new TextAttributes(Scope.MASTER);
+
   private final Scope scope;
 
   /**
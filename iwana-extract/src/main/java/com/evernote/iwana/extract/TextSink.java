@@ -0,0 +1,127 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An {@link ExtractTextCallback} that writes text blocks to an output stream or channel.
+ * 
+ * Output is UTF-8 encoded directly into a large buffer, and only flushed at the end of
+ * each document (and when the buffer is full), so many documents can be written to the
+ * same sink without the per-line overhead of a {@link java.io.PrintStream}.
+ * 
+ * Instances are not thread-safe; use one sink per thread, or one document at a time.
+ * Write errors are thrown as {@link SinkException}s from the callback methods.
+ * 
+ * @see PlainTextSink
+ * @see JsonLinesSink
+ */
+public abstract class TextSink extends ExtractTextCallback implements Closeable {
+  final Utf8Writer out;
+  private String documentName;
+
+  /**
+   * Creates a sink that writes to the given channel.
+   * 
+   * @param out The channel; closed when this sink is closed.
+   */
+  TextSink(final WritableByteChannel out) {
+    this.out = new Utf8Writer(out, Utf8Writer.DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * Creates a sink that writes to the given stream, using the stream's
+   * {@link java.nio.channels.FileChannel} if it is a {@link FileOutputStream}.
+   * 
+   * @param out The stream; closed when this sink is closed.
+   */
+  TextSink(final OutputStream out) {
+    this(out instanceof FileOutputStream ? ((FileOutputStream) out).getChannel() : Channels
+        .newChannel(out));
+  }
+
+  /**
+   * Sets the name of the document that is about to be parsed.
+   * 
+   * @param documentName The name, or {@code null}.
+   */
+  public void setDocumentName(final String documentName) {
+    this.documentName = documentName;
+  }
+
+  /**
+   * Returns the name of the document that is being parsed.
+   * 
+   * @return The name, or {@code null}.
+   */
+  public String getDocumentName() {
+    return documentName;
+  }
+
+  @Override
+  public void onTextBlock(final String text, final TextAttributes attrs) {
+    try {
+      write(text, attrs);
+    } catch (IOException e) {
+      throw new SinkException(e);
+    }
+  }
+
+  /**
+   * Writes a text block.
+   * 
+   * @param text The text block.
+   * @param attrs The text attributes.
+   * @throws IOException
+   */
+  abstract void write(String text, TextAttributes attrs) throws IOException;
+
+  @Override
+  public void onEndDocument() {
+    try {
+      out.flush();
+    } catch (IOException e) {
+      throw new SinkException(e);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    out.close();
+  }
+
+  /**
+   * Thrown from the callback methods if the sink cannot be written to.
+   */
+  public static final class SinkException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    SinkException(final IOException cause) {
+      super(cause);
+    }
+
+    @Override
+    public synchronized IOException getCause() {
+      return (IOException) super.getCause();
+    }
+  }
+}
@@ -0,0 +1,177 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A buffered writer that encodes text as UTF-8 directly into a large byte buffer, which is
+ * written to a {@link WritableByteChannel} when it is full or flushed.
+ * 
+ * Unpaired surrogates are written as {@code '?'}, like the JDK's UTF-8 encoder does.
+ * 
+ * Instances are not thread-safe.
+ */
+final class Utf8Writer implements Closeable {
+  static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+  private final WritableByteChannel out;
+  private final byte[] buf;
+  private final ByteBuffer bb;
+  private int pos = 0;
+
+  Utf8Writer(final WritableByteChannel out, final int bufferSize) {
+    if (bufferSize < 16) {
+      throw new IllegalArgumentException("Buffer too small: " + bufferSize);
+    }
+    this.out = out;
+    this.buf = new byte[bufferSize];
+    this.bb = ByteBuffer.wrap(buf);
+  }
+
+  /**
+   * Writes the given string.
+   * 
+   * @param s The string.
+   * @throws IOException
+   */
+  void write(final String s) throws IOException {
+    encode(s, false);
+  }
+
+  /**
+   * Writes the given string as a quoted JSON string literal.
+   * 
+   * @param s The string.
+   * @throws IOException
+   */
+  void writeJsonString(final String s) throws IOException {
+    writeAscii('"');
+    encode(s, true);
+    writeAscii('"');
+  }
+
+  /**
+   * Writes a single ASCII character.
+   * 
+   * @param c The character; must be {@code < 0x80}.
+   * @throws IOException
+   */
+  void writeAscii(final char c) throws IOException {
+    if (pos == buf.length) {
+      drain();
+    }
+    buf[pos++] = (byte) c;
+  }
+
+  private void encode(final String s, final boolean json) throws IOException {
+    final byte[] buf = this.buf;
+    final int n = s.length();
+    int pos = this.pos;
+    for (int i = 0; i < n; i++) {
+      if (pos + 6 > buf.length) {
+        this.pos = pos;
+        drain();
+        pos = 0;
+      }
+      final char c = s.charAt(i);
+      if (c < 0x80) {
+        if (json && (c < 0x20 || c == '"' || c == '\\')) {
+          pos = escape(c, buf, pos);
+        } else {
+          buf[pos++] = (byte) c;
+        }
+      } else if (c < 0x800) {
+        buf[pos++] = (byte) (0xc0 | (c >> 6));
+        buf[pos++] = (byte) (0x80 | (c & 0x3f));
+      } else if (!Character.isSurrogate(c)) {
+        buf[pos++] = (byte) (0xe0 | (c >> 12));
+        buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        buf[pos++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isHighSurrogate(c) && i + 1 < n
+          && Character.isLowSurrogate(s.charAt(i + 1))) {
+        final int cp = Character.toCodePoint(c, s.charAt(++i));
+        buf[pos++] = (byte) (0xf0 | (cp >> 18));
+        buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+        buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+        buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+      } else {
+        buf[pos++] = '?';
+      }
+    }
+    this.pos = pos;
+  }
+
+  private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+  private static int escape(final char c, final byte[] buf, int pos) {
+    buf[pos++] = '\\';
+    switch (c) {
+      case '"':
+      case '\\':
+        buf[pos++] = (byte) c;
+        break;
+      case '\n':
+        buf[pos++] = 'n';
+        break;
+      case '\r':
+        buf[pos++] = 'r';
+        break;
+      case '\t':
+        buf[pos++] = 't';
+        break;
+      default:
+        buf[pos++] = 'u';
+        buf[pos++] = '0';
+        buf[pos++] = '0';
+        buf[pos++] = HEX[c >> 4];
+        buf[pos++] = HEX[c & 0xf];
+    }
+    return pos;
+  }
+
+  private void drain() throws IOException {
+    bb.clear().limit(pos);
+    while (bb.hasRemaining()) {
+      out.write(bb);
+    }
+    pos = 0;
+  }
+
+  /**
+   * Writes all buffered bytes to the channel.
+   * 
+   * @throws IOException
+   */
+  void flush() throws IOException {
+    if (pos > 0) {
+      drain();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+import com.evernote.iwana.pb.TSP.TSPArchiveMessages.ArchiveInfo;
+import com.evernote.iwana.pb.TSP.TSPArchiveMessages.MessageInfo;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Tests decoding {@link ArchiveHeader}s against the generated {@link ArchiveInfo} parser.
+ */
+public class TestArchiveHeader {
+
+  @Test
+  public void testDecode() throws Exception {
+    ArchiveInfo first = ArchiveInfo.newBuilder()
+        .setIdentifier(1L << 40)
+        .addMessageInfos(MessageInfo.newBuilder().setType(2001).addVersion(1)
+            .addVersion(0).setLength(300).addObjectReferences(7)
+            .addObjectReferences(1L << 35).addDataReferences(3))
+        .addMessageInfos(MessageInfo.newBuilder().setType(6).setLength(0))
+        .build();
+    ArchiveInfo second = ArchiveInfo.newBuilder()
+        .addMessageInfos(MessageInfo.newBuilder().setType(1).setLength(5))
+        .build();
+
+    ArchiveHeader header = new ArchiveHeader();
+    CodedInputStream in = CodedInputStream.newInstance(new ByteArrayInputStream(
+        concat(first.toByteArray(), second.toByteArray())));
+    header.read(in, first.getSerializedSize());
+    assertEquals(1L << 40, header.getIdentifier());
+    assertEquals(2, header.getMessageCount());
+    assertEquals(2001, header.getType(0));
+    assertEquals(300, header.getLength(0));
+    assertEquals(6, header.getType(1));
+    assertEquals(0, header.getLength(1));
+    assertEquals(first, header.getArchiveInfo());
+    assertEquals(first.getMessageInfos(0), header.getMessageInfo(0));
+
+    ArchiveHeader copy = header.copy();
+    header.read(in, second.getSerializedSize());
+    assertEquals(0, header.getIdentifier());
+    assertEquals(1, header.getMessageCount());
+    assertEquals(second, header.getArchiveInfo());
+
+    assertEquals(1L << 40, copy.getIdentifier());
+    assertEquals(2, copy.getMessageCount());
+    assertEquals(first, copy.getArchiveInfo());
+    assertSame(copy.getArchiveInfo(), copy.getArchiveInfo());
+    try {
+      copy.getType(2);
+      fail();
+    } catch (IndexOutOfBoundsException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testMissingLength() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    out.writeUInt64(1, 42);
+    out.writeMessage(2, MessageInfo.newBuilder().setType(1).buildPartial());
+    out.flush();
+    byte[] data = bytes.toByteArray();
+
+    try {
+      new ArchiveHeader().read(CodedInputStream.newInstance(data), data.length);
+      fail();
+    } catch (InvalidProtocolBufferException e) {
+      // like the generated parser
+    }
+  }
+
+  @Test
+  public void testTruncatedHugeHeader() throws Exception {
+    // declares a header of 2 GB, but only two bytes follow
+    byte[] data = new byte[] {(byte) 0xf0, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x07,
+        0x08, 0x01};
+    IWAMessageReader reader = new IWAMessageReader(new ByteArrayInputStream(data));
+    try {
+      reader.nextArchive(new ArchiveHeader());
+      fail();
+    } catch (InvalidProtocolBufferException e) {
+      // expected, without allocating a buffer for the declared size
+    }
+  }
+
+  @Test
+  public void testHeaderActionFromArchiveInfo() throws Exception {
+    ArchiveInfo ai = ArchiveInfo.newBuilder().setIdentifier(17)
+        .addMessageInfos(MessageInfo.newBuilder().setType(1).setLength(2))
+        .addMessageInfos(MessageInfo.newBuilder().setType(3).setLength(4)).build();
+    final long[] seen = new long[3];
+    HeaderMessageAction<ArchiveInfo, IwanaContext<?>> action =
+        new HeaderMessageAction<ArchiveInfo, IwanaContext<?>>(ArchiveInfo.class) {
+          @Override
+          protected void onMessage(ArchiveInfo message, ArchiveHeader header, int index,
+              IwanaContext<?> context) {
+            seen[0] = header.getIdentifier();
+            seen[1] = index;
+            seen[2] = header.getLength(index);
+          }
+        };
+    action.onMessage(ai, ai, ai.getMessageInfos(1), null);
+    assertEquals(17, seen[0]);
+    assertEquals(1, seen[1]);
+    assertEquals(4, seen[2]);
+  }
+
+  private static byte[] concat(byte[] a, byte[] b) {
+    byte[] c = new byte[a.length + b.length];
+    System.arraycopy(a, 0, c, 0, a.length);
+    System.arraycopy(b, 0, c, a.length, b.length);
+    return c;
+  }
+}
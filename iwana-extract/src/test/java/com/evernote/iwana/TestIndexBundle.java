@@ -0,0 +1,178 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.evernote.iwana.extract.ExtractTextCallback;
+import com.evernote.iwana.extract.ExtractTextIWAParser;
+import com.evernote.iwana.extract.TextAttributes;
+
+/**
+ * Tests reading package-style documents through an {@link IndexBundle}, from a
+ * memory-mapped {@code Index.zip} as well as from an unpacked {@code Index/} folder.
+ */
+public class TestIndexBundle {
+  private static final byte[] DOCUMENT = "contents, contents, contents".getBytes();
+  private static final byte[] STORED = {1, 2, 3, 4, 5};
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void testMapIndexZip() throws Exception {
+    File zip = tmp.newFile("Index.zip");
+    try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zip))) {
+      out.putNextEntry(new ZipEntry("Index/"));
+      out.putNextEntry(new ZipEntry("Index/Document.iwa"));
+      out.write(DOCUMENT);
+      ZipEntry stored = new ZipEntry("Index/Tables/Tile.iwa");
+      stored.setMethod(ZipEntry.STORED);
+      stored.setSize(STORED.length);
+      stored.setCrc(crc(STORED));
+      out.putNextEntry(stored);
+      out.write(STORED);
+    }
+
+    List<IWAEntry> entries = IndexBundle.mapIndexZip(zip);
+    assertEquals(2, entries.size());
+    assertEntry("Index/Document.iwa", DOCUMENT, entries.get(0));
+    assertEntry("Index/Tables/Tile.iwa", STORED, entries.get(1));
+  }
+
+  @Test(expected = ZipException.class)
+  public void testMapInvalidIndexZip() throws Exception {
+    File zip = tmp.newFile("Index.zip");
+    Files.write(zip.toPath(), new byte[100]);
+    IndexBundle.mapIndexZip(zip);
+  }
+
+  @Test
+  public void testMapIndexDirectory() throws Exception {
+    File dir = tmp.newFolder("Index");
+    Files.write(new File(dir, "Document.iwa").toPath(), DOCUMENT);
+    File tables = new File(dir, "Tables");
+    assertEquals(true, tables.mkdir());
+    Files.write(new File(tables, "Tile.iwa").toPath(), STORED);
+
+    List<IWAEntry> entries = IndexBundle.mapIndexDirectory(dir);
+    assertEquals(2, entries.size());
+    assertEntry("Index/Document.iwa", DOCUMENT, entries.get(0));
+    assertEntry("Index/Tables/Tile.iwa", STORED, entries.get(1));
+    assertEquals(new ArrayList<>(IndexBundle.listIndexDirectory(dir).keySet()),
+        names(entries));
+  }
+
+  @Test
+  public void testParsePackages() throws Exception {
+    File document = getTestFile("testPages2013.pages");
+    String expected = getText(document);
+
+    // an unpacked Index/ folder
+    File unpacked = tmp.newFolder("unpacked.pages");
+    // an Index.zip, as written by older versions
+    File packed = tmp.newFolder("packed.pages");
+    try (ZipFile zip = new ZipFile(document);
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(new File(packed,
+            "Index.zip")))) {
+      for (ZipEntry e : Collections.list(zip.entries())) {
+        if (e.isDirectory() || !e.getName().startsWith("Index/")) {
+          continue;
+        }
+        byte[] data = readFully(zip.getInputStream(e));
+        File f = new File(unpacked, e.getName());
+        f.getParentFile().mkdirs();
+        Files.write(f.toPath(), data);
+        out.putNextEntry(new ZipEntry(e.getName()));
+        out.write(data);
+      }
+    }
+
+    assertEquals(expected, getText(unpacked));
+    assertEquals(expected, getText(packed));
+  }
+
+  private static void assertEntry(String name, byte[] data, IWAEntry entry)
+      throws IOException {
+    assertEquals(name, entry.getName());
+    assertEquals(data.length, entry.getSize());
+    assertEquals(crc(data), entry.getCrc());
+    try (InputStream in = entry.openStream()) {
+      assertArrayEquals(data, readFully(in));
+    }
+  }
+
+  private static List<String> names(List<IWAEntry> entries) {
+    List<String> names = new ArrayList<>();
+    for (IWAEntry e : entries) {
+      names.add(e.getName());
+    }
+    return names;
+  }
+
+  private static long crc(byte[] data) {
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    return crc.getValue();
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[8192];
+    int r;
+    while ((r = in.read(buf)) != -1) {
+      out.write(buf, 0, r);
+    }
+    return out.toByteArray();
+  }
+
+  private static String getText(File document) throws IOException {
+    final StringBuilder sb = new StringBuilder();
+    new ExtractTextIWAParser().parse(document, new ExtractTextCallback() {
+      @Override
+      public void onTextBlock(String text, TextAttributes attrs) {
+        sb.append(attrs.getScope()).append(": ").append(text).append('\n');
+      }
+    });
+    return sb.toString();
+  }
+
+  private File getTestFile(String testFileName) throws Exception {
+    return Paths.get(getClass().getResource("/test-documents/" + testFileName).toURI())
+        .toFile();
+  }
+}
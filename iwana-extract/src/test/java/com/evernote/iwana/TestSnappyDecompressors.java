@@ -0,0 +1,371 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.iq80.snappy.Snappy;
+import org.junit.Test;
+
+/**
+ * Correctness tests for the {@link SnappyDecompressor}s.
+ */
+public class TestSnappyDecompressors {
+  private static final SnappyDecompressor[] DECOMPRESSORS = {
+      SnappyDecompressors.iq80(), SnappyDecompressors.java()};
+
+  @Test
+  public void testForName() {
+    assertSame(SnappyDecompressors.iq80(), SnappyDecompressors.forName("iq80"));
+    assertSame(SnappyDecompressors.java(), SnappyDecompressors.forName("java"));
+    assertEquals(null, SnappyDecompressors.forName("nonexistent"));
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    final Random random = new Random(42);
+    for (int size : new int[] {0, 1, 7, 8, 9, 63, 64, 65, 1000, 4096, 65536}) {
+      for (byte[] data : Arrays.asList(randomBytes(random, size), text(random, size),
+          runs(random, size))) {
+        final byte[] compressed = Snappy.compress(data);
+        for (SnappyDecompressor d : DECOMPRESSORS) {
+          final byte[] out = new byte[64 * 1024];
+          final int n = d.uncompress(compressed, 0, compressed.length, out, 0);
+          assertEquals(d.getName(), data.length, n);
+          assertArrayEquals(d.getName(), data, Arrays.copyOf(out, n));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testOffsets() throws Exception {
+    final byte[] data = text(new Random(1), 5000);
+    final byte[] compressed = Snappy.compress(data);
+    final byte[] in = new byte[compressed.length + 10];
+    System.arraycopy(compressed, 0, in, 3, compressed.length);
+
+    final byte[] out = new byte[data.length + 20];
+    Arrays.fill(out, (byte) 0x55);
+    final int n =
+        SnappyDecompressors.java().uncompress(in, 3, compressed.length, out, 11);
+    assertEquals(data.length, n);
+    assertArrayEquals(data, Arrays.copyOfRange(out, 11, 11 + n));
+
+    // nothing is written outside of the uncompressed region
+    for (int i = 0; i < 11; i++) {
+      assertEquals(0x55, out[i]);
+    }
+    for (int i = 11 + n; i < out.length; i++) {
+      assertEquals(0x55, out[i]);
+    }
+  }
+
+  @Test
+  public void testCorruptInput() throws Exception {
+    final Random random = new Random(7);
+    final byte[] data = text(random, 10000);
+    final byte[] compressed = Snappy.compress(data);
+    final byte[] out = new byte[64 * 1024];
+    final SnappyDecompressor d = SnappyDecompressors.java();
+
+    // truncated blocks
+    for (int len = 0; len < compressed.length; len += 17) {
+      try {
+        d.uncompress(compressed, 0, len, out, 0);
+        fail("Expected IOException for truncated block of length " + len);
+      } catch (IOException e) {
+        // expected
+      }
+    }
+
+    // output buffer too small
+    try {
+      d.uncompress(compressed, 0, compressed.length, new byte[data.length - 1], 0);
+      fail("Expected IOException for small buffer");
+    } catch (IOException e) {
+      // expected
+    }
+
+    // random garbage must never cause anything but an IOException
+    for (int i = 0; i < 1000; i++) {
+      final byte[] garbage = compressed.clone();
+      for (int j = 0; j < 5; j++) {
+        garbage[random.nextInt(garbage.length)] = (byte) random.nextInt();
+      }
+      try {
+        d.uncompress(garbage, 0, garbage.length, out, 0);
+      } catch (IOException e) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void testDocuments() throws Exception {
+    for (String doc : new String[] {"testKeynote2013.key", "testNumbers2013.numbers",
+        "testPages2013.pages"}) {
+      try (ZipInputStream zin = new ZipInputStream(getClass().getResourceAsStream(
+          "/test-documents/" + doc))) {
+        ZipEntry entry;
+        while ((entry = zin.getNextEntry()) != null) {
+          if (!entry.getName().endsWith(".iwa")) {
+            continue;
+          }
+          final byte[] iwa = readFully(zin);
+          final byte[] expected = unframe(iwa, SnappyDecompressors.iq80());
+          assertArrayEquals(entry.getName(), expected,
+              unframe(iwa, SnappyDecompressors.java()));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testPipelined() throws Exception {
+    final ExecutorService executor = Executors.newCachedThreadPool();
+    try {
+      // many chunks, so the pipeline has to apply backpressure
+      final Random random = new Random(11);
+      final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+      final ByteArrayOutputStream framed = new ByteArrayOutputStream();
+      for (int i = 0; i < 64; i++) {
+        final byte[] chunk = i % 3 == 0 ? runs(random, 65536) : text(random, 65536);
+        expected.write(chunk);
+        final byte[] compressed = i % 5 == 0 ? chunk : Snappy.compress(chunk);
+        framed.write(i % 5 == 0 ? 1 : 0);
+        framed.write(compressed.length);
+        framed.write(compressed.length >>> 8);
+        framed.write(compressed.length >>> 16);
+        framed.write(compressed);
+      }
+      final byte[] frames = framed.toByteArray();
+      final byte[] data = expected.toByteArray();
+      assertArrayEquals(data, unframe(frames, SnappyDecompressors.iq80()));
+      try (InputStream in = new PipelinedSnappyInputStream(
+          new ByteArrayInputStream(frames), executor, SnappyDecompressors.java())) {
+        assertArrayEquals(data, readFully(in));
+      }
+
+      // closing early stops the pipeline
+      for (int i = 0; i < 20; i++) {
+        final ByteArrayInputStream bin = new ByteArrayInputStream(frames);
+        try (InputStream in =
+            new PipelinedSnappyInputStream(bin, executor, SnappyDecompressors.java())) {
+          assertEquals(data[0] & 0xFF, in.read());
+        }
+        final int remaining = bin.available();
+        Thread.sleep(1);
+        assertEquals(remaining, bin.available());
+      }
+
+      // errors are reported to the reading thread
+      try (InputStream in = new PipelinedSnappyInputStream(new ByteArrayInputStream(
+          Arrays.copyOf(frames, frames.length - 100)), executor,
+          SnappyDecompressors.java())) {
+        readFully(in);
+        fail("Expected IOException");
+      } catch (IOException e) {
+        // expected
+      }
+
+      // a compressed chunk whose preamble claims 16 MB
+      final byte[] forged = new byte[] {0, 6, 0, 0, (byte) 0x80, (byte) 0x80,
+          (byte) 0x80, 0x08, 0, 0};
+      try {
+        ParallelSnappyDecoder.decode(ByteBuffer.wrap(forged), executor,
+            SnappyDecompressors.java(), ParseMonitor.NONE);
+        fail("Expected IOException");
+      } catch (IOException e) {
+        // expected, before allocating the output
+      }
+
+      for (String doc : new String[] {"testKeynote2013.key", "testNumbers2013.numbers",
+          "testPages2013.pages"}) {
+        try (ZipInputStream zin = new ZipInputStream(getClass().getResourceAsStream(
+            "/test-documents/" + doc))) {
+          ZipEntry entry;
+          while ((entry = zin.getNextEntry()) != null) {
+            if (!entry.getName().endsWith(".iwa")) {
+              continue;
+            }
+            final byte[] iwa = readFully(zin);
+            try (InputStream in = new PipelinedSnappyInputStream(
+                new ByteArrayInputStream(iwa), executor, SnappyDecompressors.java())) {
+              assertArrayEquals(entry.getName(), unframe(iwa, SnappyDecompressors.iq80()),
+                  readFully(in));
+            }
+          }
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testParallel() throws Exception {
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      final Random random = new Random(12);
+      final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+      final ByteArrayOutputStream framed = new ByteArrayOutputStream();
+      for (int i = 0; i < 80; i++) {
+        // chunks of varying sizes, so batches end at various offsets
+        final int size = i % 7 == 0 ? random.nextInt(100) : 65536 - random.nextInt(2000);
+        final byte[] chunk = i % 3 == 0 ? runs(random, size) : text(random, size);
+        expected.write(chunk);
+        final byte[] compressed = i % 5 == 0 ? chunk : Snappy.compress(chunk);
+        framed.write(i % 5 == 0 ? 1 : 0);
+        framed.write(compressed.length);
+        framed.write(compressed.length >>> 8);
+        framed.write(compressed.length >>> 16);
+        framed.write(compressed);
+        if (i % 11 == 0) {
+          // padding
+          framed.write(new byte[] {(byte) 0xfe, 3, 0, 0, 1, 2, 3});
+        }
+      }
+      final byte[] frames = framed.toByteArray();
+      final byte[] data = expected.toByteArray();
+      assertArrayEquals(data, unframe(frames, SnappyDecompressors.iq80()));
+
+      for (SnappyDecompressor d : DECOMPRESSORS) {
+        final ByteBuffer heap = ByteBuffer.wrap(frames);
+        assertArrayEquals(data,
+            ParallelSnappyDecoder.decode(heap, executor, d, ParseMonitor.NONE));
+        assertEquals(0, heap.position());
+
+        final ByteBuffer direct = ByteBuffer.allocateDirect(frames.length + 10);
+        direct.position(10);
+        direct.put(frames);
+        direct.position(10);
+        assertArrayEquals(data,
+            ParallelSnappyDecoder.decode(direct, executor, d, ParseMonitor.NONE));
+      }
+
+      try {
+        ParallelSnappyDecoder.decode(ByteBuffer.wrap(frames, 0, frames.length - 100),
+            executor, SnappyDecompressors.java(), ParseMonitor.NONE);
+        fail("Expected IOException");
+      } catch (IOException e) {
+        // expected
+      }
+
+      // a compressed chunk whose preamble claims 16 MB
+      final byte[] forged = new byte[] {0, 6, 0, 0, (byte) 0x80, (byte) 0x80,
+          (byte) 0x80, 0x08, 0, 0};
+      try {
+        ParallelSnappyDecoder.decode(ByteBuffer.wrap(forged), executor,
+            SnappyDecompressors.java(), ParseMonitor.NONE);
+        fail("Expected IOException");
+      } catch (IOException e) {
+        // expected, before allocating the output
+      }
+
+      for (String doc : new String[] {"testKeynote2013.key", "testNumbers2013.numbers",
+          "testPages2013.pages"}) {
+        try (ZipInputStream zin = new ZipInputStream(getClass().getResourceAsStream(
+            "/test-documents/" + doc))) {
+          ZipEntry entry;
+          while ((entry = zin.getNextEntry()) != null) {
+            if (!entry.getName().endsWith(".iwa")) {
+              continue;
+            }
+            final byte[] iwa = readFully(zin);
+            assertArrayEquals(entry.getName(), unframe(iwa, SnappyDecompressors.iq80()),
+                ParallelSnappyDecoder.decode(ByteBuffer.wrap(iwa), executor,
+                    SnappyDecompressors.iq80(), ParseMonitor.NONE));
+          }
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private static byte[] unframe(byte[] iwa, SnappyDecompressor d) throws IOException {
+    try (InputStream in = new SnappyNoCRCFramedInputStream(
+        new ByteArrayInputStream(iwa), true, d)) {
+      return readFully(in);
+    }
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] buf = new byte[8192];
+    int read;
+    while ((read = in.read(buf)) != -1) {
+      out.write(buf, 0, read);
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] randomBytes(Random random, int size) {
+    final byte[] data = new byte[size];
+    random.nextBytes(data);
+    return data;
+  }
+
+  /**
+   * Returns compressible data with back-references at various distances.
+   */
+  private static byte[] text(Random random, int size) {
+    final String[] words = {"the ", "quick ", "brown ", "fox ", "a", "jumps ", "over ",
+        "lazy ", "dog. ", "\n", "Keynote ", "Numbers ", "Pages ", "xy"};
+    final byte[] data = new byte[size];
+    int i = 0;
+    while (i < size) {
+      final String w = words[random.nextInt(words.length)];
+      for (int j = 0; j < w.length() && i < size; j++) {
+        data[i++] = (byte) w.charAt(j);
+      }
+    }
+    return data;
+  }
+
+  /**
+   * Returns data with long runs of single bytes and short repeated patterns.
+   */
+  private static byte[] runs(Random random, int size) {
+    final byte[] data = new byte[size];
+    int i = 0;
+    while (i < size) {
+      final int len = Math.min(size - i, 1 + random.nextInt(200));
+      final int period = 1 + random.nextInt(7);
+      for (int j = 0; j < len; j++) {
+        data[i + j] = (byte) (j < period ? random.nextInt() : data[i + j - period]);
+      }
+      i += len;
+    }
+    return data;
+  }
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import com.evernote.iwana.DocumentType;
+
+/**
+ * Measures the time to the first text block in a fresh JVM, for each document type,
+ * with and without {@link ExtractTextIWAParser#warmUp(DocumentType...)}.
+ * 
+ * Not run as part of the unit tests; run with the test classpath:
+ * 
+ * <pre>
+ * java -cp ... com.evernote.iwana.extract.StartupBenchmark [runs]
+ * </pre>
+ * 
+ * Each measurement is taken in a child JVM. "jvm" is the time from JVM start, "parse" the
+ * time from the start of the first parse (after warm-up, if any).
+ */
+public class StartupBenchmark {
+  private static final String[] DOCUMENTS = {"testKeynote2013.key",
+      "testNumbers2013.numbers", "testPages2013.pages"};
+
+  public static void main(String[] args) throws Exception {
+    if (args.length > 0 && args[0].equals("--child")) {
+      child(new File(args[1]), Boolean.parseBoolean(args[2]));
+      return;
+    }
+
+    final int runs = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+    System.out.println("document                 warm-up  jvm (ms)  parse (ms)");
+    for (String doc : DOCUMENTS) {
+      final File file = Paths.get(
+          StartupBenchmark.class.getResource("/test-documents/" + doc).toURI()).toFile();
+      for (boolean warmUp : new boolean[] {false, true}) {
+        final long[] jvm = new long[runs];
+        final long[] parse = new long[runs];
+        for (int i = 0; i < runs; i++) {
+          final String[] result = runChild(file, warmUp).split(" ");
+          jvm[i] = Long.parseLong(result[0]);
+          parse[i] = Long.parseLong(result[1]);
+        }
+        System.out.println(String.format("%-24s %-8s %8d  %10d", doc, warmUp,
+            median(jvm), median(parse)));
+      }
+    }
+  }
+
+  private static String runChild(File file, boolean warmUp) throws IOException,
+      InterruptedException {
+    final ProcessBuilder pb = new ProcessBuilder(
+        Paths.get(System.getProperty("java.home"), "bin", "java").toString(), "-cp",
+        System.getProperty("java.class.path"), "-Dlog4j.configuration=none",
+        StartupBenchmark.class.getName(), "--child", file.toString(),
+        String.valueOf(warmUp));
+    pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+    final Process p = pb.start();
+    String line;
+    try (BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream(),
+        StandardCharsets.UTF_8))) {
+      line = r.readLine();
+    }
+    if (p.waitFor() != 0 || line == null) {
+      throw new IOException("Child JVM failed: " + p.exitValue());
+    }
+    return line;
+  }
+
+  private static void child(File file, boolean warmUp) throws IOException {
+    if (warmUp) {
+      ExtractTextIWAParser.warmUp(DocumentType.fromDocumentName(file.getName()));
+    }
+
+    final long start = System.nanoTime();
+    final long[] firstText = new long[1];
+    new ExtractTextIWAParser().parse(file, new ExtractTextCallback() {
+      @Override
+      public void onTextBlock(String text, TextAttributes attrs) {
+        if (firstText[0] == 0) {
+          firstText[0] = System.currentTimeMillis();
+          System.out.println((firstText[0] - ManagementFactory.getRuntimeMXBean()
+              .getStartTime()) + " " + (System.nanoTime() - start) / 1000000);
+        }
+      }
+    });
+  }
+
+  private static long median(long[] values) {
+    final long[] sorted = values.clone();
+    Arrays.sort(sorted);
+    return sorted[sorted.length / 2];
+  }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.evernote.iwana.pb.TN.TNArchives.DocumentArchive;
+import com.evernote.iwana.pb.TN.TNArchives.SheetArchive;
+import com.evernote.iwana.pb.TSD.TSDArchives.DrawableArchive;
+import com.evernote.iwana.pb.TSD.TSDArchives.ShapeArchive;
+import com.evernote.iwana.pb.TSP.TSPMessages.Reference;
+import com.evernote.iwana.pb.TSWP.TSWPArchives.ObjectAttributeTable.ObjectAttribute;
+import com.evernote.iwana.pb.TSWP.TSWPArchives.ShapeInfoArchive;
+
+/**
+ * Tests emitting Pages and Numbers text while the document is still being decoded.
+ */
+public class TestEarlyEmission {
+  private final List<String> texts = new ArrayList<>();
+
+  private final ExtractTextCallback target = new ExtractTextCallback() {
+    @Override
+    public void onTextBlock(String text, TextAttributes attrs) {
+      texts.add(text);
+    }
+  };
+
+  @Test
+  public void testPagesWaitsForPlaceholderStyles() {
+    PagesContext context = new PagesContext("test.pages", target);
+    context.storeObject(1, Reference.newBuilder().setIdentifier(100).build());
+    context.setText(100, "Dear Name,", Arrays.asList(placeholder(5, 50)));
+
+    // the placeholder's style is not known yet
+    context.onEndParseIWAFile("Index/Document.iwa");
+    assertEquals(Arrays.asList(), texts);
+
+    context.addIgnorableStyle(50);
+    context.onEndParseIWAFile("Index/DocumentStylesheet.iwa");
+    assertEquals(Arrays.asList("Dear _____"), texts);
+  }
+
+  @Test
+  public void testPagesWithoutPlaceholders() {
+    PagesContext context = new PagesContext("test.pages", target);
+    context.storeObject(1, Reference.newBuilder().setIdentifier(100).build());
+    context.setText(100, "Body", null);
+
+    context.onEndParseIWAFile("Index/Document.iwa");
+    assertEquals(Arrays.asList("Body"), texts);
+  }
+
+  @Test
+  public void testNumbersSkipsDrawablesWithoutText() {
+    NumbersContext context = new NumbersContext("test.numbers", target);
+    context.storeObject(1, DocumentArchive.newBuilder()
+        .addSheets(Reference.newBuilder().setIdentifier(2)).build());
+    context.storeObject(2, SheetArchive.newBuilder().setName("Sheet")
+        .addDrawableInfos(Reference.newBuilder().setIdentifier(10))
+        .addDrawableInfos(Reference.newBuilder().setIdentifier(11))
+        .addDrawableInfos(Reference.newBuilder().setIdentifier(12)).build());
+    // an image, and a shape with text
+    context.storeObject(10, NumbersContext.NO_TEXT);
+    shape(context, 11, "Shape");
+
+    // the last drawable has not been decoded yet
+    context.onEndParseIWAFile("Index/Document.iwa");
+    assertEquals(Arrays.asList("Sheet", "Shape"), texts);
+
+    shape(context, 12, "Later");
+    context.onEndParseIWAFile("Index/CalculationEngine.iwa");
+    assertEquals(Arrays.asList("Sheet", "Shape", "Later"), texts);
+  }
+
+  private static ObjectAttribute placeholder(int characterIndex, long styleId) {
+    return ObjectAttribute.newBuilder().setCharacterIndex(characterIndex)
+        .setObject(Reference.newBuilder().setIdentifier(styleId)).build();
+  }
+
+  private static void shape(ContextBase context, long id, String text) {
+    ShapeInfoArchive m = ShapeInfoArchive.newBuilder()
+        .setSuper(ShapeArchive.newBuilder().setSuper(DrawableArchive.newBuilder()))
+        .setContainedStorage(Reference.newBuilder().setIdentifier(id + 100))
+        .buildPartial();
+    context.storeObject(id, new GeometryObject(m));
+    context.setText(id + 100, text, null);
+  }
+}
@@ -15,15 +15,28 @@
  */
 package com.evernote.iwana.extract;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.junit.Ignore;
 import org.junit.Test;
 
+import com.evernote.iwana.extract.TextAttributes.Scope;
+
 /**
  * Initial basic tests for text extraction.
  */
@@ -46,6 +59,11 @@ public class TestExtractTextIWAParser {
     //DataList-19 column "Description"
     assertContains("Night on the town", contents);
 
+    //cells of the same row
+    assertContains("Debit Card\tNight on the town", contents);
+
+    //sheet name...exists in the Document.iwa file
+    assertContains("Second sheet", contents);
   }
 
   @Test
@@ -55,10 +73,6 @@ public class TestExtractTextIWAParser {
 
     //DataList-7, column "Category" in table
     assertContains("Deposit", contents);//home food gas
-
-    //sheet name...exists in the Document.iwa file
-    assertContains("Second sheet", contents);
-
   }
 
   @Test
@@ -69,6 +83,140 @@ public class TestExtractTextIWAParser {
     assertContains("A sample presentation", contents);
     assertContains("Apache Tika project", contents);
     assertContains("Some random text for the sake of testability", contents);
+    // table cells
+    assertContains("Cell one\tCell two\tCell three", contents);
+    assertContains("5/5/1985", contents);
+  }
+
+  @Test
+  public void testKeynoteTemplateCache() throws Exception {
+    TemplateCache cache = new TemplateCache(100);
+    String first = getText("testKeynote2013.key", cache);
+    assertTrue(cache.size() > 0);
+    String second = getText("testKeynote2013.key", cache);
+
+    assertEquals(first, second);
+    assertContains("A sample presentation", second);
+    assertContains("nice note", second);
+  }
+
+  @Test
+  public void testDeduplicateStrings() throws Exception {
+    for (String doc : new String[] {"testKeynote2013.key", "testNumbers2013.numbers",
+        "testPages2013.pages"}) {
+      TemplateCache cache = new TemplateCache(100);
+      String expected = getText(doc, cache);
+
+      ExtractTextIWAParser parser = new ExtractTextIWAParser();
+      parser.setTemplateCache(cache);
+      parser.setDeduplicateStrings(true);
+      final Map<String, Integer> counts = new HashMap<>();
+      final StringBuilder sb = new StringBuilder();
+      parser.parse(getTestFile(doc), new ExtractTextCallback() {
+        @Override
+        public void onTextBlock(String text, TextAttributes attrs) {
+          fail("Not called if the three-argument variant is overridden");
+        }
+
+        @Override
+        public void onTextBlock(String text, TextAttributes attrs, int repeatCount) {
+          Integer seen = counts.get(text);
+          assertEquals(text, seen == null ? 0 : seen.intValue(), repeatCount);
+          counts.put(text, repeatCount + 1);
+          sb.append(text);
+          sb.append("\n");
+        }
+      });
+      assertEquals(expected, sb.toString());
+      if (doc.endsWith(".key")) {
+        // each master slide has its own placeholder text
+        assertTrue(counts.get("Title Text") > 1);
+      }
+    }
+  }
+
+  @Test
+  public void testRequestStop() throws Exception {
+    for (String doc : new String[] {"testKeynote2013.key", "testNumbers2013.numbers",
+        "testPages2013.pages"}) {
+      final List<String> blocks = new ArrayList<>();
+      new ExtractTextIWAParser().parse(getTestFile(doc), new ExtractTextCallback() {
+        @Override
+        public void onTextBlock(String text, TextAttributes attrs) {
+          blocks.add(text);
+        }
+      });
+      assertTrue(blocks.size() > 1);
+      final String first = blocks.get(0);
+
+      final StringBuilder sb = new StringBuilder();
+      final int[] ended = new int[1];
+      ExtractTextCallback target = new ExtractTextCallback() {
+        @Override
+        public void onTextBlock(String text, TextAttributes attrs) {
+          sb.append(text);
+          sb.append("\n");
+          requestStop();
+        }
+
+        @Override
+        public void onEndDocument() {
+          ended[0]++;
+        }
+      };
+      new ExtractTextIWAParser().parse(getTestFile(doc), target);
+      assertEquals(first + "\n", sb.toString());
+      assertEquals(1, ended[0]);
+
+      // the request only applies to the document being parsed
+      sb.setLength(0);
+      new ExtractTextIWAParser().parse(getTestFile(doc), target);
+      assertEquals(first + "\n", sb.toString());
+    }
+  }
+
+  @Test
+  public void testRequestStopBeforeParsing() throws Exception {
+    final int[] blocks = new int[1];
+    ExtractTextCallback target = new ExtractTextCallback() {
+      @Override
+      public void onBeginDocument() {
+        requestStop();
+      }
+
+      @Override
+      public void onTextBlock(String text, TextAttributes attrs) {
+        blocks[0]++;
+      }
+    };
+    new ExtractTextIWAParser().parse(getTestFile("testPages2013.pages"), target);
+    assertEquals(0, blocks[0]);
+    assertTrue(target.isStopRequested());
+  }
+
+  @Test
+  public void testScopes() throws Exception {
+    for (String doc : new String[] {"testKeynote2013.key", "testNumbers2013.numbers",
+        "testPages2013.pages"}) {
+      final Map<Scope, StringBuilder> all = getTextByScope(doc, null);
+      for (Scope scope : Scope.values()) {
+        Map<Scope, StringBuilder> only = getTextByScope(doc, EnumSet.of(scope));
+        assertTrue(doc + " " + scope, only.keySet().size() <= 1);
+        assertEquals(doc + " " + scope, String.valueOf(all.get(scope)),
+            String.valueOf(only.get(scope)));
+      }
+      assertTrue(getTextByScope(doc, EnumSet.noneOf(Scope.class)).isEmpty());
+    }
+
+    Map<Scope, StringBuilder> notes =
+        getTextByScope("testKeynote2013.key", EnumSet.of(Scope.NOTES));
+    assertContains("nice note", notes.get(Scope.NOTES).toString());
+
+    // the Pages body is document text
+    Map<Scope, StringBuilder> pages =
+        getTextByScope("testPages2013.pages", EnumSet.of(Scope.DOCUMENT));
+    assertContains("Some plain text to parse", pages.get(Scope.DOCUMENT).toString());
+    assertContains("A second page", pages.get(Scope.DOCUMENT).toString());
   }
 
   @Test
@@ -77,10 +225,35 @@ public class TestExtractTextIWAParser {
     assertContains("A text box with text", contents);
     assertContains("Some plain text to parse", contents);
     assertContains("Sample pages document", contents);
+    // table cells
+    assertContains("Column one\tColumn two\tColumn three", contents);
+    assertContains("Cell seven\tCell eight\tCell nine", contents);
     assertContains("A second page...", contents);
 
   }
 
+  @Test
+  public void testMaxBufferedIndexBytes() throws Exception {
+    for (String doc : new String[] {"testKeynote2013.key", "testNumbers2013.numbers",
+        "testPages2013.pages"}) {
+      // the document type is taken from the file name instead
+      ExtractTextIWAParser parser = new ExtractTextIWAParser();
+      parser.setMaxBufferedIndexBytes(0);
+      SimpleExtractTextCallback target = new SimpleExtractTextCallback();
+      parser.parse(getTestFile(doc), target);
+      assertEquals(doc, getText(doc), target.toString());
+    }
+
+    // without a name, all text is unreferenced text
+    ExtractTextIWAParser parser = new ExtractTextIWAParser();
+    parser.setMaxBufferedIndexBytes(1024);
+    SimpleExtractTextCallback target = new SimpleExtractTextCallback();
+    try (InputStream in = new FileInputStream(getTestFile("testPages2013.pages"))) {
+      parser.parse(in, target);
+    }
+    assertContains("Some plain text to parse", target.toString());
+  }
+
   private void assertContains(String needle, String haystack) {
     int i = haystack.indexOf(needle);
     if (i < 0) {
@@ -89,13 +262,39 @@ public class TestExtractTextIWAParser {
   }
 
   private String getText(String testFileName) throws Exception {
+    return getText(testFileName, null);
+  }
+
+  private String getText(String testFileName, TemplateCache cache) throws Exception {
     ExtractTextIWAParser parser = new ExtractTextIWAParser();
+    parser.setTemplateCache(cache);
     SimpleExtractTextCallback target = new SimpleExtractTextCallback();
     File f = getTestFile(testFileName);
     parser.parse(f, target);
     return target.toString();
   }
 
+  private Map<Scope, StringBuilder> getTextByScope(String testFileName, Set<Scope> scopes)
+      throws Exception {
+    ExtractTextIWAParser parser = new ExtractTextIWAParser();
+    parser.setTemplateCache(new TemplateCache(100));
+    parser.setScopes(scopes);
+    final Map<Scope, StringBuilder> text = new EnumMap<>(Scope.class);
+    parser.parse(getTestFile(testFileName), new ExtractTextCallback() {
+      @Override
+      public void onTextBlock(String t, TextAttributes attrs) {
+        StringBuilder sb = text.get(attrs.getScope());
+        if (sb == null) {
+          sb = new StringBuilder();
+          text.put(attrs.getScope(), sb);
+        }
+        sb.append(t);
+        sb.append("\n");
+      }
+    });
+    return text;
+  }
+
   private File getTestFile(String testFileName) throws URISyntaxException {
     return Paths.get(
         this.getClass().getResource("/test-documents/" + testFileName).toURI()).toFile();
@@ -0,0 +1,264 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link ExtractTextServer}.
+ */
+public class TestExtractTextServer {
+  private static final String OK = "{\"status\":\"ok\"}\n";
+
+  @Test
+  public void testPipelinedRequests() throws Exception {
+    final File keynote = getTestFile("testKeynote2013.key");
+    final File numbers = getTestFile("testNumbers2013.numbers");
+    final File pages = getTestFile("testPages2013.pages");
+
+    try (ExtractTextServer server =
+        new ExtractTextServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+            2, 2, 1024 * 1024)) {
+      server.start();
+
+      final byte[] data = Files.readAllBytes(pages.toPath());
+      final ByteArrayOutputStream request = new ByteArrayOutputStream();
+      request.write(("FILE " + keynote + "\nFILE " + numbers + "\nDATA " + data.length
+          + "\n").getBytes(StandardCharsets.UTF_8));
+      request.write(data);
+      request.write(("HELLO\nFILE " + new File(keynote.getParentFile(), "missing.key")
+          + "\nFILE " + keynote + "\r\nQUIT\n").getBytes(StandardCharsets.UTF_8));
+
+      final String response;
+      try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+        // all requests at once; more than can be in flight
+        final OutputStream out = socket.getOutputStream();
+        out.write(request.toByteArray());
+        out.flush();
+        response = readAll(socket.getInputStream());
+      }
+
+      final List<String> responses = split(response);
+      assertEquals(6, responses.size());
+      assertEquals(extract(keynote, true) + OK, responses.get(0));
+      assertEquals(extract(numbers, true) + OK, responses.get(1));
+      assertEquals(extract(pages, false) + OK, responses.get(2));
+      assertTrue(responses.get(3),
+          responses.get(3).startsWith("{\"status\":\"error\",\"message\":\"Unknown"));
+      assertTrue(responses.get(4),
+          responses.get(4).startsWith("{\"status\":\"error\",\"message\":\"java.io."));
+      assertEquals(responses.get(0), responses.get(5));
+    }
+  }
+
+  @Test
+  public void testDataBudget() throws Exception {
+    final File pages = getTestFile("testPages2013.pages");
+    final byte[] data = Files.readAllBytes(pages.toPath());
+
+    // room for a single document; the others must wait rather than fail
+    try (ExtractTextServer server =
+        new ExtractTextServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+            2, 4, data.length, data.length)) {
+      server.start();
+
+      final ByteArrayOutputStream request = new ByteArrayOutputStream();
+      for (int i = 0; i < 3; i++) {
+        request.write(("DATA " + data.length + "\n").getBytes(StandardCharsets.UTF_8));
+        request.write(data);
+      }
+      request.write("QUIT\n".getBytes(StandardCharsets.UTF_8));
+
+      final String response;
+      try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+        final OutputStream out = socket.getOutputStream();
+        out.write(request.toByteArray());
+        out.flush();
+        response = readAll(socket.getInputStream());
+      }
+
+      final List<String> responses = split(response);
+      assertEquals(3, responses.size());
+      for (String r : responses) {
+        assertEquals(extract(pages, false) + OK, r);
+      }
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testDataBudgetTooSmall() throws Exception {
+    new ExtractTextServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+        1, 1, 1024, 1023).close();
+  }
+
+  @Test
+  public void testDroppedConnection() throws Exception {
+    final File pages = getTestFile("testPages2013.pages");
+    final byte[] data = Files.readAllBytes(pages.toPath());
+
+    try (ExtractTextServer server =
+        new ExtractTextServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+            1, 2, data.length, data.length)) {
+      server.start();
+
+      // the connection is dropped in the middle of a document
+      try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+        final OutputStream out = socket.getOutputStream();
+        out.write(("DATA " + data.length + "\n").getBytes(StandardCharsets.UTF_8));
+        out.write(data, 0, data.length / 2);
+        out.flush();
+        // wait for the connection's reader and writer
+        while (server.getActiveConnectionThreads() < 3) {
+          Thread.sleep(10);
+        }
+      }
+
+      // only the thread that accepts connections is left
+      final long deadline = System.currentTimeMillis() + 10000;
+      while (server.getActiveConnectionThreads() > 1
+          && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(1, server.getActiveConnectionThreads());
+
+      // the budget of the unfinished document has been released
+      final String response;
+      try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+        final OutputStream out = socket.getOutputStream();
+        out.write(("DATA " + data.length + "\n").getBytes(StandardCharsets.UTF_8));
+        out.write(data);
+        out.write("QUIT\n".getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        response = readAll(socket.getInputStream());
+      }
+      assertEquals(extract(pages, false) + OK, response);
+    }
+  }
+
+  @Test
+  public void testRequestLineTooLong() throws Exception {
+    try (ExtractTextServer server =
+        new ExtractTextServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+            1, 2, 1024)) {
+      server.start();
+
+      final byte[] line = new byte[64 * 1024 + 1];
+      Arrays.fill(line, (byte) 'x');
+      final String response;
+      try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+        final OutputStream out = socket.getOutputStream();
+        out.write(line);
+        out.flush();
+        response = readAll(socket.getInputStream());
+      }
+      assertEquals("{\"status\":\"error\",\"message\":\"Request line too long\"}\n",
+          response);
+    }
+  }
+
+  @Test
+  public void testResponseStreaming() throws Exception {
+    final ExtractTextServer.Response response = new ExtractTextServer.Response();
+    response.write('a');
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final Thread writer = new Thread() {
+      @Override
+      public void run() {
+        try {
+          response.sendTo(out);
+        } catch (IOException | InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    writer.start();
+    while (writer.getState() != Thread.State.WAITING) {
+      Thread.sleep(1);
+    }
+    // once it is the response's turn, writes go straight through
+    response.write("bc".getBytes(StandardCharsets.UTF_8), 0, 2);
+    synchronized (response) {
+      assertEquals("abc", new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+    assertTrue(writer.isAlive());
+
+    response.close();
+    writer.join(10000);
+    assertFalse(writer.isAlive());
+  }
+
+  /**
+   * Splits the response stream after each status line.
+   */
+  private static List<String> split(String response) {
+    final List<String> responses = new ArrayList<>();
+    int start = 0;
+    int i;
+    while ((i = response.indexOf("{\"status\":", start)) != -1) {
+      final int end = response.indexOf('\n', i) + 1;
+      responses.add(response.substring(start, end));
+      start = end;
+    }
+    assertEquals("", response.substring(start));
+    return responses;
+  }
+
+  private static String extract(File file, boolean withName) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (JsonLinesSink sink = new JsonLinesSink(out)) {
+      if (withName) {
+        sink.setDocumentName(file.getName());
+      }
+      new ExtractTextIWAParser().parse(file, sink);
+    }
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  private static String readAll(InputStream in) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] buf = new byte[8192];
+    int r;
+    while ((r = in.read(buf)) != -1) {
+      out.write(buf, 0, r);
+    }
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  private File getTestFile(String testFileName) throws Exception {
+    return Paths.get(getClass().getResource("/test-documents/" + testFileName).toURI())
+        .toFile();
+  }
+}
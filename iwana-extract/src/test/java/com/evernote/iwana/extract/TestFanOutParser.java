@@ -0,0 +1,174 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.EnumSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import com.evernote.iwana.ArchiveHeader;
+import com.evernote.iwana.FanOutCallback;
+import com.evernote.iwana.FanOutParser;
+import com.evernote.iwana.HeaderMessageAction;
+import com.evernote.iwana.IwanaContext;
+import com.evernote.iwana.IwanaParser;
+import com.evernote.iwana.IwanaParserCallback;
+import com.evernote.iwana.MessageActions;
+import com.evernote.iwana.extract.TextAttributes.Scope;
+import com.evernote.iwana.pb.TSWP.TSWPArchives.StorageArchive;
+
+/**
+ * Tests feeding several consumers from a single pass with a {@link FanOutParser}.
+ */
+public class TestFanOutParser {
+  private static final String[] DOCUMENTS = {"testKeynote2013.key",
+      "testNumbers2013.numbers", "testPages2013.pages"};
+
+  @Test
+  public void testConsumersSeeTheSameAsSeparateParses() throws Exception {
+    final ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      for (boolean decodeAhead : new boolean[] {false, true}) {
+        final FanOutParser fanOut = new FanOutParser();
+        if (decodeAhead) {
+          fanOut.setDecodeExecutor(executor);
+        }
+        final ExtractTextIWAParser documentOnly = new ExtractTextIWAParser();
+        documentOnly.setScopes(EnumSet.of(Scope.DOCUMENT));
+        final ExtractTextIWAParser all = new ExtractTextIWAParser();
+        final StorageCounter counter = new StorageCounter();
+
+        for (String doc : DOCUMENTS) {
+          final File file = getTestFile(doc);
+          final TextCollector documentText = new TextCollector();
+          final TextCollector allText = new TextCollector();
+          final StorageCount count = new StorageCount();
+          fanOut.parse(file, new FanOutCallback().add(documentOnly, documentText)
+              .add(all, allText).add(counter, count));
+
+          assertEquals(doc, getText(documentOnly, file), documentText.toString());
+          assertEquals(doc, getText(all, file), allText.toString());
+          final StorageCount expected = new StorageCount();
+          counter.parse(file, expected);
+          assertTrue(doc, expected.storages > 0);
+          assertEquals(doc, expected.storages, count.storages);
+          assertEquals(doc, 1, allText.begun);
+          assertEquals(doc, 1, allText.ended);
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testStopOneConsumer() throws Exception {
+    final File file = getTestFile("testKeynote2013.key");
+    final ExtractTextIWAParser parser = new ExtractTextIWAParser();
+    final TextCollector stopping = new TextCollector() {
+      @Override
+      public void onTextBlock(String text, TextAttributes attrs) {
+        super.onTextBlock(text, attrs);
+        requestStop();
+      }
+    };
+    final TextCollector other = new TextCollector();
+    new FanOutParser().parse(file, new FanOutCallback().add(parser, stopping).add(parser,
+        other));
+
+    assertEquals(getText(parser, file), other.toString());
+    assertEquals(1, stopping.toString().split("\n").length);
+  }
+
+  private String getText(ExtractTextIWAParser parser, File file) throws IOException {
+    final TextCollector target = new TextCollector();
+    parser.parse(file, target);
+    return target.toString();
+  }
+
+  private File getTestFile(String testFileName) throws Exception {
+    return Paths.get(
+        getClass().getResource("/test-documents/" + testFileName).toURI()).toFile();
+  }
+
+  private static class TextCollector extends ExtractTextCallback {
+    private final StringBuilder sb = new StringBuilder();
+    int begun;
+    int ended;
+
+    @Override
+    public void onBeginDocument() {
+      begun++;
+    }
+
+    @Override
+    public void onTextBlock(String text, TextAttributes attrs) {
+      sb.append(attrs.getScope()).append(": ").append(text).append('\n');
+    }
+
+    @Override
+    public void onEndDocument() {
+      ended++;
+    }
+
+    @Override
+    public String toString() {
+      return sb.toString();
+    }
+  }
+
+  private static final class StorageCount extends IwanaParserCallback {
+    int storages;
+  }
+
+  /**
+   * A consumer with its own registry, using the generated parser for storages.
+   */
+  private static final class StorageCounter extends IwanaParser<StorageCount> {
+    private static final MessageActions ACTIONS = new MessageActions();
+    static {
+      ACTIONS.setAction(2001,
+          new HeaderMessageAction<StorageArchive, IwanaContext<StorageCount>>(
+              StorageArchive.class) {
+            @Override
+            protected void onMessage(StorageArchive message, ArchiveHeader header,
+                int index, IwanaContext<StorageCount> context) {
+              context.getTarget().storages++;
+            }
+          });
+      ACTIONS.freeze();
+    }
+
+    @Override
+    protected IwanaContext<StorageCount> newContext(String documentName,
+        StorageCount target) {
+      return new IwanaContext<StorageCount>(documentName, target) {
+        @Override
+        protected MessageActions getMessageTypeActions() {
+          return ACTIONS;
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.evernote.iwana.pb.TSD.TSDArchives.DrawableArchive;
+import com.evernote.iwana.pb.TSD.TSDArchives.ShapeArchive;
+import com.evernote.iwana.pb.TSP.TSPMessages.Reference;
+import com.evernote.iwana.pb.TSWP.TSWPArchives.ShapeInfoArchive;
+
+/**
+ * Tests resolving nested {@link GroupObject}s to their {@link GeometryObject}s.
+ */
+public class TestGroupFlattening {
+
+  @Test
+  public void testNestedGroups() {
+    ContextBase context = newContext();
+    GeometryObject a = shape(context, 1);
+    GeometryObject b = shape(context, 2);
+    GeometryObject c = shape(context, 3);
+    GroupObject group = new GroupObject(new long[] {2, 11});
+    context.storeObject(10, group);
+    context.storeObject(11, new GroupObject(new long[] {3, 99}));
+
+    assertEquals(Arrays.asList(a, b, c),
+        context.resolve(new long[] {1, 10}, GeometryObject.class));
+    // memoized
+    List<GeometryObject> first = context.resolve(new long[] {10}, GeometryObject.class);
+    assertEquals(Arrays.asList(b, c), first);
+    assertEquals(first, context.resolve(new long[] {10}, GeometryObject.class));
+    // groups are only expanded when resolving geometry
+    assertEquals(Arrays.<Object> asList(a, group),
+        context.resolve(new long[] {1, 10}, Object.class));
+  }
+
+  @Test
+  public void testCircularGroups() {
+    ContextBase context = newContext();
+    GeometryObject a = shape(context, 1);
+    context.storeObject(10, new GroupObject(new long[] {11, 1}));
+    context.storeObject(11, new GroupObject(new long[] {10}));
+
+    assertEquals(Arrays.asList(a), context.resolve(new long[] {10}, GeometryObject.class));
+  }
+
+  @Test
+  public void testCircularGroupsNotMemoizedPartially() {
+    ContextBase context = newContext();
+    GeometryObject a = shape(context, 1);
+    GeometryObject b = shape(context, 2);
+    context.storeObject(10, new GroupObject(new long[] {11, 1}));
+    context.storeObject(11, new GroupObject(new long[] {10, 2}));
+
+    assertEquals(Arrays.asList(b, a),
+        context.resolve(new long[] {10}, GeometryObject.class));
+    // the walk from 10 cut 11 short, which must not be reused
+    assertEquals(Arrays.asList(a, b),
+        context.resolve(new long[] {11}, GeometryObject.class));
+    assertEquals(Arrays.asList(b, a),
+        context.resolve(new long[] {10}, GeometryObject.class));
+  }
+
+  @Test
+  public void testDeeplyNestedGroups() {
+    ContextBase context = newContext();
+    GeometryObject a = shape(context, 1);
+    final int depth = 100000;
+    long child = 1;
+    for (int i = 0; i < depth; i++) {
+      context.storeObject(1000 + i, new GroupObject(new long[] {child}));
+      child = 1000 + i;
+    }
+
+    List<GeometryObject> resolved =
+        context.resolve(new long[] {child}, GeometryObject.class);
+    assertEquals(1, resolved.size());
+    assertSame(a, resolved.get(0));
+  }
+
+  private static ContextBase newContext() {
+    return new ContextBase("test.key", new ExtractTextCallback() {
+      @Override
+      public void onTextBlock(String text, TextAttributes attrs) {
+      }
+    });
+  }
+
+  private static GeometryObject shape(ContextBase context, long id) {
+    ShapeInfoArchive m = ShapeInfoArchive.newBuilder()
+        .setSuper(ShapeArchive.newBuilder().setSuper(DrawableArchive.newBuilder()))
+        .setContainedStorage(Reference.newBuilder().setIdentifier(id + 100))
+        .buildPartial();
+    GeometryObject go = new GeometryObject(m);
+    context.storeObject(id, go);
+    return go;
+  }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Locale;
+
+import org.junit.Test;
+
+import com.evernote.iwana.extract.TextAttributes.Scope;
+
+/**
+ * Tests for {@link IndexingCallback} and {@link DocumentIndex}.
+ */
+public class TestIndexingCallback {
+
+  @Test
+  public void testTokenize() {
+    final IndexingCallback cb = new IndexingCallback();
+    cb.onBeginDocument();
+    cb.onTextBlock("\u00dcber iWork, 42 apples!", TextAttributes.DEFAULT_DOCUMENT);
+    cb.onTextBlock("A nice note...", TextAttributes.DEFAULT_NOTES);
+    cb.onTextBlock("(42)", TextAttributes.DEFAULT_DOCUMENT);
+    cb.onEndDocument();
+
+    final DocumentIndex index = cb.getDocumentIndex();
+    assertEquals(Arrays.asList(Scope.DOCUMENT, Scope.NOTES), index.getScopes());
+    assertEquals(Arrays.asList("42", "apples", "iwork", "\u00fcber"),
+        index.getTerms(Scope.DOCUMENT));
+    assertEquals(5, index.getTokenCount(Scope.DOCUMENT));
+    assertArrayEquals(new int[] {2, 4}, index.getPositions(Scope.DOCUMENT, "42"));
+    assertArrayEquals(new int[0], index.getPositions(Scope.DOCUMENT, "note"));
+    assertArrayEquals(new int[] {2}, index.getPositions(Scope.NOTES, "note"));
+    assertEquals(Collections.emptyList(), index.getTerms(Scope.MASTER));
+
+    cb.onBeginDocument();
+    assertEquals(Collections.emptyList(), cb.getDocumentIndex().getScopes());
+  }
+
+  @Test
+  public void testDocument() throws Exception {
+    final StringBuilder text = new StringBuilder();
+    final IndexingCallback cb = new IndexingCallback(new ExtractTextCallback() {
+      @Override
+      public void onTextBlock(String t, TextAttributes attrs) {
+        text.append(t);
+      }
+    }, Locale.ROOT);
+    new ExtractTextIWAParser().parse(
+        Paths.get(getClass().getResource("/test-documents/testKeynote2013.key").toURI())
+            .toFile(), cb);
+
+    assertTrue(text.toString().contains("A sample presentation"));
+    final DocumentIndex index = cb.getDocumentIndex();
+    assertArrayEquals(new int[] {1}, index.getPositions(Scope.DOCUMENT, "sample"));
+    assertArrayEquals(new int[] {2}, index.getPositions(Scope.DOCUMENT, "presentation"));
+    assertEquals(1, index.getPositions(Scope.NOTES, "note").length);
+
+    assertRoundTrip(index);
+  }
+
+  private static void assertRoundTrip(DocumentIndex index) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    index.writeTo(out);
+    final DocumentIndex copy = DocumentIndex.readFrom(new ByteArrayInputStream(
+        out.toByteArray()));
+
+    final ByteArrayOutputStream out2 = new ByteArrayOutputStream();
+    copy.writeTo(out2);
+    assertArrayEquals(out.toByteArray(), out2.toByteArray());
+    for (Scope scope : index.getScopes()) {
+      assertEquals(index.getTokenCount(scope), copy.getTokenCount(scope));
+      for (String term : index.getTerms(scope)) {
+        assertArrayEquals(index.getPositions(scope, term), copy.getPositions(scope, term));
+      }
+    }
+  }
+}
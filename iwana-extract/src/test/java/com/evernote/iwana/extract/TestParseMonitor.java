@@ -0,0 +1,222 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.evernote.iwana.ParseMonitor;
+
+/**
+ * Tests the events reported to a {@link ParseMonitor}.
+ */
+public class TestParseMonitor {
+
+  @Test
+  public void testEvents() throws Exception {
+    final RecordingMonitor monitor = new RecordingMonitor();
+    final ExtractTextIWAParser parser = new ExtractTextIWAParser();
+    parser.setParseMonitor(monitor);
+    parser.parse(getTestFile("testPages2013.pages"), new ExtractTextCallback() {
+      @Override
+      public void onTextBlock(String text, TextAttributes attrs) {
+      }
+    });
+
+    assertEquals(1, monitor.count("beginDocument testPages2013.pages"));
+    assertEquals(1, monitor.count("endDocument testPages2013.pages "
+        + PagesContext.class.getName()));
+    assertEquals(1, monitor.count("beginAssembly testPages2013.pages "
+        + PagesContext.class.getName()));
+    assertEquals(1, monitor.count("endAssembly"));
+
+    final int files = monitor.count("beginIWAFile testPages2013.pages Index/");
+    assertTrue(files > 0);
+    assertEquals(files, monitor.count("endIWAFile"));
+    assertEquals(files, monitor.documentFiles);
+    assertEquals(monitor.fileMessages, monitor.documentMessages);
+    assertEquals(monitor.fileBytes, monitor.documentBytes);
+    assertTrue(monitor.documentMessages > 0);
+    assertTrue(monitor.documentBytes > 0);
+
+    assertTrue(monitor.count("beginChunk") > 0);
+    assertEquals(monitor.count("beginChunk"), monitor.count("endChunk"));
+    assertTrue(monitor.uncompressedBytes > 0);
+
+    // every end event receives the event object returned by its begin event
+    assertTrue(monitor.unmatched.isEmpty());
+  }
+
+  @Test
+  public void testStreamDocumentName() throws Exception {
+    final RecordingMonitor monitor = new RecordingMonitor();
+    final ExtractTextIWAParser parser = new ExtractTextIWAParser();
+    parser.setParseMonitor(monitor);
+    try (InputStream in = new FileInputStream(getTestFile("testNumbers2013.numbers"))) {
+      parser.parse(in, new ExtractTextCallback() {
+        @Override
+        public void onTextBlock(String text, TextAttributes attrs) {
+        }
+      });
+    }
+
+    // the name is only known once the index has been found
+    assertEquals(1, monitor.count("beginDocument null"));
+    assertEquals(1, monitor.count("endDocument yoo " + NumbersContext.class.getName()));
+    assertTrue(monitor.unmatched.isEmpty());
+  }
+
+  @Test
+  public void testStopSavesDecoding() throws Exception {
+    for (String doc : new String[] {"testNumbers2013.numbers", "testPages2013.pages"}) {
+      final RecordingMonitor all = new RecordingMonitor();
+      ExtractTextIWAParser parser = new ExtractTextIWAParser();
+      parser.setParseMonitor(all);
+      parser.parse(getTestFile(doc), new ExtractTextCallback() {
+        @Override
+        public void onTextBlock(String text, TextAttributes attrs) {
+        }
+      });
+
+      // text is emitted while the document is being decoded, so stopping at the first
+      // block skips the files that are still to come
+      final RecordingMonitor stopped = new RecordingMonitor();
+      parser = new ExtractTextIWAParser();
+      parser.setParseMonitor(stopped);
+      parser.parse(getTestFile(doc), new ExtractTextCallback() {
+        @Override
+        public void onTextBlock(String text, TextAttributes attrs) {
+          requestStop();
+        }
+      });
+
+      assertTrue(doc, stopped.documentMessages > 0);
+      assertTrue(doc, stopped.documentMessages < all.documentMessages);
+      assertTrue(doc, stopped.documentFiles < all.documentFiles);
+      assertTrue(doc, stopped.unmatched.isEmpty());
+    }
+  }
+
+  @Test
+  public void testDefault() {
+    assertEquals(ParseMonitor.NONE, ParseMonitor.getDefault());
+    assertNull(ParseMonitor.NONE.beginChunk());
+
+    final ExtractTextIWAParser parser = new ExtractTextIWAParser();
+    assertEquals(ParseMonitor.getDefault(), parser.getParseMonitor());
+    parser.setParseMonitor(null);
+    assertEquals(ParseMonitor.NONE, parser.getParseMonitor());
+  }
+
+  private File getTestFile(String testFileName) throws Exception {
+    return Paths.get(getClass().getResource("/test-documents/" + testFileName).toURI())
+        .toFile();
+  }
+
+  private static final class RecordingMonitor extends ParseMonitor {
+    final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+    final List<Object> unmatched = Collections.synchronizedList(new ArrayList<Object>());
+    int documentFiles;
+    long documentMessages;
+    long documentBytes;
+    long fileMessages;
+    long fileBytes;
+    long uncompressedBytes;
+
+    int count(String prefix) {
+      int n = 0;
+      synchronized (events) {
+        for (String e : events) {
+          if (e.startsWith(prefix)) {
+            n++;
+          }
+        }
+      }
+      return n;
+    }
+
+    private Object begin(String event) {
+      events.add(event);
+      final Object token = new Object();
+      unmatched.add(token);
+      return token;
+    }
+
+    private void end(String event, Object token) {
+      events.add(event);
+      assertTrue(unmatched.remove(token));
+    }
+
+    @Override
+    public Object beginDocument(String documentName) {
+      return begin("beginDocument " + documentName);
+    }
+
+    @Override
+    public void endDocument(Object event, String documentName, String contextClass,
+        int iwaFiles, long messages, long bytes) {
+      end("endDocument " + documentName + " " + contextClass, event);
+      documentFiles = iwaFiles;
+      documentMessages = messages;
+      documentBytes = bytes;
+    }
+
+    @Override
+    public Object beginIWAFile(String documentName, String fileName) {
+      return begin("beginIWAFile " + documentName + " " + fileName);
+    }
+
+    @Override
+    public synchronized void endIWAFile(Object event, long bytes, int messages) {
+      end("endIWAFile", event);
+      fileMessages += messages;
+      fileBytes += bytes;
+    }
+
+    @Override
+    public Object beginChunk() {
+      return begin("beginChunk");
+    }
+
+    @Override
+    public synchronized void endChunk(Object event, int compressedBytes,
+        int uncompressedBytes) {
+      end("endChunk", event);
+      this.uncompressedBytes += uncompressedBytes;
+    }
+
+    @Override
+    public Object beginAssembly(String documentName, String contextClass) {
+      return begin("beginAssembly " + documentName + " " + contextClass);
+    }
+
+    @Override
+    public void endAssembly(Object event) {
+      end("endAssembly", event);
+    }
+  }
+}
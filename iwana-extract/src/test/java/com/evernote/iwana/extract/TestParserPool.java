@@ -0,0 +1,173 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Stress test for sharing parsers and registries across threads.
+ */
+public class TestParserPool {
+  private static final String[] DOCUMENTS = {"testKeynote2013.key",
+      "testNumbers2013.numbers", "testPages2013.pages"};
+
+  private static final int THREADS = 16;
+  private static final int PARSES_PER_THREAD = 40;
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void testConcurrentParses() throws Exception {
+    // each document as a single file, as an Index.zip bundle and as an Index/ folder
+    final List<File> files = new ArrayList<>();
+    for (String doc : DOCUMENTS) {
+      final File file = Paths.get(
+          getClass().getResource("/test-documents/" + doc).toURI()).toFile();
+      files.add(file);
+      files.add(toBundle(file, true));
+      files.add(toBundle(file, false));
+    }
+
+    final TemplateCache cache = new TemplateCache(16);
+    final List<String> expected = new ArrayList<>();
+    for (File f : files) {
+      final ExtractTextIWAParser parser = new ExtractTextIWAParser();
+      parser.setTemplateCache(cache);
+      expected.add(getText(parser, f));
+    }
+    for (int i = 0; i < DOCUMENTS.length; i++) {
+      assertEquals(expected.get(i * 3), expected.get(i * 3 + 1));
+      assertEquals(expected.get(i * 3), expected.get(i * 3 + 2));
+    }
+
+    final ExecutorService decodeExecutor = Executors.newFixedThreadPool(4);
+    final ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+    try {
+      final ExtractTextParserPool pool = new ExtractTextParserPool(THREADS / 2);
+      pool.setTemplateCache(cache);
+      pool.warmUp(4);
+
+      final ExtractTextParserPool parallelPool = new ExtractTextParserPool(THREADS / 2);
+      parallelPool.setTemplateCache(cache);
+      parallelPool.setDecodeExecutor(decodeExecutor);
+
+      final List<Future<Integer>> results = new ArrayList<>();
+      for (int t = 0; t < THREADS; t++) {
+        final Random random = new Random(t);
+        final ExtractTextParserPool p = t % 2 == 0 ? pool : parallelPool;
+        results.add(threads.submit(new Callable<Integer>() {
+          @Override
+          public Integer call() throws Exception {
+            for (int i = 0; i < PARSES_PER_THREAD; i++) {
+              final int doc = random.nextInt(files.size());
+              final ExtractTextIWAParser parser = p.acquire();
+              try {
+                assertEquals(files.get(doc).toString(), expected.get(doc),
+                    getText(parser, files.get(doc)));
+              } finally {
+                p.release(parser);
+              }
+            }
+            return PARSES_PER_THREAD;
+          }
+        }));
+      }
+
+      int parses = 0;
+      for (Future<Integer> f : results) {
+        parses += f.get();
+      }
+      assertEquals(THREADS * PARSES_PER_THREAD, parses);
+      assertTrue(pool.getIdleCount() <= THREADS / 2);
+    } finally {
+      threads.shutdownNow();
+      decodeExecutor.shutdownNow();
+    }
+  }
+
+  private static String getText(ExtractTextIWAParser parser, File f) throws IOException {
+    final StringBuilder sb = new StringBuilder();
+    parser.parse(f, new ExtractTextCallback() {
+      @Override
+      public void onTextBlock(String text, TextAttributes scope) {
+        sb.append(scope.getScope()).append(": ").append(text).append('\n');
+      }
+    });
+    return sb.toString();
+  }
+
+  /**
+   * Converts a single-file document into a package-style directory, with either a
+   * (deflated) {@code Index.zip} or an {@code Index/} folder.
+   */
+  private File toBundle(File doc, boolean zipped) throws IOException {
+    final File dir = tmp.newFolder((zipped ? "zipped-" : "loose-") + doc.getName());
+    try (ZipInputStream zin = new ZipInputStream(new FileInputStream(doc));
+        ZipOutputStream zout = zipped ? new ZipOutputStream(new FileOutputStream(
+            new File(dir, "Index.zip"))) : null) {
+      ZipEntry entry;
+      while ((entry = zin.getNextEntry()) != null) {
+        if (entry.isDirectory() || !entry.getName().startsWith("Index/")) {
+          continue;
+        }
+        if (zipped) {
+          zout.putNextEntry(new ZipEntry(entry.getName()));
+          copy(zin, zout);
+          zout.closeEntry();
+        } else {
+          final File f = new File(dir, entry.getName());
+          f.getParentFile().mkdirs();
+          try (OutputStream out = new FileOutputStream(f)) {
+            copy(zin, out);
+          }
+        }
+      }
+    }
+    return dir;
+  }
+
+  private static void copy(InputStream in, OutputStream out) throws IOException {
+    final byte[] buf = new byte[8192];
+    int r;
+    while ((r = in.read(buf)) != -1) {
+      out.write(buf, 0, r);
+    }
+  }
+}
@@ -0,0 +1,362 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.evernote.iwana.ParseMonitor;
+import com.evernote.iwana.SnappyDecompressor;
+import com.evernote.iwana.SnappyDecompressors;
+
+/**
+ * Allocation and throughput regression tests.
+ * 
+ * Parses the bundled documents and generated large ones repeatedly, and compares the
+ * median bytes allocated per parse (as reported by {@link com.sun.management.ThreadMXBean})
+ * and the median number of messages parsed per second against the baselines in
+ * {@code /perf-baseline.properties}. The throughput of the {@link SnappyDecompressor}s
+ * is checked as well.
+ * 
+ * The document baselines depend on the generated classes, so their keys start with the
+ * schema the tests run against ({@code slim.} or {@code full.}; see
+ * {@link TestSlimSchema#isSlimSchema()}). The document checks are skipped for a schema
+ * that has no baselines yet.
+ * 
+ * Only run in the {@code perf-tests} Maven profile ({@code mvn test -Pperf-tests}), which
+ * sets {@code -Diwana.perf=true}. Further system properties:
+ * 
+ * <ul>
+ * <li>{@code iwana.perf.allocationTolerance}, {@code iwana.perf.throughputTolerance}:
+ * override the tolerances from the baseline file (fractions of the baseline).</li>
+ * <li>{@code iwana.perf.record=<file>}: writes the measured values to the given file
+ * instead of checking them, for updating the baselines.</li>
+ * </ul>
+ * 
+ * Throughput depends on the machine, so its baselines are deliberately conservative;
+ * allocation is mostly machine-independent and checked more tightly.
+ */
+public class TestPerformanceRegression {
+  private static final String[] DOCUMENTS = {"testKeynote2013.key",
+      "testNumbers2013.numbers", "testPages2013.pages"};
+
+  /**
+   * The number of times each {@code .iwa} file is repeated in the generated large
+   * documents.
+   */
+  private static final int LARGE_COPIES = 40;
+
+  private static final int WARMUP_PARSES = 30;
+  private static final int MEASURED_PARSES = 15;
+
+  private static Properties baselines;
+  private static String schema;
+  private static Map<String, Long> measured;
+  private static com.sun.management.ThreadMXBean threads;
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @BeforeClass
+  public static void setUp() throws IOException {
+    Assume.assumeTrue(Boolean.getBoolean("iwana.perf"));
+
+    baselines = new Properties();
+    try (InputStream in =
+        TestPerformanceRegression.class.getResourceAsStream("/perf-baseline.properties")) {
+      assertNotNull("Missing perf-baseline.properties", in);
+      baselines.load(in);
+    }
+    measured = new TreeMap<>();
+    schema = TestSlimSchema.isSlimSchema() ? "slim" : "full";
+
+    if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+      threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+      if (threads.isThreadAllocatedMemorySupported()) {
+        threads.setThreadAllocatedMemoryEnabled(true);
+      } else {
+        threads = null;
+      }
+    }
+  }
+
+  @AfterClass
+  public static void tearDown() throws IOException {
+    final String record = System.getProperty("iwana.perf.record");
+    if (record == null || measured == null) {
+      return;
+    }
+    final Map<String, String> values = new TreeMap<>();
+    // keep the baselines of the other schema
+    for (String key : baselines.stringPropertyNames()) {
+      values.put(key, baselines.getProperty(key));
+    }
+    for (Map.Entry<String, Long> en : measured.entrySet()) {
+      values.put(en.getKey(), String.valueOf(en.getValue()));
+    }
+    try (PrintWriter out = new PrintWriter(record, "ISO-8859-1")) {
+      for (Map.Entry<String, String> en : values.entrySet()) {
+        out.println(en.getKey() + "=" + en.getValue());
+      }
+    }
+  }
+
+  @Test
+  public void testBundledDocuments() throws Exception {
+    assumeDocumentBaselines();
+    for (String doc : DOCUMENTS) {
+      measure(doc, getTestFile(doc));
+    }
+  }
+
+  @Test
+  public void testLargeDocuments() throws Exception {
+    assumeDocumentBaselines();
+    for (String doc : DOCUMENTS) {
+      measure("large-" + doc, toLargeDocument(getTestFile(doc), LARGE_COPIES));
+    }
+  }
+
+  @Test
+  public void testSnappyDecompressors() throws Exception {
+    // the compressed chunks of the bundled documents
+    final List<byte[]> blocks = new ArrayList<>();
+    long total = 0;
+    for (String doc : DOCUMENTS) {
+      try (ZipInputStream zin = new ZipInputStream(new FileInputStream(getTestFile(doc)))) {
+        ZipEntry entry;
+        while ((entry = zin.getNextEntry()) != null) {
+          if (!entry.getName().endsWith(".iwa")) {
+            continue;
+          }
+          final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+          copy(zin, bout);
+          final byte[] iwa = bout.toByteArray();
+          for (int pos = 0; pos + 4 <= iwa.length;) {
+            final int len = (iwa[pos + 1] & 0xFF) | (iwa[pos + 2] & 0xFF) << 8
+                | (iwa[pos + 3] & 0xFF) << 16;
+            if (iwa[pos] == 0) {
+              blocks.add(Arrays.copyOfRange(iwa, pos + 4, pos + 4 + len));
+              total += len;
+            }
+            pos += 4 + len;
+          }
+        }
+      }
+    }
+    assertTrue("No compressed chunks", total > 0);
+
+    // chunks are at most 64 KB, plus what a decompressor may write past the end
+    final byte[] out = new byte[64 * 1024 + 64];
+    for (SnappyDecompressor d : new SnappyDecompressor[] {SnappyDecompressors.iq80(),
+        SnappyDecompressors.java()}) {
+      for (int i = 0; i < WARMUP_PARSES * 10; i++) {
+        for (byte[] block : blocks) {
+          d.uncompress(block, 0, block.length, out, 0);
+        }
+      }
+
+      final long[] throughput = new long[MEASURED_PARSES];
+      for (int i = 0; i < MEASURED_PARSES; i++) {
+        final long start = System.nanoTime();
+        for (int j = 0; j < 10; j++) {
+          for (byte[] block : blocks) {
+            d.uncompress(block, 0, block.length, out, 0);
+          }
+        }
+        final long elapsed = Math.max(1, System.nanoTime() - start);
+        throughput[i] = total * 10 * 1000000000L / elapsed;
+      }
+      final long bytesPerSecond = median(throughput);
+      System.out.println(String.format("%-32s %12d compressed bytes/s",
+          "snappy-" + d.getName(), bytesPerSecond));
+      check("snappy-" + d.getName() + ".bytesPerSecond", bytesPerSecond, false);
+    }
+  }
+
+  private static void assumeDocumentBaselines() {
+    if (System.getProperty("iwana.perf.record") != null) {
+      return;
+    }
+    for (String key : baselines.stringPropertyNames()) {
+      if (key.startsWith(schema + ".")) {
+        return;
+      }
+    }
+    Assume.assumeTrue("No baselines for the " + schema + " schema", false);
+  }
+
+  private void measure(final String name, final File file) throws IOException {
+    final ExtractTextIWAParser parser = new ExtractTextIWAParser();
+    final long[] messages = new long[1];
+    parser.setParseMonitor(new ParseMonitor() {
+      @Override
+      public void endDocument(Object event, String documentName, String contextClass,
+          int iwaFiles, long n, long bytes) {
+        messages[0] = n;
+      }
+    });
+    final CountingCallback target = new CountingCallback();
+
+    for (int i = 0; i < WARMUP_PARSES; i++) {
+      parser.parse(file, target);
+    }
+
+    final long threadId = Thread.currentThread().getId();
+    final long[] allocated = new long[MEASURED_PARSES];
+    final long[] throughput = new long[MEASURED_PARSES];
+    for (int i = 0; i < MEASURED_PARSES; i++) {
+      final long bytesBefore = threads == null ? 0 : threads.getThreadAllocatedBytes(threadId);
+      final long start = System.nanoTime();
+      parser.parse(file, target);
+      final long elapsed = Math.max(1, System.nanoTime() - start);
+      allocated[i] =
+          threads == null ? 0 : threads.getThreadAllocatedBytes(threadId) - bytesBefore;
+      throughput[i] = messages[0] * 1000000000L / elapsed;
+    }
+    assertTrue(name + " produced no text", target.chars > 0);
+    assertTrue(name + " parsed no messages", messages[0] > 0);
+
+    final long bytesPerParse = median(allocated);
+    final long messagesPerSecond = median(throughput);
+    System.out.println(String.format("%-32s %12d bytes/parse %10d messages/s", name,
+        bytesPerParse, messagesPerSecond));
+
+    if (threads != null) {
+      check(schema + "." + name + ".bytesPerParse", bytesPerParse, true);
+    }
+    check(schema + "." + name + ".messagesPerSecond", messagesPerSecond, false);
+  }
+
+  /**
+   * Compares a measured value against its baseline.
+   * 
+   * @param key The baseline's key.
+   * @param value The measured value.
+   * @param lowerIsBetter {@code true} if the value must not grow, {@code false} if it must
+   *          not shrink.
+   */
+  private static void check(String key, long value, boolean lowerIsBetter) {
+    measured.put(key, value);
+    if (System.getProperty("iwana.perf.record") != null) {
+      return;
+    }
+
+    final String baseline = baselines.getProperty(key);
+    assertNotNull("No baseline for " + key + "; record one with -Diwana.perf.record=<file>",
+        baseline);
+    final long expected = Long.parseLong(baseline);
+    if (lowerIsBetter) {
+      final double tolerance = tolerance("allocationTolerance");
+      assertTrue(key + " regressed: " + value + " > " + expected + " (+" + tolerance
+          + ")", value <= expected * (1 + tolerance));
+    } else {
+      final double tolerance = tolerance("throughputTolerance");
+      assertTrue(key + " regressed: " + value + " < " + expected + " (-" + tolerance
+          + ")", value >= expected * (1 - tolerance));
+    }
+  }
+
+  private static double tolerance(String name) {
+    return Double.parseDouble(System.getProperty("iwana.perf." + name,
+        baselines.getProperty(name)));
+  }
+
+  private static long median(long[] values) {
+    final long[] sorted = values.clone();
+    Arrays.sort(sorted);
+    return sorted[sorted.length / 2];
+  }
+
+  /**
+   * Generates a large document by repeating the contents of every {@code .iwa} file. The
+   * repeated messages replace their earlier copies, so the extracted text stays the same
+   * while the number of messages to parse grows.
+   */
+  private File toLargeDocument(File doc, int copies) throws IOException {
+    final File large = new File(tmp.getRoot(), "large-" + doc.getName());
+    try (ZipInputStream zin = new ZipInputStream(new FileInputStream(doc));
+        ZipOutputStream zout = new ZipOutputStream(new FileOutputStream(large))) {
+      ZipEntry entry;
+      while ((entry = zin.getNextEntry()) != null) {
+        final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        copy(zin, bout);
+        final byte[] data = bout.toByteArray();
+
+        zout.putNextEntry(new ZipEntry(entry.getName()));
+        final int n = entry.getName().endsWith(".iwa") ? copies : 1;
+        for (int i = 0; i < n; i++) {
+          zout.write(data);
+        }
+        zout.closeEntry();
+      }
+    }
+    return large;
+  }
+
+  private static void copy(InputStream in, OutputStream out) throws IOException {
+    final byte[] buf = new byte[8192];
+    int r;
+    while ((r = in.read(buf)) != -1) {
+      out.write(buf, 0, r);
+    }
+  }
+
+  private File getTestFile(String testFileName) throws Exception {
+    return Paths.get(
+        getClass().getResource("/test-documents/" + testFileName).toURI()).toFile();
+  }
+
+  /**
+   * Counts the extracted characters without retaining the text, so that the callback
+   * does not contribute to the measured allocation.
+   */
+  private static final class CountingCallback extends ExtractTextCallback {
+    long chars;
+
+    @Override
+    public void onTextBlock(String text, TextAttributes attrs) {
+      chars += text.length();
+    }
+  }
+}
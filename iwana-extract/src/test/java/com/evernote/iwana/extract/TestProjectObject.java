@@ -0,0 +1,135 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.evernote.iwana.DocumentType;
+import com.evernote.iwana.pb.KN.KNArchives.DocumentArchive;
+import com.evernote.iwana.pb.KN.KNArchives.ShowArchive;
+import com.evernote.iwana.pb.TSD.TSDArchives.DrawableArchive;
+import com.evernote.iwana.pb.TSD.TSDArchives.GeometryArchive;
+import com.evernote.iwana.pb.TSD.TSDArchives.GroupArchive;
+import com.evernote.iwana.pb.TSD.TSDArchives.ShapeArchive;
+import com.evernote.iwana.pb.TSP.TSPMessages.Point;
+import com.evernote.iwana.pb.TSP.TSPMessages.Reference;
+import com.evernote.iwana.pb.TSP.TSPMessages.Size;
+import com.evernote.iwana.pb.TST.TSTArchives.TableInfoArchive;
+import com.evernote.iwana.pb.TST.TSTArchives.TableModelArchive;
+import com.evernote.iwana.pb.TSWP.TSWPArchives.ShapeInfoArchive;
+import com.google.protobuf.Message;
+
+/**
+ * Tests the compact projections that are stored instead of full messages (see
+ * {@link ProjectObject}).
+ */
+public class TestProjectObject {
+
+  @Test
+  public void testGeometryObject() {
+    GeometryObject go = GeometryObject.PROJECT_SHAPE_INFO.project(shapeInfo(
+        GeometryArchive.newBuilder()
+            .setPosition(Point.newBuilder().setX(10).setY(20))
+            .setSize(Size.newBuilder().setWidth(30).setHeight(40)), 42L));
+    assertEquals(10, go.x, 0);
+    assertEquals(20, go.y, 0);
+    assertEquals(30, go.width, 0);
+    assertEquals(40, go.height, 0);
+    assertEquals(42, go.storageId);
+
+    // no size
+    go = GeometryObject.PROJECT_SHAPE_INFO.project(shapeInfo(GeometryArchive.newBuilder()
+        .setPosition(Point.newBuilder().setX(-5).setY(6)), 43L));
+    assertEquals(-5, go.x, 0);
+    assertEquals(6, go.y, 0);
+    assertEquals(0, go.width, 0);
+    assertEquals(0, go.height, 0);
+    assertEquals(43, go.storageId);
+
+    // shapes without text are not needed
+    assertNull(GeometryObject.PROJECT_SHAPE_INFO.project(shapeInfo(
+        GeometryArchive.newBuilder(), null)));
+  }
+
+  @Test
+  public void testGroupObject() {
+    GroupArchive group = GroupArchive.newBuilder()
+        .addChildren(Reference.newBuilder().setIdentifier(3))
+        .addChildren(Reference.newBuilder().setIdentifier(1))
+        .addChildren(Reference.newBuilder().setIdentifier(2))
+        .buildPartial();
+    assertArrayEquals(new long[] {3, 1, 2},
+        GroupObject.PROJECT_GROUP.project(group).childIds);
+    GroupArchive empty = GroupArchive.newBuilder().buildPartial();
+    assertArrayEquals(new long[0], GroupObject.PROJECT_GROUP.project(empty).childIds);
+  }
+
+  @Test
+  public void testKeynoteStoresProjections() throws Exception {
+    final KeynoteContext[] context = new KeynoteContext[1];
+    ExtractTextIWAParser parser = new ExtractTextIWAParser() {
+      @Override
+      protected ExtractTextIWAContext newContext(String documentName, DocumentType type,
+          ExtractTextCallback target) {
+        ExtractTextIWAContext c = super.newContext(documentName, type, target);
+        context[0] = (KeynoteContext) c;
+        return c;
+      }
+    };
+    parser.parse(Paths.get(getClass().getResource("/test-documents/testKeynote2013.key")
+        .toURI()).toFile(), new ExtractTextCallback() {
+      @Override
+      public void onTextBlock(String text, TextAttributes attrs) {
+      }
+    });
+
+    // only the root, the show and tables are kept as messages
+    List<Class<?>> messages = Arrays.<Class<?>> asList(DocumentArchive.class,
+        ShowArchive.class, TableInfoArchive.class, TableModelArchive.class);
+    Set<String> projections = new HashSet<>();
+    for (Object o : context[0].objectStorage.values()) {
+      if (o instanceof Message) {
+        assertTrue(o.getClass().getName(), messages.contains(o.getClass()));
+      } else {
+        projections.add(o.getClass().getSimpleName());
+      }
+    }
+    assertTrue(projections.toString(), projections.containsAll(Arrays.asList(
+        "SlideNode", "Slide", "Note", "Placeholder")));
+  }
+
+  private static ShapeInfoArchive shapeInfo(GeometryArchive.Builder geometry,
+      Long storageId) {
+    ShapeInfoArchive.Builder b = ShapeInfoArchive.newBuilder().setSuper(
+        ShapeArchive.newBuilder().setSuper(DrawableArchive.newBuilder()
+            .setGeometry(geometry)));
+    if (storageId != null) {
+      b.setContainedStorage(Reference.newBuilder().setIdentifier(storageId));
+    }
+    return b.buildPartial();
+  }
+}
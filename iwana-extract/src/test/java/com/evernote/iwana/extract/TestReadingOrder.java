@@ -0,0 +1,177 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.evernote.iwana.pb.TSD.TSDArchives.DrawableArchive;
+import com.evernote.iwana.pb.TSD.TSDArchives.GeometryArchive;
+import com.evernote.iwana.pb.TSD.TSDArchives.ShapeArchive;
+import com.evernote.iwana.pb.TSP.TSPMessages.Point;
+import com.evernote.iwana.pb.TSP.TSPMessages.Reference;
+import com.evernote.iwana.pb.TSP.TSPMessages.Size;
+import com.evernote.iwana.pb.TSWP.TSWPArchives.ObjectAttributeTable;
+import com.evernote.iwana.pb.TSWP.TSWPArchives.ShapeInfoArchive;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.WireFormat;
+
+/**
+ * Tests the {@link ReadingOrder} of drawables.
+ */
+public class TestReadingOrder {
+
+  @Test
+  public void testLines() {
+    ReadingOrder ro = new ReadingOrder();
+    ro.add(100, 0, 50, 20);
+    ro.add(0, 105, 50, 20);
+    ro.add(0, 5, 50, 20);
+    // the first two drawables overlap vertically, so they form a line
+    assertOrder(ro, 2, 0, 1);
+  }
+
+  @Test
+  public void testColumns() {
+    ReadingOrder ro = new ReadingOrder();
+    ro.add(0, 0, 50, 20);
+    ro.add(100, 0, 50, 60);
+    ro.add(0, 30, 50, 20);
+    // the tall drawable on the right makes a line of two columns
+    assertOrder(ro, 0, 2, 1);
+  }
+
+  @Test
+  public void testNegativeCoordinates() {
+    ReadingOrder ro = new ReadingOrder();
+    ro.add(0, 0, 10, 10);
+    ro.add(0, -50, 10, 10);
+    ro.add(-0.0f, -100.5f, 10, 10);
+    assertOrder(ro, 2, 1, 0);
+  }
+
+  @Test
+  public void testZeroSize() {
+    ReadingOrder ro = new ReadingOrder();
+    ro.add(20, 10, 0, 0);
+    ro.add(10, 10, 0, -5);
+    ro.add(0, 20, 0, 0);
+    // zero-sized drawables only share a line if they start at the same coordinate
+    assertOrder(ro, 1, 0, 2);
+  }
+
+  @Test
+  public void testTies() {
+    ReadingOrder ro = new ReadingOrder();
+    for (int i = 0; i < 3; i++) {
+      ro.add(10, 10, 20, 20);
+    }
+    assertOrder(ro, 0, 1, 2);
+  }
+
+  @Test
+  public void testReuse() {
+    ReadingOrder ro = new ReadingOrder();
+    final int n = 100;
+    for (int i = 0; i < n; i++) {
+      ro.add(0, n - i, 10, 0.5f);
+    }
+    assertEquals(n, ro.size());
+    final int[] expected = new int[n];
+    for (int i = 0; i < n; i++) {
+      expected[i] = n - 1 - i;
+    }
+    assertOrder(ro, expected);
+
+    ro.clear();
+    assertEquals(0, ro.size());
+    ro.add(5, 5, 1, 1);
+    ro.add(0, 0, 1, 1);
+    assertOrder(ro, 1, 0);
+  }
+
+  @Test
+  public void testPagesByPage() throws IOException {
+    final List<String> texts = new ArrayList<>();
+    PagesContext context = new PagesContext("test.pages", new ExtractTextCallback() {
+      @Override
+      public void onTextBlock(String text, TextAttributes attrs) {
+        texts.add(text);
+      }
+    });
+    shape(context, 1, "page 2, top", 0, 10);
+    shape(context, 2, "page 1, bottom", 0, 500);
+    shape(context, 3, "page 1, top", 0, 100);
+    shape(context, 4, "inline", 0, 0);
+
+    // page groups as written by Pages, listed out of order; drawables by layer
+    ByteString page2 = pageGroup(1, 1);
+    ByteString page1 = pageGroup(0, 2, 3);
+    ByteString.Output bytes = ByteString.newOutput();
+    CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    out.writeBytes(1, page2);
+    out.writeBytes(1, page1);
+    out.flush();
+    ObjectAttributeTable pages =
+        FloatingDrawablesScanner.PARSER.parseFrom(bytes.toByteString());
+    context.storeObject(5, pages);
+
+    context.processRootObject(Reference.newBuilder().setIdentifier(0).build());
+    assertEquals(Arrays.asList("page 1, top", "page 1, bottom", "page 2, top", "inline"),
+        texts);
+  }
+
+  private static ByteString pageGroup(int pageIndex, long... drawableIds)
+      throws IOException {
+    ByteString.Output bytes = ByteString.newOutput();
+    CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    out.writeUInt32(1, pageIndex);
+    for (long id : drawableIds) {
+      // an entry that only references its drawable
+      ByteString entry = Reference.newBuilder().setIdentifier(id).build().toByteString();
+      out.writeTag(4, WireFormat.WIRETYPE_LENGTH_DELIMITED);
+      out.writeRawVarint32(CodedOutputStream.computeBytesSize(1, entry));
+      out.writeBytes(1, entry);
+    }
+    out.flush();
+    return bytes.toByteString();
+  }
+
+  private static void shape(ContextBase context, long id, String text, float x, float y) {
+    GeometryArchive geometry = GeometryArchive.newBuilder()
+        .setPosition(Point.newBuilder().setX(x).setY(y))
+        .setSize(Size.newBuilder().setWidth(100).setHeight(20)).build();
+    ShapeInfoArchive m = ShapeInfoArchive.newBuilder()
+        .setSuper(ShapeArchive.newBuilder().setSuper(
+            DrawableArchive.newBuilder().setGeometry(geometry)))
+        .setContainedStorage(Reference.newBuilder().setIdentifier(id + 100))
+        .buildPartial();
+    context.storeObject(id, new GeometryObject(m));
+    context.setText(id + 100, text, null);
+  }
+
+  private static void assertOrder(ReadingOrder ro, int... expected) {
+    assertArrayEquals(expected, Arrays.copyOf(ro.sort(), ro.size()));
+  }
+}
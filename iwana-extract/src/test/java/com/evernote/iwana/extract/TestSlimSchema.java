@@ -0,0 +1,136 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.evernote.iwana.pb.KN.KNArchives.ShowArchive;
+import com.evernote.iwana.pb.TN.TNArchives.DocumentArchive;
+import com.evernote.iwana.pb.TN.TNArchives.SheetArchive;
+import com.evernote.iwana.pb.TSP.TSPArchiveMessages.MessageInfo;
+import com.evernote.iwana.pb.TSP.TSPMessages.Reference;
+import com.evernote.iwana.pb.TST.TSTArchives.TableInfoArchive;
+import com.evernote.iwana.pb.TST.TSTArchives.TableModelArchive;
+import com.evernote.iwana.pb.TST.TSTArchives.Tile;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Tests extraction against the pruned schemas of {@code iwana-protobuf-slim}; skipped
+ * when built against the complete schemas ({@code -Diwana.schema=slim} selects them).
+ */
+public class TestSlimSchema {
+
+  @Before
+  public void assumeSlimSchema() throws Exception {
+    Assume.assumeTrue(isSlimSchema());
+  }
+
+  /**
+   * Checks whether the generated classes are those of the slim schema.
+   * 
+   * @return {@code true} if built against {@code iwana-protobuf-slim}.
+   */
+  static boolean isSlimSchema() throws IOException {
+    // the slim classes skip unknown fields instead of keeping them
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    out.writeUInt64(1, 7);
+    out.writeString(1000, "unknown");
+    out.flush();
+    Reference ref = Reference.PARSER.parseFrom(bytes.toByteArray());
+    assertEquals(7, ref.getIdentifier());
+    return ref.getUnknownFields().asMap().isEmpty();
+  }
+
+  @Test
+  public void testMissingFields() throws Exception {
+    TableModelArchive model = TableModelArchive.PARSER.parseFrom(new byte[0]);
+    assertFalse(model.hasTableName());
+    assertFalse(model.hasNumberOfRows());
+    Tile tile = Tile.PARSER.parseFrom(new byte[0]);
+    assertFalse(tile.hasMaxColumn());
+    assertEquals(0, TableTile.decode(tile).numCells);
+    assertFalse(SheetArchive.PARSER.parseFrom(new byte[0]).hasName());
+    assertFalse(ShowArchive.PARSER.parseFrom(new byte[0]).hasSlideTree());
+
+    // the archive framing is still required
+    try {
+      MessageInfo.PARSER.parseFrom(new byte[0]);
+      fail();
+    } catch (InvalidProtocolBufferException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testNumbersWithMissingFields() throws Exception {
+    final List<String> blocks = new ArrayList<>();
+    ExtractTextCallback target = new ExtractTextCallback() {
+      @Override
+      public void onTextBlock(String text, TextAttributes attrs) {
+        blocks.add(text);
+      }
+    };
+    NumbersContext context = new NumbersContext("test.numbers", target);
+    DocumentArchive root = DocumentArchive.newBuilder()
+        .addSheets(Reference.newBuilder().setIdentifier(2))
+        .addSheets(Reference.newBuilder().setIdentifier(3))
+        .build();
+    context.storeObject(1, root);
+    // a sheet without a name, holding a table without a model
+    context.storeObject(2, SheetArchive.newBuilder()
+        .addDrawableInfos(Reference.newBuilder().setIdentifier(4)).build());
+    context.storeObject(3, SheetArchive.newBuilder().setName("Second sheet").build());
+    context.storeObject(4, TableInfoArchive.PARSER.parseFrom(new byte[0]));
+    context.onEndParseIndexZip();
+
+    assertEquals(Arrays.asList("Second sheet"), blocks);
+  }
+
+  @Test
+  public void testDocuments() throws Exception {
+    for (String doc : new String[] {"testKeynote2013.key", "testNumbers2013.numbers",
+        "testPages2013.pages"}) {
+      final StringBuilder sb = new StringBuilder();
+      new ExtractTextIWAParser().parse(
+          Paths.get(getClass().getResource("/test-documents/" + doc).toURI()).toFile(),
+          new ExtractTextCallback() {
+            @Override
+            public void onTextBlock(String text, TextAttributes attrs) {
+              if (attrs.getScope() == TextAttributes.Scope.DOCUMENT) {
+                sb.append(text).append('\n');
+              }
+            }
+          });
+      assertTrue(doc, sb.length() > 0);
+    }
+  }
+}
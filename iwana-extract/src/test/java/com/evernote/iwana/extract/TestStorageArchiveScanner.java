@@ -0,0 +1,91 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+import com.evernote.iwana.pb.TSP.TSPMessages.Reference;
+import com.evernote.iwana.pb.TSWP.TSWPArchives.ObjectAttributeTable;
+import com.evernote.iwana.pb.TSWP.TSWPArchives.ObjectAttributeTable.ObjectAttribute;
+import com.evernote.iwana.pb.TSWP.TSWPArchives.StorageArchive;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+
+/**
+ * Tests {@link StorageArchiveScanner} against the generated parser.
+ */
+public class TestStorageArchiveScanner {
+
+  @Test
+  public void testKeepsTextFields() throws Exception {
+    ObjectAttributeTable table = ObjectAttributeTable.newBuilder()
+        .addEntries(ObjectAttribute.newBuilder().setCharacterIndex(3)
+            .setObject(Reference.newBuilder().setIdentifier(42)))
+        .build();
+    StorageArchive full = StorageArchive.newBuilder()
+        .setKind(1)
+        .setStyleSheet(Reference.newBuilder().setIdentifier(7))
+        .addText("Hello \u2603")
+        .setHasItext(true)
+        .setTableParaStyle(table)
+        .setTableListStyle(table)
+        .setInDocument(true)
+        .setTableSmartfield(table)
+        .build();
+
+    StorageArchive scanned = scan(full.toByteArray());
+    assertEquals(full.getTextList(), scanned.getTextList());
+    assertTrue(scanned.getInDocument());
+    assertEquals(table, scanned.getTableSmartfield());
+    assertFalse(scanned.hasTableParaStyle());
+    assertFalse(scanned.hasStyleSheet());
+
+    StorageArchive empty = scan(new byte[0]);
+    assertEquals(0, empty.getTextCount());
+    assertFalse(empty.hasInDocument());
+  }
+
+  @Test
+  public void testUnexpectedWireType() throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    CodedOutputStream out = CodedOutputStream.newInstance(bytes);
+    out.writeString(3, "first");
+    // in_document as a length-delimited field
+    out.writeString(10, "garbage");
+    out.writeString(3, "second");
+    out.writeBool(10, true);
+    out.flush();
+
+    StorageArchive generated = StorageArchive.PARSER.parseFrom(bytes.toByteArray());
+    StorageArchive scanned = scan(bytes.toByteArray());
+    assertEquals(generated.getTextList(), scanned.getTextList());
+    assertEquals(2, scanned.getTextCount());
+    assertTrue(scanned.getInDocument());
+  }
+
+  private static StorageArchive scan(byte[] data) throws Exception {
+    // parse from a stream, as the IwanaParser does
+    return StorageArchiveScanner.PARSER.parseFrom(CodedInputStream
+        .newInstance(new ByteArrayInputStream(data)));
+  }
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+import com.evernote.iwana.pb.TST.TSTArchives.Tile;
+import com.evernote.iwana.pb.TST.TSTArchives.TileRowInfo;
+import com.google.protobuf.ByteString;
+
+/**
+ * Tests decoding hand-built cell storage buffers with {@link TableTile}.
+ */
+public class TestTableTile {
+
+  @Test
+  public void testStringKeyOffset() {
+    assertEquals(12, TableTile.stringKeyOffset(4, 0x10));
+    // 0x2, 0x4, 0x8, 0x80, 0x100, 0x400 and 0x800 come before the rich text key
+    assertEquals(12 + 7 * 4, TableTile.stringKeyOffset(4, 0x10 | 0xd8e));
+    // the rich text key, and 0x1000 and 0x2000
+    assertEquals(12 + 3 * 4, TableTile.stringKeyOffset(4, 0x10 | 0x3200));
+    // the number and date values (0x20, 0x40) come after the string key
+    assertEquals(12 + 4, TableTile.stringKeyOffset(4, 0x10 | 0x60 | 0x4));
+    // version 1 has a shorter header, and no 0x400, 0x800 or 0x2000 fields
+    assertEquals(8 + 2 * 4, TableTile.stringKeyOffset(1, 0x10 | 0x2c00 | 0x1000 | 0x100));
+  }
+
+  @Test
+  public void testDecode() {
+    TileRowInfo row1 = row(1,
+        cell(4, 1, 2, 0x20, 0),
+        cell(4, 1, 3, 0x10 | 0x4 | 0x200 | 0x400 | 0x1000, 28, 42),
+        null,
+        cell(3, 2, 3, 0x10, 12, 7));
+    TileRowInfo row0 = row(0,
+        cell(4, 1, 3, 0x10 | 0x80, 16, 5),
+        // a version we do not know
+        cell(5, 1, 3, 0x10, 12, 6));
+
+    TableTile tile = TableTile.decode(Tile.newBuilder().setMaxColumn(3).setMaxRow(1)
+        .setNumCells(6).setNumrows(2).addRowInfos(row1).addRowInfos(row0).build());
+    assertEquals(3, tile.numCells);
+    assertCell(tile, 0, 0, 0, 5);
+    assertCell(tile, 1, 1, 1, 42);
+    assertCell(tile, 2, 1, 3, 7);
+  }
+
+  private static void assertCell(TableTile tile, int i, int row, int column, int key) {
+    assertEquals(row, tile.rows[i]);
+    assertEquals(column, tile.columns[i]);
+    assertEquals(key, tile.stringKeys[i]);
+  }
+
+  /**
+   * Builds a 32-byte cell.
+   * 
+   * @param version The cell storage version.
+   * @param typeOffset The offset of the cell type.
+   * @param type The cell type.
+   * @param flags The flags.
+   * @param keyOffset The offset of the string key, if any.
+   * @param key The string key, if any.
+   */
+  private static byte[] cell(int version, int typeOffset, int type, int flags,
+      int keyOffset, int... key) {
+    ByteBuffer b = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+    b.put(0, (byte) version);
+    b.put(typeOffset, (byte) type);
+    b.putInt(4, flags);
+    // fill the optional fields with garbage, so a wrong offset shows
+    for (int i = 12; i < 32; i += 4) {
+      b.putInt(i, 0x7777);
+    }
+    if (key.length > 0) {
+      b.putInt(keyOffset, key[0]);
+    }
+    return b.array();
+  }
+
+  private static TileRowInfo row(int index, byte[]... cells) {
+    ByteBuffer storage = ByteBuffer.allocate(cells.length * 32);
+    ByteBuffer offsets = ByteBuffer.allocate(cells.length * 2)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    int count = 0;
+    for (int i = 0; i < cells.length; i++) {
+      if (cells[i] == null) {
+        offsets.putShort(i * 2, (short) 0xffff);
+      } else {
+        offsets.putShort(i * 2, (short) storage.position());
+        storage.put(cells[i]);
+        count++;
+      }
+    }
+    return TileRowInfo.newBuilder().setTileRowIndex(index).setCellCount(count)
+        .setCellStorageBuffer(ByteString.copyFrom(storage.array(), 0, storage.position()))
+        .setCellOffsets(ByteString.copyFrom(offsets.array())).build();
+  }
+}
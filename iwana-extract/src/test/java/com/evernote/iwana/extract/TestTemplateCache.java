@@ -0,0 +1,139 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.evernote.iwana.ParseMonitor;
+
+/**
+ * Tests the {@link TemplateCache}.
+ */
+public class TestTemplateCache {
+
+  @Test
+  public void testHitAndMiss() {
+    TemplateCache cache = new TemplateCache(10);
+    TemplateCache.Recorder recorder = new TemplateCache.Recorder();
+    Object object = new Object();
+    recorder.onObject(7, object);
+    recorder.onText(8, "Title", null);
+    recorder.onIgnorableStyle(9);
+    cache.put(0x1234, 100, recorder.toEntry());
+
+    TemplateCache.Entry entry = cache.get(0x1234, 100);
+    assertNotNull(entry);
+    assertArrayEquals(new long[] {7}, entry.objectIds);
+    assertSame(object, entry.objects[0]);
+    assertArrayEquals(new long[] {8}, entry.textIds);
+    assertArrayEquals(new String[] {"Title"}, entry.texts);
+    assertNull(entry.objectAttributes.get(0));
+    assertArrayEquals(new long[] {9}, entry.ignorableStyles);
+
+    // both the checksum and the size must match
+    assertNull(cache.get(0x1235, 100));
+    assertNull(cache.get(0x1234, 101));
+
+    cache.clear();
+    assertEquals(0, cache.size());
+    assertNull(cache.get(0x1234, 100));
+  }
+
+  @Test
+  public void testEviction() {
+    TemplateCache cache = new TemplateCache(2);
+    cache.put(1, 1, new TemplateCache.Recorder().toEntry());
+    cache.put(2, 2, new TemplateCache.Recorder().toEntry());
+    // the least recently used entry goes first
+    assertNotNull(cache.get(1, 1));
+    cache.put(3, 3, new TemplateCache.Recorder().toEntry());
+
+    assertEquals(2, cache.size());
+    assertNotNull(cache.get(1, 1));
+    assertNull(cache.get(2, 2));
+    assertNotNull(cache.get(3, 3));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testEmpty() {
+    new TemplateCache(0);
+  }
+
+  @Test
+  public void testFingerprintSkipsDecoding() throws Exception {
+    TemplateCache cache = new TemplateCache(100);
+    List<String> first = new ArrayList<>();
+    String firstText = getText("testKeynote2013.key", cache, first);
+    int templates = countTemplateFiles(first);
+    assertTrue(templates > 0);
+    assertEquals(templates, cache.size());
+
+    // all template files are replayed from the cache instead of being decoded
+    List<String> second = new ArrayList<>();
+    assertEquals(firstText, getText("testKeynote2013.key", cache, second));
+    assertEquals(0, countTemplateFiles(second));
+    assertEquals(first.size() - templates, second.size());
+    assertEquals(templates, cache.size());
+  }
+
+  private static int countTemplateFiles(List<String> files) {
+    int n = 0;
+    for (String name : files) {
+      if (name.contains("/MasterSlide") || name.contains("/DocumentStylesheet")) {
+        n++;
+      }
+    }
+    return n;
+  }
+
+  private String getText(String testFileName, TemplateCache cache,
+      final List<String> decodedFiles) throws Exception {
+    ExtractTextIWAParser parser = new ExtractTextIWAParser();
+    parser.setTemplateCache(cache);
+    parser.setParseMonitor(new ParseMonitor() {
+      @Override
+      public Object beginIWAFile(String documentName, String fileName) {
+        decodedFiles.add(fileName);
+        return null;
+      }
+    });
+    final StringBuilder sb = new StringBuilder();
+    parser.parse(getTestFile(testFileName), new ExtractTextCallback() {
+      @Override
+      public void onTextBlock(String text, TextAttributes attrs) {
+        sb.append(attrs.getScope()).append(": ").append(text).append('\n');
+      }
+    });
+    return sb.toString();
+  }
+
+  private File getTestFile(String testFileName) throws Exception {
+    return Paths.get(getClass().getResource("/test-documents/" + testFileName).toURI())
+        .toFile();
+  }
+}
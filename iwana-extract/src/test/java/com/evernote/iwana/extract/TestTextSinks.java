@@ -0,0 +1,85 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.extract;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link PlainTextSink} and {@link JsonLinesSink}.
+ */
+public class TestTextSinks {
+  private static final String NL = System.lineSeparator();
+
+  @Test
+  public void testPlainText() throws IOException {
+    // ASCII, 2-byte, 3-byte and 4-byte (surrogate pair) characters
+    final String text = "a\u00e9\u20ac\ud83d\ude00z";
+    assertEquals(text + NL + NL + "b" + NL + NL, write(false, text, "b"));
+  }
+
+  @Test
+  public void testUnpairedSurrogates() throws IOException {
+    // same replacement as the JDK's encoder
+    final String text = "x\ud83dy\ude00";
+    assertEquals(new String(text.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8)
+        + NL + NL, write(false, text));
+  }
+
+  @Test
+  public void testLargeText() throws IOException {
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; sb.length() < Utf8Writer.DEFAULT_BUFFER_SIZE * 3; i++) {
+      sb.append("Zeile ").append(i).append(": \u00fcber \u20ac \ud83d\ude00").append('\n');
+    }
+    final String text = sb.toString();
+    assertEquals(text + NL + NL, write(false, text));
+  }
+
+  @Test
+  public void testJsonLines() throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (JsonLinesSink sink = new JsonLinesSink(out)) {
+      sink.onTextBlock("no document", TextAttributes.DEFAULT_UNREFERENCED);
+      sink.setDocumentName("A \"quoted\" name.key");
+      sink.onBeginDocument();
+      sink.onTextBlock("Tab\there\nquote \" backslash \\ bell \u0007 \u00e9",
+          TextAttributes.DEFAULT_NOTES);
+      sink.onEndDocument();
+    }
+    assertEquals("{\"scope\":\"UNREFERENCED\",\"text\":\"no document\"}\n"
+        + "{\"document\":\"A \\\"quoted\\\" name.key\",\"scope\":\"NOTES\","
+        + "\"text\":\"Tab\\there\\nquote \\\" backslash \\\\ bell \\u0007 \u00e9\"}\n",
+        new String(out.toByteArray(), StandardCharsets.UTF_8));
+  }
+
+  private static String write(boolean jsonLines, String... texts) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (TextSink sink = jsonLines ? new JsonLinesSink(out) : new PlainTextSink(out)) {
+      sink.onBeginDocument();
+      for (String text : texts) {
+        sink.onTextBlock(text, TextAttributes.DEFAULT_DOCUMENT);
+      }
+      sink.onEndDocument();
+    }
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,39 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Assembling a document's results after its last {@code .iwa} file has been parsed.
+ */
+@Name("com.evernote.iwana.Assembly")
+@Label("Assembly")
+@Category("Iwana")
+@Description("Assembling the results of a document, e.g. ordering its text")
+@StackTrace(false)
+final class AssemblyEvent extends Event {
+  @Label("Document")
+  String documentName;
+
+  @Label("Context")
+  String contextClass;
+}
@@ -0,0 +1,43 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Decompressing a single snappy chunk of an {@code .iwa} file.
+ */
+@Name("com.evernote.iwana.ChunkDecode")
+@Label("Chunk Decode")
+@Category("Iwana")
+@Description("Decompressing a snappy chunk of an .iwa file")
+@StackTrace(false)
+final class ChunkDecodeEvent extends Event {
+  @Label("Compressed Bytes")
+  @DataAmount
+  int compressedBytes;
+
+  @Label("Uncompressed Bytes")
+  @Description("The uncompressed size of the chunk, or -1 if decompression failed")
+  @DataAmount
+  int uncompressedBytes;
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Parsing an entire document.
+ */
+@Name("com.evernote.iwana.DocumentParse")
+@Label("Document Parse")
+@Category("Iwana")
+@Description("Parsing an iWork document, from opening it to the end of text extraction")
+@StackTrace(false)
+final class DocumentParseEvent extends Event {
+  @Label("Document")
+  String documentName;
+
+  @Label("Context")
+  @Description("The class of the context chosen for the document type")
+  String contextClass;
+
+  @Label("IWA Files")
+  int iwaFiles;
+
+  @Label("Messages")
+  long messages;
+
+  @Label("IWA Bytes")
+  @Description("The compressed size of the .iwa files parsed, as far as known")
+  @DataAmount
+  long bytes;
+}
@@ -0,0 +1,48 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Parsing (or dispatching the decoded messages of) a single {@code .iwa} file.
+ */
+@Name("com.evernote.iwana.IWAFileParse")
+@Label("IWA File Parse")
+@Category("Iwana")
+@Description("Decoding and dispatching the messages of an .iwa file")
+@StackTrace(false)
+final class IWAFileParseEvent extends Event {
+  @Label("Document")
+  String documentName;
+
+  @Label("File")
+  String fileName;
+
+  @Label("Bytes")
+  @Description("The compressed size of the file, or -1 if unknown")
+  @DataAmount
+  long bytes;
+
+  @Label("Messages")
+  int messages;
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.jfr;
+
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+
+import com.evernote.iwana.ParseMonitor;
+
+/**
+ * A {@link ParseMonitor} that records JDK Flight Recorder events.
+ * 
+ * It is registered as a service, so putting this module on the classpath makes it the
+ * default monitor. While none of its events is enabled in a recording, it does not
+ * allocate anything.
+ */
+public final class JfrParseMonitor extends ParseMonitor {
+  private static final EventType DOCUMENT =
+      EventType.getEventType(DocumentParseEvent.class);
+  private static final EventType IWA_FILE =
+      EventType.getEventType(IWAFileParseEvent.class);
+  private static final EventType CHUNK =
+      EventType.getEventType(ChunkDecodeEvent.class);
+  private static final EventType ASSEMBLY =
+      EventType.getEventType(AssemblyEvent.class);
+
+  @Override
+  public Object beginDocument(final String documentName) {
+    if (!DOCUMENT.isEnabled()) {
+      return null;
+    }
+    return begin(new DocumentParseEvent());
+  }
+
+  @Override
+  public void endDocument(final Object event, final String documentName,
+      final String contextClass, final int iwaFiles, final long messages,
+      final long bytes) {
+    if (!(event instanceof DocumentParseEvent)) {
+      return;
+    }
+    final DocumentParseEvent e = (DocumentParseEvent) event;
+    e.end();
+    if (e.shouldCommit()) {
+      e.documentName = documentName;
+      e.contextClass = contextClass;
+      e.iwaFiles = iwaFiles;
+      e.messages = messages;
+      e.bytes = bytes;
+      e.commit();
+    }
+  }
+
+  @Override
+  public Object beginIWAFile(final String documentName, final String fileName) {
+    if (!IWA_FILE.isEnabled()) {
+      return null;
+    }
+    final IWAFileParseEvent e = new IWAFileParseEvent();
+    e.documentName = documentName;
+    e.fileName = fileName;
+    return begin(e);
+  }
+
+  @Override
+  public void endIWAFile(final Object event, final long bytes, final int messages) {
+    if (!(event instanceof IWAFileParseEvent)) {
+      return;
+    }
+    final IWAFileParseEvent e = (IWAFileParseEvent) event;
+    e.end();
+    if (e.shouldCommit()) {
+      e.bytes = bytes;
+      e.messages = messages;
+      e.commit();
+    }
+  }
+
+  @Override
+  public Object beginChunk() {
+    if (!CHUNK.isEnabled()) {
+      return null;
+    }
+    return begin(new ChunkDecodeEvent());
+  }
+
+  @Override
+  public void endChunk(final Object event, final int compressedBytes,
+      final int uncompressedBytes) {
+    if (!(event instanceof ChunkDecodeEvent)) {
+      return;
+    }
+    final ChunkDecodeEvent e = (ChunkDecodeEvent) event;
+    e.end();
+    if (e.shouldCommit()) {
+      e.compressedBytes = compressedBytes;
+      e.uncompressedBytes = uncompressedBytes;
+      e.commit();
+    }
+  }
+
+  @Override
+  public Object beginAssembly(final String documentName, final String contextClass) {
+    if (!ASSEMBLY.isEnabled()) {
+      return null;
+    }
+    final AssemblyEvent e = new AssemblyEvent();
+    e.documentName = documentName;
+    e.contextClass = contextClass;
+    return begin(e);
+  }
+
+  @Override
+  public void endAssembly(final Object event) {
+    if (!(event instanceof AssemblyEvent)) {
+      return;
+    }
+    final AssemblyEvent e = (AssemblyEvent) event;
+    e.end();
+    if (e.shouldCommit()) {
+      e.commit();
+    }
+  }
+
+  private static Event begin(final Event e) {
+    e.begin();
+    return e;
+  }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright 2014-2016 Evernote Corporation.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.evernote.iwana.jfr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.evernote.iwana.ParseMonitor;
+import com.evernote.iwana.extract.ExtractTextCallback;
+import com.evernote.iwana.extract.ExtractTextIWAParser;
+import com.evernote.iwana.extract.TextAttributes;
+
+/**
+ * Records the events of a parse with Flight Recorder.
+ */
+public class TestJfrParseMonitor {
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void testRegistered() {
+    assertTrue(ParseMonitor.getDefault() instanceof JfrParseMonitor);
+  }
+
+  @Test
+  public void testEvents() throws Exception {
+    final File doc = Paths.get(
+        getClass().getResource("/test-documents/testPages2013.pages").toURI()).toFile();
+    final ExtractTextIWAParser parser = new ExtractTextIWAParser();
+    final ExtractTextCallback target = new ExtractTextCallback() {
+      @Override
+      public void onTextBlock(String text, TextAttributes attrs) {
+      }
+    };
+
+    // not recording
+    parser.parse(doc, target);
+
+    final Path file = tmp.newFile("parse.jfr").toPath();
+    try (Recording r = new Recording()) {
+      r.enable(DocumentParseEvent.class);
+      r.enable(IWAFileParseEvent.class);
+      r.enable(ChunkDecodeEvent.class);
+      r.enable(AssemblyEvent.class);
+      r.start();
+      parser.parse(doc, target);
+      r.stop();
+      r.dump(file);
+    }
+
+    final Map<String, Integer> counts = new HashMap<>();
+    RecordedEvent document = null;
+    long fileMessages = 0;
+    for (RecordedEvent e : RecordingFile.readAllEvents(file)) {
+      final String name = e.getEventType().getName();
+      counts.put(name, counts.containsKey(name) ? counts.get(name) + 1 : 1);
+      if (name.equals("com.evernote.iwana.DocumentParse")) {
+        document = e;
+      } else if (name.equals("com.evernote.iwana.IWAFileParse")) {
+        assertEquals("testPages2013.pages", e.getString("documentName"));
+        fileMessages += e.getInt("messages");
+      }
+    }
+
+    assertEquals(Integer.valueOf(1), counts.get("com.evernote.iwana.DocumentParse"));
+    assertEquals(Integer.valueOf(1), counts.get("com.evernote.iwana.Assembly"));
+    assertTrue(counts.get("com.evernote.iwana.IWAFileParse") > 1);
+    assertTrue(counts.get("com.evernote.iwana.ChunkDecode") > 1);
+
+    assertEquals("testPages2013.pages", document.getString("documentName"));
+    assertEquals("com.evernote.iwana.extract.PagesContext",
+        document.getString("contextClass"));
+    assertEquals(counts.get("com.evernote.iwana.IWAFileParse").intValue(),
+        document.getInt("iwaFiles"));
+    assertEquals(fileMessages, document.getLong("messages"));
+    assertTrue(document.getLong("bytes") > 0);
+  }
+}